@@ -4,6 +4,27 @@
 # How to get the usage information for all Kafka topics
 #   as captured by the Topics Usage Monitor
 #
+# If TOPICS_USAGE_MONITOR_URL is set (e.g. http://localhost:8080 with a
+#   port-forward to a Monitor running with USAGE_API_ENABLED), the usage
+#   info for every topic is retrieved in a single request. Otherwise it is
+#   read from Kubernetes.
+#
+
+if [ -n "$TOPICS_USAGE_MONITOR_URL" ]; then
+  if ! command -v curl >/dev/null 2>&1 || ! command -v jq >/dev/null 2>&1; then
+    echo "Error: 'curl' and 'jq' are needed to use TOPICS_USAGE_MONITOR_URL." >&2
+    exit 1
+  fi
+
+  curl --silent --show-error --fail "${TOPICS_USAGE_MONITOR_URL%/}/api/v1/topics" | \
+    jq -r '.topics[] |
+           if .lastUsed == 0 then
+             "\(.topic) has never been used"
+           else
+             "\(.topic) last used at \(.lastUsed / 1000 | floor | strflocaltime("%Y-%m-%d %H:%M:%S"))"
+           end'
+  exit ${PIPESTATUS[0]}
+fi
 
 if command -v oc >/dev/null 2>&1; then
   KUBECTL="oc"
@@ -14,6 +35,23 @@ else
   exit 1
 fi
 
+# If USAGE_STORAGE is configmaps, the usage info for every topic can be
+#   read from the ConfigMaps for each Kafka cluster, without needing to get
+#   each KafkaTopic.
+if [ "$USAGE_STORAGE" = "configmaps" ]; then
+  ${KUBECTL} get configmap -l dalelane.co.uk/topics-usage-cluster \
+      -o go-template='{{range .items}}{{range $topic, $usage := .data}}{{$topic}} {{$usage}}{{"\n"}}{{end}}{{end}}' | \
+    while read -r topic usage; do
+      timestamp="${usage%%,*}"
+      if [ "$timestamp" -eq 0 ]; then
+        echo "$topic has never been used"
+      else
+        echo "$topic last used at $(date -r $((timestamp / 1000)) '+%Y-%m-%d %H:%M:%S')"
+      fi
+    done
+  exit ${PIPESTATUS[0]}
+fi
+
 for topic in $(${KUBECTL} get kafkatopic -o name); do
     ./scripts/check-usage.sh "$topic"
 done
@@ -22,8 +22,18 @@ else
   exit 1
 fi
 
-# Reads the "topic last used" timestamp from the annotation
-ANNOTATION_VALUE=$(${KUBECTL} get kafkatopic "$TOPIC_NAME" -o jsonpath="{.metadata.annotations['dalelane\.co\.uk/lastused-timestamp']}")
+if [ "$USAGE_STORAGE" = "configmaps" ]; then
+  # Reads the "topic last used" timestamp from the ConfigMaps for the Kafka
+  #  cluster, where it is the first value in the entry for the topic
+  TOPIC_INFO=$(${KUBECTL} get kafkatopic "$TOPIC_NAME" -o jsonpath="{.status.topicName} {.metadata.labels['strimzi\.io/cluster']}{.metadata.labels['eventstreams\.ibm\.com/cluster']}")
+  read -r KAFKA_TOPIC_NAME CLUSTER_NAME <<< "$TOPIC_INFO"
+  USAGE_VALUE=$(${KUBECTL} get configmap -l "dalelane.co.uk/topics-usage-cluster=$CLUSTER_NAME" -o jsonpath="{.items[*].data['${KAFKA_TOPIC_NAME//./\\.}']}")
+  USAGE_VALUE="${USAGE_VALUE// /}"
+  ANNOTATION_VALUE="${USAGE_VALUE%%,*}"
+else
+  # Reads the "topic last used" timestamp from the annotation
+  ANNOTATION_VALUE=$(${KUBECTL} get kafkatopic "$TOPIC_NAME" -o jsonpath="{.metadata.annotations['dalelane\.co\.uk/lastused-timestamp']}")
+fi
 
 # Error case - no annotation found (Is the Topics Usage Monitor running?)
 if [ -z "$ANNOTATION_VALUE" ]; then
@@ -0,0 +1,293 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageStore;
+import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.KafkaTopicStatus;
+import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.StrimziTopic;
+import uk.co.dalelane.demos.kafka.monitoring.prometheus.PrometheusData;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config.Mode;
+
+
+
+/**
+ * Synthetic data for benchmarks, generated deterministically so that
+ *  results are comparable between runs.
+ */
+public class BenchmarkFixtures {
+
+    public static final String NAMESPACE = "benchmark";
+    public static final String CLUSTER = "benchmark-cluster";
+
+    public static final Target TARGET = new Target(NAMESPACE, CLUSTER, Mode.STRIMZI);
+
+    public static final String BYTES_IN_METRIC = "kafka_server_brokertopicmetrics_bytesin_total";
+    public static final String BYTES_OUT_METRIC = "kafka_server_brokertopicmetrics_bytesout_total";
+
+    /** Time of the most recent sample in the generated Prometheus data */
+    public static final Instant NOW = Instant.ofEpochMilli(1_750_000_000_000L);
+
+
+    public static Config config() throws MonitoringException {
+        Map<String, String> env = new HashMap<>();
+        env.put("NAMESPACE", NAMESPACE);
+        env.put("CLUSTER", CLUSTER);
+        env.put("BYTES_IN_METRIC", BYTES_IN_METRIC);
+        env.put("BYTES_OUT_METRIC", BYTES_OUT_METRIC);
+        env.put("METRICS_PORT", "0");
+        return new Config(env);
+    }
+
+    public static String topicName(int i) {
+        return "topic-" + i;
+    }
+
+    /** Value of a counter for a topic - changes every poll for every other topic */
+    private static long counter(int topic, int poll) {
+        return (topic * 7919L) + (topic % 2 == 0 ? poll * 1024L : 0);
+    }
+
+
+    /**
+     * Returns a Prometheus instant query response with a series for each
+     *  topic on each broker, as returned for a query without aggregation.
+     */
+    public static byte[] prometheusResponse(int numTopics, int numBrokers) {
+        StringBuilder json = new StringBuilder("{\"status\":\"success\",\"data\":{\"resultType\":\"vector\",\"result\":[");
+        double timestamp = NOW.toEpochMilli() / 1000.0;
+        for (int topic = 0; topic < numTopics; topic++) {
+            for (int broker = 0; broker < numBrokers; broker++) {
+                if (topic > 0 || broker > 0) {
+                    json.append(',');
+                }
+                json.append("{\"metric\":{")
+                    .append("\"__name__\":\"").append(BYTES_IN_METRIC).append("\",")
+                    .append("\"container\":\"kafka\",")
+                    .append("\"endpoint\":\"tcp-prometheus\",")
+                    .append("\"instance\":\"10.128.").append(broker).append(".1:9404\",")
+                    .append("\"job\":\"").append(NAMESPACE).append("/kafka-resources-metrics\",")
+                    .append("\"namespace\":\"").append(NAMESPACE).append("\",")
+                    .append("\"pod\":\"").append(CLUSTER).append("-kafka-").append(broker).append("\",")
+                    .append("\"strimzi_io_cluster\":\"").append(CLUSTER).append("\",")
+                    .append("\"topic\":\"").append(topicName(topic)).append("\"")
+                    .append("},\"value\":[").append(timestamp).append(",\"")
+                    .append(counter(topic, 1) / numBrokers)
+                    .append("\"]}");
+            }
+        }
+        json.append("]}}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a broker metrics endpoint response, in the Prometheus text
+     *  format from the JMX exporter, with bytes in and bytes out for each
+     *  topic among other metrics that are not needed.
+     */
+    public static byte[] brokerMetricsResponse(int numTopics) {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP jvm_memory_bytes_used Used bytes of a given JVM memory area.\n")
+            .append("# TYPE jvm_memory_bytes_used gauge\n")
+            .append("jvm_memory_bytes_used{area=\"heap\",} 1.23456789E8\n")
+            .append("jvm_memory_bytes_used{area=\"nonheap\",} 9.8765432E7\n");
+        for (String metric : List.of(BYTES_IN_METRIC, BYTES_OUT_METRIC, "kafka_server_brokertopicmetrics_messagesin_total")) {
+            text.append("# HELP ").append(metric).append(" Attribute exposed for management\n")
+                .append("# TYPE ").append(metric).append(" counter\n");
+            for (int topic = 0; topic < numTopics; topic++) {
+                text.append(metric).append("{topic=\"").append(topicName(topic)).append("\",} ")
+                    .append((double) counter(topic, 1)).append('\n');
+            }
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a Prometheus remote write request with a bytes in and a bytes
+     *  out series for each topic on each broker, with one sample each.
+     *
+     * The protobuf is compressed with snappy literals only, which is valid
+     *  snappy even though it is no smaller.
+     */
+    public static byte[] remoteWriteRequest(int numTopics, int numBrokers, int poll) {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        for (String metric : List.of(BYTES_IN_METRIC, BYTES_OUT_METRIC)) {
+            for (int topic = 0; topic < numTopics; topic++) {
+                for (int broker = 0; broker < numBrokers; broker++) {
+                    ByteArrayOutputStream series = new ByteArrayOutputStream();
+                    writeLabel(series, "__name__", metric);
+                    writeLabel(series, "instance", "10.128." + broker + ".1:9404");
+                    writeLabel(series, "job", NAMESPACE + "/kafka-resources-metrics");
+                    writeLabel(series, "namespace", NAMESPACE);
+                    writeLabel(series, "pod", CLUSTER + "-kafka-" + broker);
+                    writeLabel(series, "strimzi_io_cluster", CLUSTER);
+                    writeLabel(series, "topic", topicName(topic));
+
+                    ByteArrayOutputStream sample = new ByteArrayOutputStream();
+                    sample.write((1 << 3) | 1);
+                    long value = Double.doubleToLongBits((double) (counter(topic, poll) / numBrokers));
+                    for (int i = 0; i < 8; i++) {
+                        sample.write((int) (value >>> (8 * i)));
+                    }
+                    sample.write(2 << 3);
+                    writeVarint(sample, NOW.toEpochMilli() + poll * 60_000L);
+                    writeField(series, 2, sample.toByteArray());
+
+                    writeField(request, 1, series.toByteArray());
+                }
+            }
+        }
+
+        byte[] uncompressed = request.toByteArray();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        writeVarint(compressed, uncompressed.length);
+        for (int pos = 0; pos < uncompressed.length; pos += 65536) {
+            int length = Math.min(65536, uncompressed.length - pos);
+            // literal, with the length (minus one) in the next two bytes
+            compressed.write(61 << 2);
+            compressed.write((length - 1) & 0xff);
+            compressed.write((length - 1) >>> 8);
+            compressed.write(uncompressed, pos, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static void writeLabel(ByteArrayOutputStream series, String name, String value) {
+        ByteArrayOutputStream label = new ByteArrayOutputStream();
+        writeField(label, 1, name.getBytes(StandardCharsets.UTF_8));
+        writeField(label, 2, value.getBytes(StandardCharsets.UTF_8));
+        writeField(series, 1, label.toByteArray());
+    }
+
+    private static void writeField(ByteArrayOutputStream out, int field, byte[] bytes) {
+        out.write((field << 3) | 2);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Returns parsed Prometheus results for each topic on each broker, for
+     *  the provided poll - where every other topic changes every poll.
+     */
+    public static List<PrometheusData> prometheusData(int numTopics, int numBrokers, int poll) {
+        List<PrometheusData> data = new ArrayList<>(numTopics * numBrokers);
+        for (int topic = 0; topic < numTopics; topic++) {
+            for (int broker = 0; broker < numBrokers; broker++) {
+                data.add(new PrometheusData(topicName(topic),
+                                            NOW.toEpochMilli() + poll * 60_000L,
+                                            counter(topic, poll) / numBrokers,
+                                            CLUSTER + "-kafka-" + broker));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns usage info for each topic as it would have been read from the
+     *  annotations on the KafkaTopic operands.
+     */
+    public static UsageStore usageStore(int numTopics) {
+        UsageStore usage = new UsageStore();
+        for (int topic = 0; topic < numTopics; topic++) {
+            int id = usage.add(topicName(topic));
+            usage.set(id, counter(topic, 0), counter(topic, 0), NOW.minusSeconds(3600).toEpochMilli());
+        }
+        return usage;
+    }
+
+    /**
+     * Returns KafkaTopic operands with usage annotations for each topic.
+     */
+    public static List<StrimziTopic> kafkaTopics(int numTopics) {
+        List<StrimziTopic> topics = new ArrayList<>(numTopics);
+        for (int topic = 0; topic < numTopics; topic++) {
+            StrimziTopic kafkaTopic = new StrimziTopic();
+            kafkaTopic.setMetadata(new ObjectMetaBuilder()
+                .withName(topicName(topic))
+                .withNamespace(NAMESPACE)
+                .addToLabels("strimzi.io/cluster", CLUSTER)
+                .addToAnnotations("dalelane.co.uk/lastused-bytesin", Long.toString(counter(topic, 0)))
+                .addToAnnotations("dalelane.co.uk/lastused-bytesout", Long.toString(counter(topic, 0)))
+                .addToAnnotations("dalelane.co.uk/lastused-timestamp", Long.toString(NOW.toEpochMilli()))
+                .build());
+            KafkaTopicStatus status = new KafkaTopicStatus();
+            status.setTopicName(topicName(topic));
+            kafkaTopic.setStatus(status);
+            topics.add(kafkaTopic);
+        }
+        return topics;
+    }
+
+    /**
+     * Returns a KafkaTopic list response from the Kubernetes API, with the
+     *  managed fields, spec and last-applied-configuration annotation that
+     *  operands created with kubectl have, as well as the usage annotations.
+     */
+    public static byte[] kafkaTopicListResponse(int numTopics) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"apiVersion\":\"kafka.strimzi.io/v1beta2\",\"kind\":\"KafkaTopicList\",\"metadata\":{\"resourceVersion\":\"1000\"},\"items\":[");
+        for (int topic = 0; topic < numTopics; topic++) {
+            String spec = "{\"partitions\":3,\"replicas\":3,\"config\":{\"retention.ms\":604800000,\"segment.bytes\":1073741824,\"cleanup.policy\":\"delete\"}}";
+            if (topic > 0) {
+                json.append(',');
+            }
+            json.append("{\"apiVersion\":\"kafka.strimzi.io/v1beta2\",\"kind\":\"KafkaTopic\",\"metadata\":{")
+                .append("\"name\":\"").append(topicName(topic)).append("\",")
+                .append("\"namespace\":\"").append(NAMESPACE).append("\",")
+                .append("\"resourceVersion\":\"").append(topic + 1).append("\",")
+                .append("\"uid\":\"00000000-0000-0000-0000-").append(String.format("%012d", topic)).append("\",")
+                .append("\"generation\":1,\"creationTimestamp\":\"2025-06-15T12:00:00Z\",")
+                .append("\"finalizers\":[\"strimzi.io/topic-operator\"],")
+                .append("\"labels\":{\"strimzi.io/cluster\":\"").append(CLUSTER).append("\"},")
+                .append("\"annotations\":{")
+                .append("\"kubectl.kubernetes.io/last-applied-configuration\":\"")
+                .append(("{\"apiVersion\":\"kafka.strimzi.io/v1beta2\",\"kind\":\"KafkaTopic\",\"metadata\":{\"name\":\"" + topicName(topic) + "\"},\"spec\":" + spec + "}").replace("\"", "\\\""))
+                .append("\",")
+                .append("\"dalelane.co.uk/lastused-bytesin\":\"").append(counter(topic, 0)).append("\",")
+                .append("\"dalelane.co.uk/lastused-bytesout\":\"").append(counter(topic, 0)).append("\",")
+                .append("\"dalelane.co.uk/lastused-timestamp\":\"").append(NOW.toEpochMilli()).append("\"},")
+                .append("\"managedFields\":[")
+                .append("{\"apiVersion\":\"kafka.strimzi.io/v1beta2\",\"fieldsType\":\"FieldsV1\",\"manager\":\"kubectl-client-side-apply\",\"operation\":\"Update\",\"time\":\"2025-06-15T12:00:00Z\",")
+                .append("\"fieldsV1\":{\"f:metadata\":{\"f:annotations\":{\".\":{},\"f:kubectl.kubernetes.io/last-applied-configuration\":{}},\"f:labels\":{\".\":{},\"f:strimzi.io/cluster\":{}}},")
+                .append("\"f:spec\":{\".\":{},\"f:config\":{\".\":{},\"f:cleanup.policy\":{},\"f:retention.ms\":{},\"f:segment.bytes\":{}},\"f:partitions\":{},\"f:replicas\":{}}}},")
+                .append("{\"apiVersion\":\"kafka.strimzi.io/v1beta2\",\"fieldsType\":\"FieldsV1\",\"manager\":\"strimzi-topic-operator\",\"operation\":\"Update\",\"subresource\":\"status\",\"time\":\"2025-06-15T12:00:05Z\",")
+                .append("\"fieldsV1\":{\"f:status\":{\".\":{},\"f:conditions\":{},\"f:observedGeneration\":{},\"f:topicId\":{},\"f:topicName\":{}}}}")
+                .append("]},")
+                .append("\"spec\":").append(spec).append(',')
+                .append("\"status\":{\"conditions\":[{\"lastTransitionTime\":\"2025-06-15T12:00:05Z\",\"status\":\"True\",\"type\":\"Ready\"}],")
+                .append("\"observedGeneration\":1,\"topicId\":\"AAAAAAAAAAAAAAAAAAAAAA\",")
+                .append("\"topicName\":\"").append(topicName(topic)).append("\"}}");
+        }
+        json.append("]}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
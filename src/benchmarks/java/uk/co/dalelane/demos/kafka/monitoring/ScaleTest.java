@@ -0,0 +1,280 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.fabric8.kubernetes.api.model.DefaultKubernetesResourceList;
+import io.fabric8.kubernetes.client.ConfigBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientBuilder;
+import uk.co.dalelane.demos.kafka.monitoring.k8s.K8sClient;
+import uk.co.dalelane.demos.kafka.monitoring.k8s.PatchPipeline;
+import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.KafkaTopic;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MonitorMetrics;
+import uk.co.dalelane.demos.kafka.monitoring.prometheus.PrometheusClient;
+import uk.co.dalelane.demos.kafka.monitoring.prometheus.PrometheusQueryEngine;
+import uk.co.dalelane.demos.kafka.monitoring.scale.StubKubernetes;
+import uk.co.dalelane.demos.kafka.monitoring.scale.StubPrometheus;
+import uk.co.dalelane.demos.kafka.monitoring.scale.StubServer.Stats;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+
+
+/**
+ * Runs the Monitor end to end against local stand-ins for the Kubernetes
+ *  and Prometheus APIs, at several scales, and reports for each poll how
+ *  long it took, the API calls it made, the bytes transferred and the
+ *  peak heap used. Everything runs in this process, without network
+ *  access or a Kubernetes cluster.
+ *
+ *  java -cp target/topics-usage-monitor-0.0.1-benchmarks.jar \
+ *      uk.co.dalelane.demos.kafka.monitoring.ScaleTest [key=value ...]
+ *
+ * Options (with defaults):
+ *  topics=1000,10000,100000    numbers of KafkaTopic operands to test with
+ *  brokers=3                   number of brokers each topic has series on
+ *  used=0.1                    fraction of topics used in each cycle
+ *  cycles=3                    number of polls at each scale
+ *  restarts=false              restart a broker before every poll after the
+ *                              first (a rolling restart), resetting its counters
+ *  k8sLatencyMs=0              delay added to every Kubernetes API response
+ *  prometheusLatencyMs=0       delay added to every Prometheus response
+ *  mode=strimzi                strimzi or eventstreams
+ *
+ * Any option in upper case (e.g. USAGE_STORAGE=configmaps) is passed to
+ *  the Monitor as if it was an environment variable.
+ */
+public class ScaleTest {
+
+    private static final String NAMESPACE = "scale-test";
+    private static final String CLUSTER = "scale-test-cluster";
+
+    /** Value that every topic's counters (and usage annotations) start with */
+    private static final long INITIAL_USAGE = 1_000_000;
+
+    /** Topic name prefixes, so that names start with a range of characters as they would in a real cluster */
+    private static final String[] TOPIC_PREFIXES = {
+        "orders", "payments", "inventory", "audit", "clickstream", "Logs", "metrics",
+        "users", "shipping", "_internal", "notifications", "QA", "events", "2fa",
+    };
+
+    private static final Path CREDS_DIR = Path.of("creds");
+    private static final Path TOKEN_FILE = CREDS_DIR.resolve("k8s-token");
+    private static final Path CA_FILE = CREDS_DIR.resolve("prometheus-ca.crt");
+
+    /** Self-signed CA that the Prometheus client needs to start - not used, as the stub is plain HTTP */
+    private static final String CA_CERT =
+        "-----BEGIN CERTIFICATE-----\n" +
+        "MIIBQzCB6qADAgECAgkA0DbyZmSEKEgwCgYIKoZIzj0EAwIwFTETMBEGA1UEAxMK\n" +
+        "c2NhbGUtdGVzdDAgFw0yNjEwMTcwNzA0MDlaGA8yMTI2MDkyMzA3MDQwOVowFTET\n" +
+        "MBEGA1UEAxMKc2NhbGUtdGVzdDBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABEMt\n" +
+        "qQxIIe7TXhDzmHL8pqdkeX41rcf4JKkKbWsAYacPMV2cUqgvXAZLrnWKrHhgMNCJ\n" +
+        "gCKT7KmsoOV6Emz+2yCjITAfMB0GA1UdDgQWBBSMuwWPk+7opQhH2DLTEYUqfg7e\n" +
+        "eTAKBggqhkjOPQQDAgNIADBFAiBGSsQ0P9fLf8dg0/i6S7vB6fY/XbjRoQXUFgqI\n" +
+        "3txOCQIhALTKJtU2JwQbE99cCzgAt+kqbMNudWxdtP8BO+VblUbg\n" +
+        "-----END CERTIFICATE-----\n";
+
+
+    public static void main(String[] args) throws Exception {
+        // the Monitor logs every poll, and every patch that fails
+        if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) {
+            System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        }
+
+        Map<String, String> options = new HashMap<>();
+        Map<String, String> monitorEnv = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("Options need to be key=value : " + arg);
+                System.exit(1);
+            }
+            String key = arg.substring(0, eq);
+            (key.equals(key.toUpperCase()) ? monitorEnv : options).put(key, arg.substring(eq + 1));
+        }
+
+        List<Path> createdFiles = createCredentials();
+        try {
+            System.out.printf("%8s %6s %7s %10s %10s %8s %10s %10s %10s  %s%n",
+                              "topics", "cycle", "used", "time (ms)", "k8s calls", "queries",
+                              "k8s KB", "prom KB", "heap MB", "kubernetes requests");
+            for (String topics : options.getOrDefault("topics", "1000,10000,100000").split(",")) {
+                run(Integer.parseInt(topics.trim()), options, monitorEnv);
+            }
+        }
+        catch (MonitoringException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        finally {
+            for (int i = createdFiles.size() - 1; i >= 0; i--) {
+                Files.deleteIfExists(createdFiles.get(i));
+            }
+        }
+        System.exit(0);
+    }
+
+
+    private static void run(int numTopics, Map<String, String> options, Map<String, String> monitorEnv) throws Exception {
+        int brokers = Integer.parseInt(options.getOrDefault("brokers", "3"));
+        double used = Double.parseDouble(options.getOrDefault("used", "0.1"));
+        int cycles = Integer.parseInt(options.getOrDefault("cycles", "3"));
+        boolean restarts = Boolean.parseBoolean(options.getOrDefault("restarts", "false"));
+        long k8sLatencyMs = Long.parseLong(options.getOrDefault("k8sLatencyMs", "0"));
+        long prometheusLatencyMs = Long.parseLong(options.getOrDefault("prometheusLatencyMs", "0"));
+        String mode = options.getOrDefault("mode", "strimzi");
+
+        List<String> topicNames = new ArrayList<>(numTopics);
+        for (int i = 0; i < numTopics; i++) {
+            topicNames.add(TOPIC_PREFIXES[i % TOPIC_PREFIXES.length] + "-" + i);
+        }
+
+        Map<String, String> env = new HashMap<>();
+        env.put("NAMESPACE", NAMESPACE);
+        env.put("CLUSTER", CLUSTER);
+        env.put("MODE", mode);
+        env.put("METRICS_PORT", "0");
+        env.putAll(monitorEnv);
+
+        String labelPrefix = new Config(env).getTargets().get(0).getK8sAnnotationPrefix();
+
+        try (StubKubernetes kubernetes = new StubKubernetes(NAMESPACE, CLUSTER, labelPrefix, topicNames, INITIAL_USAGE, k8sLatencyMs);
+             StubPrometheus prometheus = new StubPrometheus(NAMESPACE, CLUSTER, topicNames, brokers, used, INITIAL_USAGE, prometheusLatencyMs))
+        {
+            env.put("PROMETHEUS_URL", prometheus.getUrl());
+            Config config = new Config(env);
+            if (config.isTopicCacheEnabled()) {
+                throw new MonitoringException("TOPIC_CACHE_ENABLED is not supported, as the stub Kubernetes API does not support watches");
+            }
+
+            MonitorMetrics metrics = new MonitorMetrics();
+            PatchPipeline patchPipeline = new PatchPipeline(config, metrics);
+            KubernetesClient client = new KubernetesClientBuilder()
+                .withConfig(new ConfigBuilder()
+                    .withMasterUrl(kubernetes.getUrl())
+                    .withNamespace(NAMESPACE)
+                    .build())
+                .withHttpClientBuilderConsumer(builder -> builder.addOrReplaceInterceptor("patch-pipeline", patchPipeline))
+                .build();
+
+            Map<Target, K8sClient<? extends KafkaTopic, ? extends DefaultKubernetesResourceList<? extends KafkaTopic>>> k8sClients = new LinkedHashMap<>();
+            for (Target target : config.getTargets()) {
+                k8sClients.put(target, K8sClient.create(config, target, client, patchPipeline));
+            }
+            TopicsUsageMonitor monitor = new TopicsUsageMonitor(config,
+                                                                metrics,
+                                                                client,
+                                                                new PrometheusQueryEngine(config, new PrometheusClient(config, metrics), metrics),
+                                                                k8sClients);
+
+            for (int cycle = 1; cycle <= cycles; cycle++) {
+                prometheus.nextCycle();
+                if (restarts && cycle > 1) {
+                    prometheus.restartBroker(cycle % brokers);
+                }
+                kubernetes.takeStats();
+                prometheus.takeStats();
+                resetPeakHeap();
+
+                long start = System.nanoTime();
+                monitor.poll();
+                long durationMs = (System.nanoTime() - start) / 1_000_000;
+
+                Stats k8sStats = kubernetes.takeStats();
+                Stats prometheusStats = prometheus.takeStats();
+                System.out.printf("%8d %6d %7d %10d %10d %8d %10d %10d %10d  %s%n",
+                                  numTopics,
+                                  cycle,
+                                  prometheus.getUsedCount(),
+                                  durationMs,
+                                  k8sStats.totalRequests(),
+                                  prometheusStats.totalRequests(),
+                                  (k8sStats.bytesReceived() + k8sStats.bytesSent()) / 1024,
+                                  (prometheusStats.bytesReceived() + prometheusStats.bytesSent()) / 1024,
+                                  getPeakHeap() / (1024 * 1024),
+                                  k8sStats.requests());
+
+                // updates are patches built from the listed operands, so should never need a GET first
+                for (String get : List.of("kafkatopics get", "configmaps get")) {
+                    if (k8sStats.requests().getOrDefault(get, 0L) > 0) {
+                        throw new MonitoringException("Unexpected Kubernetes requests: " + get + "=" + k8sStats.requests().get(get));
+                    }
+                }
+            }
+            client.close();
+        }
+    }
+
+
+    /**
+     * Creates the credentials that the Prometheus client needs to start,
+     *  unless they already exist.
+     *
+     * @return the files and directories that were created, to delete afterwards
+     */
+    private static List<Path> createCredentials() throws IOException {
+        List<Path> created = new ArrayList<>();
+        if (!Files.exists(CREDS_DIR)) {
+            Files.createDirectory(CREDS_DIR);
+            created.add(CREDS_DIR);
+        }
+        if (!Files.exists(TOKEN_FILE)) {
+            Files.writeString(TOKEN_FILE, "scale-test", StandardCharsets.UTF_8);
+            created.add(TOKEN_FILE);
+        }
+        if (!Files.exists(CA_FILE)) {
+            Files.writeString(CA_FILE, CA_CERT, StandardCharsets.UTF_8);
+            created.add(CA_FILE);
+        }
+        return created;
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Returns the peak heap use since the last reset - the total of the
+     *  peaks for each heap pool, so an upper bound as the pools may not
+     *  have peaked at the same time. This includes the stubs, which hold
+     *  a few longs per topic and stream their responses.
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
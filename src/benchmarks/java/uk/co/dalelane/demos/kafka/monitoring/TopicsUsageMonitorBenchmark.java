@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.dalelane.demos.kafka.monitoring.data.CounterTracker;
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageStore;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MonitorMetrics;
+import uk.co.dalelane.demos.kafka.monitoring.prometheus.PrometheusData;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TopicsUsageMonitorBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    private int numTopics;
+
+    private static final int NUM_BROKERS = 3;
+
+    private TopicsUsageMonitor monitor;
+
+    private List<PrometheusData> previousData;
+    private List<PrometheusData> prometheusData;
+    private UsageStore usage;
+    private CounterTracker tracker;
+    private CounterTracker newTracker;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws MonitoringException {
+        monitor = new TopicsUsageMonitor(BenchmarkFixtures.config(), new MonitorMetrics(), null, null, Map.of());
+        previousData = BenchmarkFixtures.prometheusData(numTopics, NUM_BROKERS, 0);
+        prometheusData = BenchmarkFixtures.prometheusData(numTopics, NUM_BROKERS, 1);
+    }
+
+    /**
+     * Usage info is modified when results are processed, so needs resetting
+     *  every time - along with the counters from the previous poll that the
+     *  results are compared with.
+     */
+    @Setup(Level.Invocation)
+    public void resetUsage() {
+        usage = BenchmarkFixtures.usageStore(numTopics);
+        tracker = new CounterTracker();
+        process(previousData, tracker);
+        usage.markChangesStored();
+        newTracker = new CounterTracker();
+    }
+
+
+    /** Results for a poll, compared with the counters from the previous poll */
+    @Benchmark
+    public UsageStore processResults() {
+        process(prometheusData, tracker);
+        return usage;
+    }
+
+    /** Results for the first poll after a restart, compared with the usage info from Kubernetes */
+    @Benchmark
+    public UsageStore processFirstResults() {
+        process(prometheusData, newTracker);
+        return usage;
+    }
+
+
+    private void process(List<PrometheusData> results, CounterTracker counters) {
+        for (PrometheusData data : results) {
+            monitor.processResult(BenchmarkFixtures.BYTES_IN_METRIC, data, counters);
+        }
+        for (PrometheusData data : results) {
+            monitor.processResult(BenchmarkFixtures.BYTES_OUT_METRIC, data, counters);
+        }
+        counters.endPoll(usage);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.data;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.dalelane.demos.kafka.monitoring.BenchmarkFixtures;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UsageHistoryBenchmark {
+
+    /** 30 days of hourly polls */
+    private static final int HISTORY_POLLS = 720;
+
+    @Param({ "1000", "10000", "100000" })
+    private int numTopics;
+
+    private UsageStore usage;
+    private UsageHistory history;
+    private long timestamp;
+
+
+    @Setup
+    public void setup() {
+        usage = BenchmarkFixtures.usageStore(numTopics);
+        history = new UsageHistory(HISTORY_POLLS);
+        timestamp = BenchmarkFixtures.NOW.toEpochMilli();
+        history.record(usage, timestamp);
+    }
+
+
+    /** Every other topic is used in each poll */
+    @Benchmark
+    public void record() {
+        timestamp += 60 * 60 * 1000;
+        for (int id = 0; id < usage.limit(); id += 2) {
+            usage.setBytesIn(id, usage.getBytesIn(id) + 1024, timestamp);
+        }
+        history.record(usage, timestamp);
+    }
+
+    @Benchmark
+    public long getUsageSince() {
+        return history.getUsageSince(BenchmarkFixtures.topicName(numTopics / 2), timestamp - (7 * 24 * 60 * 60 * 1000L))[0];
+    }
+}
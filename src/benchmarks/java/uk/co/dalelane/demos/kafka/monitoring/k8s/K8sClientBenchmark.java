@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.k8s;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.fabric8.kubernetes.client.KubernetesClient;
+import uk.co.dalelane.demos.kafka.monitoring.BenchmarkFixtures;
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageStore;
+import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.StrimziTopic;
+import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.StrimziTopicsList;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MonitorMetrics;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class K8sClientBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    private int numTopics;
+
+    private KubernetesClient client;
+    private StrimziK8sClient k8sClient;
+
+    private List<StrimziTopic> kafkaTopics;
+    private byte[] kafkaTopicListResponse;
+    private UsageStore usage;
+    private int[] ids;
+
+
+    @Setup
+    public void setup() throws MonitoringException {
+        Config config = BenchmarkFixtures.config();
+        PatchPipeline patchPipeline = new PatchPipeline(config, new MonitorMetrics());
+
+        // the client is never used to connect to a Kubernetes API server
+        client = K8sClient.createKubernetesClient(patchPipeline);
+        k8sClient = new StrimziK8sClient(config, BenchmarkFixtures.TARGET, client, patchPipeline);
+
+        kafkaTopics = BenchmarkFixtures.kafkaTopics(numTopics);
+        kafkaTopicListResponse = BenchmarkFixtures.kafkaTopicListResponse(numTopics);
+        usage = BenchmarkFixtures.usageStore(numTopics);
+        ids = new int[numTopics];
+        for (int i = 0; i < numTopics; i++) {
+            ids[i] = usage.indexOf(BenchmarkFixtures.topicName(i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+    }
+
+
+    @Benchmark
+    public StrimziTopicsList parseTopicList() {
+        return client.getKubernetesSerialization().unmarshal(new ByteArrayInputStream(kafkaTopicListResponse), StrimziTopicsList.class);
+    }
+
+    @Benchmark
+    public UsageStore readAnnotations() throws MonitoringException {
+        for (int i = 0; i < ids.length; i++) {
+            k8sClient.readAnnotations(kafkaTopics.get(i), usage, ids[i]);
+        }
+        return usage;
+    }
+
+    @Benchmark
+    public void createAnnotationsPatch(Blackhole blackhole) {
+        for (int id : ids) {
+            blackhole.consume(k8sClient.createAnnotationsPatch(usage.getBytesIn(id), usage.getBytesOut(id), usage.getTimestamp(id)));
+        }
+    }
+}
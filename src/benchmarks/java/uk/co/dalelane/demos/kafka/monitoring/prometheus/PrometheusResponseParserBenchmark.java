@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import uk.co.dalelane.demos.kafka.monitoring.BenchmarkFixtures;
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Formats;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+/**
+ * Compares the streaming parser with the way that responses used to be
+ *  parsed - the whole body as a String, then a JsonNode tree, then a
+ *  List of results. Run with {@code -prof gc} to compare the bytes
+ *  allocated for each response, or run main() to compare the peak heap
+ *  used while parsing a single response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PrometheusResponseParserBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    private int numTopics;
+
+    @Param({ "3" })
+    private int numBrokers;
+
+    private final List<Target> targets = List.of(BenchmarkFixtures.TARGET);
+    private final PrometheusResponseParser parser = new PrometheusResponseParser("pod");
+
+    private byte[] response;
+
+
+    @Setup
+    public void setup() {
+        response = BenchmarkFixtures.prometheusResponse(numTopics, numBrokers);
+    }
+
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws IOException, MonitoringException {
+        parser.parse(new ByteArrayInputStream(response), targets, (target, data) -> blackhole.consume(data));
+    }
+
+    @Benchmark
+    public void parseTree(Blackhole blackhole) throws IOException {
+        blackhole.consume(parseTree(response));
+    }
+
+
+    /** Parses a response the way it was done before the streaming parser */
+    private static List<PrometheusData> parseTree(byte[] response) throws IOException {
+        String body = new String(response, StandardCharsets.UTF_8);
+        JsonNode root = new ObjectMapper().readTree(body);
+
+        List<PrometheusData> results = new ArrayList<>();
+        for (JsonNode result : root.path("data").path("result")) {
+            JsonNode metric = result.path("metric");
+            if (metric.path("strimzi_io_cluster").asText().equals(BenchmarkFixtures.CLUSTER) &&
+                metric.path("namespace").asText().equals(BenchmarkFixtures.NAMESPACE))
+            {
+                JsonNode value = result.path("value");
+                results.add(new PrometheusData(metric.path("topic").asText(),
+                                               Formats.toEpochMillis(value.get(0).asDouble()),
+                                               value.get(1).asLong(),
+                                               metric.path("pod").asText()));
+            }
+        }
+        return results;
+    }
+
+
+    /**
+     * Prints the peak heap used (above what was in use beforehand) while
+     *  parsing a single response, for each way of parsing it. Run with a
+     *  fixed heap and the serial collector for repeatable results, e.g.
+     *  java -Xms2g -Xmx2g -XX:+UseSerialGC -cp target/topics-usage-monitor-0.0.1-benchmarks.jar \
+     *    uk.co.dalelane.demos.kafka.monitoring.prometheus.PrometheusResponseParserBenchmark 100000
+     */
+    public static void main(String[] args) throws Exception {
+        int numTopics = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int numBrokers = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        byte[] response = BenchmarkFixtures.prometheusResponse(numTopics, numBrokers);
+        PrometheusResponseParser parser = new PrometheusResponseParser("pod");
+        List<Target> targets = List.of(BenchmarkFixtures.TARGET);
+
+        System.out.printf("%d topics, %d brokers, %d MB response%n", numTopics, numBrokers, response.length / (1024 * 1024));
+        for (int run = 1; run <= 3; run++) {
+            long baseline = resetPeakHeap();
+            List<PrometheusData> results = parseTree(response);
+            long treePeak = getPeakHeap() - baseline;
+
+            baseline = resetPeakHeap();
+            long[] count = new long[1];
+            parser.parse(new ByteArrayInputStream(response), targets, (target, data) -> count[0]++);
+            long streamingPeak = getPeakHeap() - baseline;
+
+            System.out.printf("run %d: tree %d MB (%d results), streaming %d MB (%d results)%n",
+                              run,
+                              treePeak / (1024 * 1024), results.size(),
+                              streamingPeak / (1024 * 1024), count[0]);
+        }
+    }
+
+    /** Runs a GC and resets the peak usage of each heap pool, returning the heap in use */
+    private static long resetPeakHeap() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.co.dalelane.demos.kafka.monitoring.BenchmarkFixtures;
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MonitorMetrics;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RemoteWriteReceiverBenchmark {
+
+    private static final int NUM_BROKERS = 3;
+
+    @Param({ "1000", "10000", "100000" })
+    private int numTopics;
+
+    private final List<String> metricNames = List.of(BenchmarkFixtures.BYTES_IN_METRIC, BenchmarkFixtures.BYTES_OUT_METRIC);
+
+    private RemoteWriteReceiver receiver;
+    private List<Target> targets;
+
+    /** requests alternate between two polls, so that half of the topics change every time */
+    private byte[][] requests;
+    private int next = 0;
+
+
+    @Setup
+    public void setup() throws MonitoringException {
+        Config config = new Config(Map.of("NAMESPACE", BenchmarkFixtures.NAMESPACE,
+                                          "CLUSTER", BenchmarkFixtures.CLUSTER,
+                                          "USAGE_SOURCE", "remote_write",
+                                          "REMOTE_WRITE_PORT", "0",
+                                          "REMOTE_WRITE_WARMUP_SECONDS", "0"));
+        receiver = new RemoteWriteReceiver(config, new MonitorMetrics());
+        targets = config.getTargets();
+        requests = new byte[][] {
+            BenchmarkFixtures.remoteWriteRequest(numTopics, NUM_BROKERS, 1),
+            BenchmarkFixtures.remoteWriteRequest(numTopics, NUM_BROKERS, 2)
+        };
+        // the first request for each series adds it
+        receiver.receive(requests[0], requests[0].length);
+    }
+
+
+    @Benchmark
+    public int receive() throws MonitoringException {
+        byte[] request = requests[next++ & 1];
+        return receiver.receive(request, request.length);
+    }
+
+    /** Requests received by several threads at once, as sent by the shards of a Prometheus remote write queue */
+    @Benchmark
+    @Threads(4)
+    public int receiveConcurrently() throws MonitoringException {
+        byte[] request = requests[next++ & 1];
+        return receiver.receive(request, request.length);
+    }
+
+    @Benchmark
+    public void receiveAndReport(Blackhole blackhole) throws MonitoringException {
+        byte[] request = requests[next++ & 1];
+        receiver.receive(request, request.length);
+        receiver.query(targets, metricNames, (target, metric, result) -> blackhole.consume(result));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.co.dalelane.demos.kafka.monitoring.BenchmarkFixtures;
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TextFormatParserBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    private int numTopics;
+
+    private final List<String> metricNames = List.of(BenchmarkFixtures.BYTES_IN_METRIC, BenchmarkFixtures.BYTES_OUT_METRIC);
+
+    private byte[] response;
+
+
+    @Setup
+    public void setup() {
+        response = BenchmarkFixtures.brokerMetricsResponse(numTopics);
+    }
+
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws IOException, MonitoringException {
+        new TextFormatParser(metricNames).parse(
+            new ByteArrayInputStream(response),
+            (metric, topic, value) -> blackhole.consume(topic));
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.scale;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+
+import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.TopicMetadata;
+
+
+
+/**
+ * Local stand-in for the parts of the Kubernetes API that the Monitor
+ *  uses - listing (a page at a time), getting and patching KafkaTopic
+ *  operands, and listing, getting, creating and patching usage ConfigMaps.
+ *
+ * Every KafkaTopic is in the same namespace and Kafka cluster, and starts
+ *  with usage annotations. Watches are not supported, so the Monitor needs
+ *  to run with TOPIC_CACHE_ENABLED=false.
+ */
+public class StubKubernetes extends StubServer {
+
+    private static final Pattern TOPICS_PATH = Pattern.compile("/apis/([^/]+)/([^/]+)/namespaces/([^/]+)/kafkatopics(?:/([^/]+))?");
+    private static final Pattern CONFIGMAPS_PATH = Pattern.compile("/api/v1/namespaces/([^/]+)/configmaps(?:/([^/]+))?");
+
+    private static final String ANNOTATION_BYTESIN = TopicMetadata.USAGE_ANNOTATION_PREFIX + "bytesin";
+    private static final String ANNOTATION_BYTESOUT = TopicMetadata.USAGE_ANNOTATION_PREFIX + "bytesout";
+    private static final String ANNOTATION_TIMESTAMP = TopicMetadata.USAGE_ANNOTATION_PREFIX + "timestamp";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final String namespace;
+    private final String cluster;
+    private final String labelPrefix;
+
+    private final String[] topicNames;
+    private final Map<String, Integer> topicIds = new HashMap<>();
+
+    /** Usage annotations on each KafkaTopic */
+    private final String[] bytesIn;
+    private final String[] bytesOut;
+    private final String[] timestamps;
+
+    /** Data in each ConfigMap, by name */
+    private final Map<String, Map<String, String>> configMaps = new TreeMap<>();
+
+
+    /**
+     * @param labelPrefix prefix of the cluster label on the KafkaTopic
+     *  operands, e.g. strimzi.io
+     * @param initialUsage the annotation values that every topic starts with
+     */
+    public StubKubernetes(String namespace, String cluster, String labelPrefix, List<String> topics, long initialUsage, long latencyMs) throws IOException {
+        super("stub-kubernetes", latencyMs);
+        this.namespace = namespace;
+        this.cluster = cluster;
+        this.labelPrefix = labelPrefix;
+
+        topicNames = topics.toArray(new String[0]);
+        bytesIn = new String[topicNames.length];
+        bytesOut = new String[topicNames.length];
+        timestamps = new String[topicNames.length];
+        for (int id = 0; id < topicNames.length; id++) {
+            topicIds.put(topicNames[id], id);
+            bytesIn[id] = Long.toString(initialUsage);
+            bytesOut[id] = Long.toString(initialUsage);
+            timestamps[id] = "0";
+        }
+    }
+
+
+    @Override
+    protected String handle(HttpExchange exchange, byte[] body) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getRawPath();
+        Map<String, String> params = getQueryParameters(exchange);
+
+        Matcher topics = TOPICS_PATH.matcher(path);
+        if (topics.matches() && topics.group(3).equals(namespace)) {
+            String apiVersion = topics.group(1) + "/" + topics.group(2);
+            if (method.equals("GET") && topics.group(4) == null) {
+                listTopics(exchange, apiVersion, params);
+                return "kafkatopics list";
+            }
+            if (method.equals("GET") && topics.group(4) != null) {
+                getTopic(exchange, apiVersion, decode(topics.group(4)));
+                return "kafkatopics get";
+            }
+            if (method.equals("PATCH") && topics.group(4) != null) {
+                patchTopic(exchange, apiVersion, decode(topics.group(4)), body);
+                return "kafkatopics patch";
+            }
+        }
+
+        Matcher configmaps = CONFIGMAPS_PATH.matcher(path);
+        if (configmaps.matches() && configmaps.group(1).equals(namespace)) {
+            if (method.equals("GET") && configmaps.group(2) == null) {
+                listConfigMaps(exchange, params);
+                return "configmaps list";
+            }
+            if (method.equals("GET") && configmaps.group(2) != null) {
+                getConfigMap(exchange, decode(configmaps.group(2)));
+                return "configmaps get";
+            }
+            if (method.equals("PATCH") && configmaps.group(2) != null) {
+                patchConfigMap(exchange, decode(configmaps.group(2)), body);
+                return "configmaps patch";
+            }
+            if (method.equals("POST") && configmaps.group(2) == null) {
+                createConfigMap(exchange, body);
+                return "configmaps create";
+            }
+        }
+
+        respondStatus(exchange, 404, "NotFound");
+        return "unsupported";
+    }
+
+    // ------------------------------------------------------------------------
+    //  KafkaTopic operands
+    // ------------------------------------------------------------------------
+
+    /** Lists the operands, using the position of the next operand as the continue token */
+    private void listTopics(HttpExchange exchange, String apiVersion, Map<String, String> params) throws IOException {
+        int from = params.containsKey("continue") ? Integer.parseInt(params.get("continue")) : 0;
+        int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : topicNames.length;
+        int to = (int) Math.min((long) from + limit, topicNames.length);
+
+        try (OutputStream body = respond(exchange, 200);
+             JsonGenerator out = mapper.getFactory().createGenerator(body, JsonEncoding.UTF8))
+        {
+            out.writeStartObject();
+            out.writeStringField("apiVersion", apiVersion);
+            out.writeStringField("kind", "KafkaTopicList");
+            out.writeObjectFieldStart("metadata");
+            out.writeStringField("resourceVersion", "1");
+            if (to < topicNames.length) {
+                out.writeStringField("continue", Integer.toString(to));
+            }
+            out.writeEndObject();
+            out.writeArrayFieldStart("items");
+            for (int id = from; id < to; id++) {
+                writeTopic(out, apiVersion, id);
+            }
+            out.writeEndArray();
+            out.writeEndObject();
+        }
+    }
+
+    private void getTopic(HttpExchange exchange, String apiVersion, String name) throws IOException {
+        Integer id = topicIds.get(name);
+        if (id == null) {
+            respondStatus(exchange, 404, "NotFound");
+            return;
+        }
+        respondTopic(exchange, apiVersion, id);
+    }
+
+    private void patchTopic(HttpExchange exchange, String apiVersion, String name, byte[] body) throws IOException {
+        Integer id = topicIds.get(name);
+        if (id == null) {
+            respondStatus(exchange, 404, "NotFound");
+            return;
+        }
+        JsonNode annotations = mapper.readTree(body).path("metadata").path("annotations");
+        synchronized (this) {
+            bytesIn[id] = annotations.path(ANNOTATION_BYTESIN).asText(bytesIn[id]);
+            bytesOut[id] = annotations.path(ANNOTATION_BYTESOUT).asText(bytesOut[id]);
+            timestamps[id] = annotations.path(ANNOTATION_TIMESTAMP).asText(timestamps[id]);
+        }
+        respondTopic(exchange, apiVersion, id);
+    }
+
+    private void respondTopic(HttpExchange exchange, String apiVersion, int id) throws IOException {
+        try (OutputStream response = respond(exchange, 200);
+             JsonGenerator out = mapper.getFactory().createGenerator(response, JsonEncoding.UTF8))
+        {
+            writeTopic(out, apiVersion, id);
+        }
+    }
+
+    /**
+     * Writes an operand with the fields that a KafkaTopic created with
+     *  kubectl and reconciled by an operator would have, so that responses
+     *  are a realistic size.
+     */
+    private void writeTopic(JsonGenerator out, String apiVersion, int id) throws IOException {
+        String name = topicNames[id];
+        out.writeStartObject();
+        out.writeStringField("apiVersion", apiVersion);
+        out.writeStringField("kind", "KafkaTopic");
+
+        out.writeObjectFieldStart("metadata");
+        out.writeStringField("name", name);
+        out.writeStringField("namespace", namespace);
+        out.writeStringField("uid", String.format("00000000-0000-0000-0000-%012d", id));
+        out.writeStringField("resourceVersion", Integer.toString(id + 1));
+        out.writeNumberField("generation", 1);
+        out.writeStringField("creationTimestamp", "2025-06-15T12:00:00Z");
+        out.writeArrayFieldStart("finalizers");
+        out.writeString(labelPrefix + "/topic-operator");
+        out.writeEndArray();
+        out.writeObjectFieldStart("labels");
+        out.writeStringField(labelPrefix + "/cluster", cluster);
+        out.writeEndObject();
+        out.writeObjectFieldStart("annotations");
+        out.writeStringField("kubectl.kubernetes.io/last-applied-configuration",
+            "{\"apiVersion\":\"" + apiVersion + "\",\"kind\":\"KafkaTopic\",\"metadata\":{\"name\":\"" + name + "\"}," +
+            "\"spec\":{\"partitions\":3,\"replicas\":3,\"config\":{\"retention.ms\":604800000}}}");
+        synchronized (this) {
+            out.writeStringField(ANNOTATION_BYTESIN, bytesIn[id]);
+            out.writeStringField(ANNOTATION_BYTESOUT, bytesOut[id]);
+            out.writeStringField(ANNOTATION_TIMESTAMP, timestamps[id]);
+        }
+        out.writeEndObject();
+        out.writeArrayFieldStart("managedFields");
+        out.writeStartObject();
+        out.writeStringField("apiVersion", apiVersion);
+        out.writeStringField("fieldsType", "FieldsV1");
+        out.writeStringField("manager", "kubectl-client-side-apply");
+        out.writeStringField("operation", "Update");
+        out.writeStringField("time", "2025-06-15T12:00:00Z");
+        out.writeObjectFieldStart("fieldsV1");
+        out.writeObjectFieldStart("f:spec");
+        out.writeObjectFieldStart("f:config");
+        out.writeObjectFieldStart("f:retention.ms");
+        out.writeEndObject();
+        out.writeEndObject();
+        out.writeObjectFieldStart("f:partitions");
+        out.writeEndObject();
+        out.writeObjectFieldStart("f:replicas");
+        out.writeEndObject();
+        out.writeEndObject();
+        out.writeEndObject();
+        out.writeEndObject();
+        out.writeEndArray();
+        out.writeEndObject();
+
+        out.writeObjectFieldStart("spec");
+        out.writeNumberField("partitions", 3);
+        out.writeNumberField("replicas", 3);
+        out.writeObjectFieldStart("config");
+        out.writeNumberField("retention.ms", 604800000);
+        out.writeEndObject();
+        out.writeEndObject();
+
+        out.writeObjectFieldStart("status");
+        out.writeArrayFieldStart("conditions");
+        out.writeStartObject();
+        out.writeStringField("lastTransitionTime", "2025-06-15T12:00:05Z");
+        out.writeStringField("status", "True");
+        out.writeStringField("type", "Ready");
+        out.writeEndObject();
+        out.writeEndArray();
+        out.writeNumberField("observedGeneration", 1);
+        out.writeStringField("topicName", name);
+        out.writeEndObject();
+
+        out.writeEndObject();
+    }
+
+
+    // ------------------------------------------------------------------------
+    //  ConfigMaps
+    // ------------------------------------------------------------------------
+
+    private synchronized void listConfigMaps(HttpExchange exchange, Map<String, String> params) throws IOException {
+        try (OutputStream body = respond(exchange, 200);
+             JsonGenerator out = mapper.getFactory().createGenerator(body, JsonEncoding.UTF8))
+        {
+            out.writeStartObject();
+            out.writeStringField("apiVersion", "v1");
+            out.writeStringField("kind", "ConfigMapList");
+            out.writeObjectFieldStart("metadata");
+            out.writeStringField("resourceVersion", "1");
+            out.writeEndObject();
+            out.writeArrayFieldStart("items");
+            for (String name : configMaps.keySet()) {
+                writeConfigMap(out, name);
+            }
+            out.writeEndArray();
+            out.writeEndObject();
+        }
+    }
+
+    private synchronized void getConfigMap(HttpExchange exchange, String name) throws IOException {
+        if (!configMaps.containsKey(name)) {
+            respondStatus(exchange, 404, "NotFound");
+            return;
+        }
+        respondConfigMap(exchange, 200, name);
+    }
+
+    private synchronized void patchConfigMap(HttpExchange exchange, String name, byte[] body) throws IOException {
+        Map<String, String> data = configMaps.get(name);
+        if (data == null) {
+            respondStatus(exchange, 404, "NotFound");
+            return;
+        }
+        // JSON merge patch - null values remove keys
+        for (Map.Entry<String, JsonNode> field : mapper.readTree(body).path("data").properties()) {
+            if (field.getValue().isNull()) {
+                data.remove(field.getKey());
+            }
+            else {
+                data.put(field.getKey(), field.getValue().asText());
+            }
+        }
+        respondConfigMap(exchange, 200, name);
+    }
+
+    private synchronized void createConfigMap(HttpExchange exchange, byte[] body) throws IOException {
+        JsonNode configMap = mapper.readTree(body);
+        String name = configMap.path("metadata").path("name").asText();
+        if (configMaps.containsKey(name)) {
+            respondStatus(exchange, 409, "AlreadyExists");
+            return;
+        }
+        Map<String, String> data = new HashMap<>();
+        configMap.path("data").properties().forEach(field -> data.put(field.getKey(), field.getValue().asText()));
+        configMaps.put(name, data);
+        respondConfigMap(exchange, 201, name);
+    }
+
+    private void respondConfigMap(HttpExchange exchange, int status, String name) throws IOException {
+        try (OutputStream body = respond(exchange, status);
+             JsonGenerator out = mapper.getFactory().createGenerator(body, JsonEncoding.UTF8))
+        {
+            writeConfigMap(out, name);
+        }
+    }
+
+    private void writeConfigMap(JsonGenerator out, String name) throws IOException {
+        out.writeStartObject();
+        out.writeStringField("apiVersion", "v1");
+        out.writeStringField("kind", "ConfigMap");
+        out.writeObjectFieldStart("metadata");
+        out.writeStringField("name", name);
+        out.writeStringField("namespace", namespace);
+        out.writeObjectFieldStart("labels");
+        out.writeStringField("dalelane.co.uk/topics-usage-cluster", cluster);
+        out.writeEndObject();
+        out.writeEndObject();
+        out.writeObjectFieldStart("data");
+        for (Map.Entry<String, String> entry : configMaps.get(name).entrySet()) {
+            out.writeStringField(entry.getKey(), entry.getValue());
+        }
+        out.writeEndObject();
+        out.writeEndObject();
+    }
+
+
+    // ------------------------------------------------------------------------
+
+    private void respondStatus(HttpExchange exchange, int code, String reason) throws IOException {
+        respond(exchange, code, ("{\"apiVersion\":\"v1\",\"kind\":\"Status\",\"status\":\"Failure\"," +
+                                 "\"reason\":\"" + reason + "\",\"code\":" + code + "}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, String> getQueryParameters(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0) {
+                    params.put(decode(param.substring(0, eq)), decode(param.substring(eq + 1)));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+}
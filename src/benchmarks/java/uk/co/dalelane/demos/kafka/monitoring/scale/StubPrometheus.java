@@ -0,0 +1,304 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.scale;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+
+
+
+/**
+ * Local stand-in for the Prometheus instant query API, which answers the
+ *  queries that the Monitor makes with generated results.
+ *
+ * Each topic has a counter for every metric on each broker. Results are
+ *  for each broker if the query aggregates by a broker label as well -
+ *  "sum by (namespace, cluster, topic, pod)" - or else the sum across the
+ *  brokers. A fraction of the topics are used in each cycle, which
+ *  increases their counters on every broker, and brokers can be restarted,
+ *  which resets all of their counters. Last increase queries return the
+ *  time of the last cycle in which each topic was used.
+ */
+public class StubPrometheus extends StubServer {
+
+    private static final Pattern METRIC = Pattern.compile("\\(\\s*([a-zA-Z_:][a-zA-Z0-9_:]*)\\{");
+    private static final Pattern CLUSTER_LABEL = Pattern.compile("sum by \\(namespace, ([a-zA-Z_][a-zA-Z0-9_]*), topic(?:, ([a-zA-Z_][a-zA-Z0-9_]*))?\\)");
+    private static final Pattern TOPIC_MATCHER = Pattern.compile("topic(!=|=~)\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    /** Bytes added to a topic's counter on each broker in a cycle where it is used */
+    private static final long BYTES_PER_CYCLE = 1024;
+
+    private final JsonFactory json = new JsonFactory();
+
+    private final String namespace;
+    private final String cluster;
+    private final int brokers;
+    private final double usedFraction;
+    private final long initialUsage;
+
+    private final String[] topicNames;
+    private final Map<String, Integer> topicIds = new HashMap<>();
+
+    /** Counters for each metric, for each topic on each broker - [topic * brokers + broker] */
+    private final Map<String, long[]> counters = new ConcurrentHashMap<>();
+
+    /** Time of the last cycle in which each topic was used, in epoch seconds */
+    private final long[] lastUsed;
+
+    /** Results are generated without locking, as cycles only move on between polls */
+    private volatile int cycle = 0;
+    private volatile long cycleTime = System.currentTimeMillis() / 1000;
+    private volatile BitSet usedThisCycle = new BitSet();
+
+
+    /**
+     * @param brokers number of brokers that each topic has series on
+     * @param usedFraction fraction of the topics that are used in each cycle
+     * @param initialUsage total across the brokers that every counter starts with
+     */
+    public StubPrometheus(String namespace, String cluster, List<String> topics, int brokers, double usedFraction, long initialUsage, long latencyMs) throws IOException {
+        super("stub-prometheus", latencyMs);
+        this.namespace = namespace;
+        this.cluster = cluster;
+        this.brokers = brokers;
+        this.usedFraction = usedFraction;
+        this.initialUsage = initialUsage;
+
+        topicNames = topics.toArray(new String[0]);
+        for (int id = 0; id < topicNames.length; id++) {
+            topicIds.put(topicNames[id], id);
+        }
+        lastUsed = new long[topicNames.length];
+    }
+
+
+    /**
+     * Moves to the next cycle, increasing the counters of the topics that
+     *  are used in it. The same topics are used in a cycle every time the
+     *  stub is run.
+     */
+    public synchronized void nextCycle() {
+        cycle++;
+        cycleTime = System.currentTimeMillis() / 1000;
+        usedThisCycle = new BitSet(topicNames.length);
+        for (int id = 0; id < topicNames.length; id++) {
+            if (isUsed(id, cycle)) {
+                usedThisCycle.set(id);
+                lastUsed[id] = cycleTime;
+                for (long[] values : counters.values()) {
+                    for (int broker = 0; broker < brokers; broker++) {
+                        values[(id * brokers) + broker] += BYTES_PER_CYCLE;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Resets all of the counters on a broker, as happens when it restarts.
+     *  Topics used in the current cycle have already been counted, so are
+     *  left with the bytes for this cycle.
+     */
+    public synchronized void restartBroker(int broker) {
+        for (long[] values : counters.values()) {
+            for (int id = 0; id < topicNames.length; id++) {
+                values[(id * brokers) + broker] = usedThisCycle.get(id) ? BYTES_PER_CYCLE : 0;
+            }
+        }
+    }
+
+    /** Number of topics used in the current cycle */
+    public synchronized int getUsedCount() {
+        return usedThisCycle.cardinality();
+    }
+
+
+    @Override
+    protected String handle(HttpExchange exchange, byte[] body) throws IOException {
+        String query = getQuery(exchange, body);
+        if (!exchange.getRequestURI().getPath().equals("/api/v1/query") || query == null) {
+            respond(exchange, 404, new byte[0]);
+            return "unsupported";
+        }
+
+        Matcher clusterLabel = CLUSTER_LABEL.matcher(query);
+        Matcher metric = METRIC.matcher(query);
+        Matcher topicMatcher = TOPIC_MATCHER.matcher(query);
+        if (!clusterLabel.find() || !metric.find() || !topicMatcher.find()) {
+            respond(exchange, 400, "{\"status\":\"error\",\"errorType\":\"bad_data\",\"error\":\"unsupported query\"}".getBytes(StandardCharsets.UTF_8));
+            return "unsupported";
+        }
+        IntPredicate selected = createTopicFilter(topicMatcher.group(1), unescapeLabelValue(topicMatcher.group(2)));
+
+        if (query.startsWith("max_over_time(")) {
+            writeResults(exchange, clusterLabel.group(1), null, selected, false, null);
+            return "last increase query";
+        }
+        writeResults(exchange, clusterLabel.group(1), clusterLabel.group(2), selected, true, counters.computeIfAbsent(metric.group(1), this::createCounters));
+        return "query";
+    }
+
+
+    /**
+     * Writes a result for every selected topic - with the provided counters
+     *  (for each broker if there is a broker label, or else the total across
+     *  the brokers), or (for last increase queries) the time the topic was
+     *  last used, for topics that have been used.
+     */
+    private void writeResults(HttpExchange exchange, String clusterLabel, String brokerLabel, IntPredicate selected, boolean totals, long[] values) throws IOException {
+        try (OutputStream body = respond(exchange, 200);
+             JsonGenerator out = json.createGenerator(body, JsonEncoding.UTF8))
+        {
+            out.writeStartObject();
+            out.writeStringField("status", "success");
+            out.writeObjectFieldStart("data");
+            out.writeStringField("resultType", "vector");
+            out.writeArrayFieldStart("result");
+            for (int id = 0; id < topicNames.length; id++) {
+                if (!selected.test(id) || (!totals && lastUsed[id] == 0)) {
+                    continue;
+                }
+                if (!totals) {
+                    writeResult(out, clusterLabel, id, null, null, lastUsed[id]);
+                }
+                else if (brokerLabel != null) {
+                    for (int broker = 0; broker < brokers; broker++) {
+                        writeResult(out, clusterLabel, id, brokerLabel, cluster + "-kafka-" + broker, values[(id * brokers) + broker]);
+                    }
+                }
+                else {
+                    long value = 0;
+                    for (int broker = 0; broker < brokers; broker++) {
+                        value += values[(id * brokers) + broker];
+                    }
+                    writeResult(out, clusterLabel, id, null, null, value);
+                }
+            }
+            out.writeEndArray();
+            out.writeEndObject();
+            out.writeEndObject();
+        }
+    }
+
+    private void writeResult(JsonGenerator out, String clusterLabel, int id, String brokerLabel, String broker, long value) throws IOException {
+        out.writeStartObject();
+        out.writeObjectFieldStart("metric");
+        out.writeStringField(clusterLabel, cluster);
+        out.writeStringField("namespace", namespace);
+        out.writeStringField("topic", topicNames[id]);
+        if (brokerLabel != null) {
+            out.writeStringField(brokerLabel, broker);
+        }
+        out.writeEndObject();
+        out.writeArrayFieldStart("value");
+        out.writeNumber(cycleTime);
+        out.writeString(Long.toString(value));
+        out.writeEndArray();
+        out.writeEndObject();
+    }
+
+    private synchronized long[] createCounters(String metric) {
+        long[] values = new long[topicNames.length * brokers];
+        for (int id = 0; id < topicNames.length; id++) {
+            // spread the initial usage across the brokers
+            for (int broker = 0; broker < brokers; broker++) {
+                values[(id * brokers) + broker] = initialUsage / brokers + (broker < initialUsage % brokers ? 1 : 0);
+            }
+            // include the usage in every cycle so far
+            for (int past = 1; past <= cycle; past++) {
+                if (isUsed(id, past)) {
+                    for (int broker = 0; broker < brokers; broker++) {
+                        values[(id * brokers) + broker] += BYTES_PER_CYCLE;
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    private boolean isUsed(int id, int inCycle) {
+        long hash = (id * 0x9E3779B97F4A7C15L) ^ (inCycle * 0xC2B2AE3D27D4EB4FL);
+        hash ^= (hash >>> 33);
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= (hash >>> 33);
+        return (hash >>> 11) * 0x1.0p-53 < usedFraction;
+    }
+
+
+    /**
+     * Returns a filter for the topics selected by the label matchers that
+     *  the Monitor uses - every topic, topics starting with a character in
+     *  a class, or an alternation of topic names.
+     */
+    private IntPredicate createTopicFilter(String operator, String value) {
+        if (operator.equals("!=")) {
+            return id -> true;
+        }
+        if (value.startsWith("[") && value.endsWith("].*")) {
+            String chars = value.substring(1, value.length() - 3);
+            return id -> chars.indexOf(topicNames[id].charAt(0)) != -1;
+        }
+        BitSet selected = new BitSet(topicNames.length);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i <= value.length(); i++) {
+            if (i == value.length() || value.charAt(i) == '|') {
+                Integer id = topicIds.get(name.toString());
+                if (id != null) {
+                    selected.set(id);
+                }
+                name.setLength(0);
+            }
+            else if (value.charAt(i) == '\\' && i + 1 < value.length()) {
+                name.append(value.charAt(++i));
+            }
+            else {
+                name.append(value.charAt(i));
+            }
+        }
+        return selected::get;
+    }
+
+    private static String unescapeLabelValue(String value) {
+        return value.replace("\\\"", "\"").replace("\\\\", "\\");
+    }
+
+    private static String getQuery(HttpExchange exchange, byte[] body) {
+        String params = exchange.getRequestMethod().equals("POST") ?
+            new String(body, StandardCharsets.UTF_8) :
+            exchange.getRequestURI().getRawQuery();
+        if (params != null) {
+            for (String param : params.split("&")) {
+                if (param.startsWith("query=")) {
+                    return URLDecoder.decode(param.substring(6), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return null;
+    }
+}
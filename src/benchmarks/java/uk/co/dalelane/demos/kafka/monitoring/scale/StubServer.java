@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.scale;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server standing in for an API that the Monitor uses, which
+ *  counts the requests it receives and the bytes transferred, and can add
+ *  a fixed delay to every response.
+ */
+public abstract class StubServer implements AutoCloseable {
+
+    static {
+        // small responses are otherwise held back waiting for ACKs of the
+        //  previous write, adding tens of milliseconds to every request
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMs;
+
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+
+
+    protected StubServer(String name, long latencyMs) throws IOException {
+        this.latencyMs = latencyMs;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(16, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::dispatch);
+        server.start();
+    }
+
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /** Returns the requests and bytes transferred since the previous call */
+    public synchronized Stats takeStats() {
+        Map<String, Long> counts = new TreeMap<>();
+        requests.forEach((kind, count) -> {
+            long value = count.sumThenReset();
+            if (value > 0) {
+                counts.put(kind, value);
+            }
+        });
+        return new Stats(counts, bytesReceived.sumThenReset(), bytesSent.sumThenReset());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Handles a request, using one of the respond methods.
+     *
+     * @return the kind of request, for counting
+     */
+    protected abstract String handle(HttpExchange exchange, byte[] body) throws IOException;
+
+    // ------------------------------------------------------------------------
+
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            bytesReceived.add(body.length);
+            if (latencyMs > 0) {
+                Thread.sleep(latencyMs);
+            }
+            String kind = handle(exchange, body);
+            requests.computeIfAbsent(kind, k -> new LongAdder()).increment();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException e) {
+            log.error("Failed to handle {} {}", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            exchange.sendResponseHeaders(500, -1);
+        }
+    }
+
+    protected void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        exchange.getResponseBody().write(body);
+        bytesSent.add(body.length);
+    }
+
+    /**
+     * Starts a response that is sent, in one piece with a fixed length,
+     *  when the returned stream is closed.
+     */
+    protected OutputStream respond(HttpExchange exchange, int status) {
+        return new ByteArrayOutputStream(8192) {
+            private boolean sent = false;
+
+            @Override
+            public void close() throws IOException {
+                if (!sent) {
+                    sent = true;
+                    respond(exchange, status, toByteArray());
+                }
+            }
+        };
+    }
+
+
+    /** Requests (by kind) and bytes transferred */
+    public static record Stats(Map<String, Long> requests, long bytesReceived, long bytesSent) {
+        public long totalRequests() {
+            return requests.values().stream().mapToLong(Long::longValue).sum();
+        }
+    }
+}
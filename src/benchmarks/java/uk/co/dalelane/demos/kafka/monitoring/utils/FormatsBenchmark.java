@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.utils;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.co.dalelane.demos.kafka.monitoring.BenchmarkFixtures;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FormatsBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    private int numTopics;
+
+    private double[] prometheusTimestamps;
+    private Instant[] instants;
+    private String[] annotations;
+
+
+    @Setup
+    public void setup() {
+        prometheusTimestamps = new double[numTopics];
+        instants = new Instant[numTopics];
+        annotations = new String[numTopics];
+
+        for (int i = 0; i < numTopics; i++) {
+            Instant timestamp = BenchmarkFixtures.NOW.minusMillis(i * 1_501L);
+            prometheusTimestamps[i] = timestamp.toEpochMilli() / 1000.0;
+            instants[i] = timestamp;
+            annotations[i] = Long.toString(timestamp.toEpochMilli());
+        }
+    }
+
+
+    @Benchmark
+    public void parseTimestamp(Blackhole blackhole) {
+        for (double timestamp : prometheusTimestamps) {
+            blackhole.consume(Formats.parseTimestamp(timestamp));
+        }
+    }
+
+    @Benchmark
+    public void convertInstantToString(Blackhole blackhole) {
+        for (Instant instant : instants) {
+            blackhole.consume(Formats.convertTimestamp(instant));
+        }
+    }
+
+    @Benchmark
+    public void convertStringToInstant(Blackhole blackhole) {
+        for (String annotation : annotations) {
+            blackhole.consume(Formats.convertTimestamp(annotation));
+        }
+    }
+}
@@ -13,20 +13,51 @@
  */
 package uk.co.dalelane.demos.kafka.monitoring;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.fabric8.kubernetes.api.model.DefaultKubernetesResourceList;
-import uk.co.dalelane.demos.kafka.monitoring.data.UsageUpdate;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import uk.co.dalelane.demos.kafka.monitoring.api.UsageApi;
+import uk.co.dalelane.demos.kafka.monitoring.api.UsageIndex;
+import uk.co.dalelane.demos.kafka.monitoring.data.CounterTracker;
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageHistory;
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageHistory.Activity;
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageSnapshot;
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageStore;
 import uk.co.dalelane.demos.kafka.monitoring.k8s.K8sClient;
+import uk.co.dalelane.demos.kafka.monitoring.k8s.PatchPipeline;
+import uk.co.dalelane.demos.kafka.monitoring.k8s.WritePolicy;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MetricsServer;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MonitorMetrics;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MonitorMetrics.Phase;
 import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.KafkaTopic;
+import uk.co.dalelane.demos.kafka.monitoring.prometheus.BrokerScraper;
 import uk.co.dalelane.demos.kafka.monitoring.prometheus.PrometheusClient;
 import uk.co.dalelane.demos.kafka.monitoring.prometheus.PrometheusData;
+import uk.co.dalelane.demos.kafka.monitoring.prometheus.PrometheusQueryEngine;
+import uk.co.dalelane.demos.kafka.monitoring.prometheus.RemoteWriteReceiver;
+import uk.co.dalelane.demos.kafka.monitoring.prometheus.UsageSource;
+import uk.co.dalelane.demos.kafka.monitoring.schedule.PollScheduler;
+import uk.co.dalelane.demos.kafka.monitoring.shard.ShardMembership;
 import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Threads;
 
 
 
@@ -34,46 +65,307 @@ public class TopicsUsageMonitor {
 
     private static final Logger log = LoggerFactory.getLogger(TopicsUsageMonitor.class);
 
-    private final PrometheusClient prometheus;
-    private final K8sClient<? extends KafkaTopic, ? extends DefaultKubernetesResourceList<? extends KafkaTopic>> kubernetes;
+    private final PrometheusQueryEngine queryEngine;
+
+    /** Where the latest usage info comes from - Prometheus, or the Kafka brokers */
+    private final UsageSource usageSource;
+    private final Map<Target, K8sClient<? extends KafkaTopic, ? extends DefaultKubernetesResourceList<? extends KafkaTopic>>> kubernetes;
+
+    /** Runs the Kubernetes reads and writes for each Kafka cluster, limited by workerPermits */
+    private final ExecutorService workers;
+    private final Semaphore workerPermits;
+
+    private final PollScheduler scheduler;
+
+    private final WritePolicy writePolicy;
+
+    private final ShardMembership shards;
+
+    private final UsageSnapshot snapshot;
+
+    /** Usage info for each Kafka cluster, kept between polls */
+    private final Map<Target, UsageStore> usage;
+
+    /** Latest counters from Prometheus for the topics in each Kafka cluster, to work out which have been used */
+    private final Map<Target, CounterTracker> counters;
+
+    /** Recent usage of the topics in each Kafka cluster (empty if not enabled) */
+    private final Map<Target, UsageHistory> history;
+
+    /**
+     * Kafka clusters where the usage info is known to match what is stored
+     *  in Kubernetes - restored from the snapshot after a restart, or kept
+     *  from the previous poll - so that the annotations don't need to be
+     *  read again.
+     */
+    private final Set<Target> upToDate = ConcurrentHashMap.newKeySet();
+
+    /** Whether the first poll is still to run - which can start from the snapshot */
+    private boolean firstPoll = true;
+
+    private final MonitorMetrics metrics;
+
+    /** Serves the usage info over HTTP (null if not enabled) */
+    private final UsageApi usageApi;
 
     private final Config config;
 
 
     public TopicsUsageMonitor() throws MonitoringException {
-        config = new Config();
+        this(new Config(), new MonitorMetrics());
 
-        prometheus = new PrometheusClient(config);
-        kubernetes = K8sClient.create(config);
+        if (config.getMetricsPort() > 0) {
+            MetricsServer server = new MetricsServer(config, metrics);
+            if (usageApi != null) {
+                server.addContext(UsageApi.PATH, usageApi);
+            }
+        }
+        else if (usageApi != null) {
+            log.warn("USAGE_API_ENABLED is ignored as METRICS_PORT is 0");
+        }
+    }
+
+    private TopicsUsageMonitor(Config config, MonitorMetrics metrics) throws MonitoringException {
+        this(config, metrics, new PatchPipeline(config, metrics));
+    }
+
+    private TopicsUsageMonitor(Config config, MonitorMetrics metrics, PatchPipeline patchPipeline) throws MonitoringException {
+        this(config, metrics, K8sClient.createKubernetesClient(patchPipeline), patchPipeline);
+    }
+
+    private TopicsUsageMonitor(Config config, MonitorMetrics metrics, KubernetesClient client, PatchPipeline patchPipeline) throws MonitoringException {
+        this(config,
+             metrics,
+             client,
+             new PrometheusQueryEngine(config, new PrometheusClient(config, metrics), metrics),
+             createK8sClients(config, client, patchPipeline));
+    }
+
+    /**
+     * Creates a Monitor using the provided clients. The Kubernetes client
+     *  is shared by everything other than the topics that needs to use the
+     *  Kubernetes API, and can be null if nothing else does.
+     */
+    TopicsUsageMonitor(Config config,
+                       MonitorMetrics metrics,
+                       KubernetesClient client,
+                       PrometheusQueryEngine queryEngine,
+                       Map<Target, K8sClient<? extends KafkaTopic, ? extends DefaultKubernetesResourceList<? extends KafkaTopic>>> kubernetes)
+        throws MonitoringException
+    {
+        this.config = config;
+        this.metrics = metrics;
+        this.queryEngine = queryEngine;
+        this.usageSource = createUsageSource(config, metrics, client, queryEngine);
+        this.kubernetes = kubernetes;
+
+        workers = Threads.newTaskExecutor("worker");
+        workerPermits = new Semaphore(Math.max(1, config.getWorkerThreads()));
+
+        scheduler = new PollScheduler(config);
+        writePolicy = new WritePolicy(config);
+
+        shards = new ShardMembership(config, client);
+        shards.start();
+
+        usage = new LinkedHashMap<>();
+        counters = new LinkedHashMap<>();
+        history = new LinkedHashMap<>();
+        for (Target target : config.getTargets()) {
+            usage.put(target, new UsageStore());
+            counters.put(target, new CounterTracker());
+            if (config.getHistoryPolls() > 0) {
+                history.put(target, new UsageHistory(config.getHistoryPolls()));
+            }
+        }
+        usageApi = config.isUsageApiEnabled() ? new UsageApi(config.getTargets(), history) : null;
+
+        if (config.getSnapshotFile() != null && !config.getSnapshotFile().isEmpty()) {
+            snapshot = new UsageSnapshot(config);
+            upToDate.addAll(snapshot.load(usage));
+            // the snapshot may have been written when the topics were
+            //  shared differently between replicas
+            usage.values().forEach(shards::retainOwned);
+        }
+        else {
+            snapshot = null;
+        }
+    }
+
+    private static UsageSource createUsageSource(Config config, MonitorMetrics metrics, KubernetesClient client, PrometheusQueryEngine queryEngine) throws MonitoringException {
+        switch (config.getUsageSource()) {
+            case BROKERS:
+                return new BrokerScraper(config, client);
+            case REMOTE_WRITE:
+                return new RemoteWriteReceiver(config, metrics);
+            default:
+                return queryEngine;
+        }
+    }
+
+    private static Map<Target, K8sClient<? extends KafkaTopic, ? extends DefaultKubernetesResourceList<? extends KafkaTopic>>> createK8sClients(Config config, KubernetesClient client, PatchPipeline patchPipeline) {
+        log.debug("Creating Kubernetes client for accessing Kafka topic operands");
+
+        Map<Target, K8sClient<? extends KafkaTopic, ? extends DefaultKubernetesResourceList<? extends KafkaTopic>>> kubernetes = new LinkedHashMap<>();
+        for (Target target : config.getTargets()) {
+            kubernetes.put(target, K8sClient.create(config, target, client, patchPipeline));
+        }
+        return kubernetes;
     }
 
     public void run() throws MonitoringException {
         while (true) {
-            log.info("updating");
+            poll();
+            pause();
+        }
+    }
+
+    /**
+     * Runs a single poll - retrieving the latest usage info, and storing
+     *  any changes in Kubernetes.
+     */
+    void poll() throws MonitoringException {
+        long cycleStart = System.nanoTime();
 
-            // retrieve current known usage from Kubernetes annotations
-            Map<String, UsageUpdate> knownTopics = kubernetes.getTopicsWithUsageTimestamps();
+        // if replicas have joined or left, this replica's topics need
+        //  to be read again
+        boolean rebalanced = shards.refresh();
+        if (rebalanced) {
+            metrics.addShardRebalances(1);
+        }
 
-            // get the latest usage data from Prometheus
-            Map<String, UsageUpdate> updates = new HashMap<>();
-            updates = runQuery(config.getBytesInMetric(),  updates, knownTopics);
-            updates = runQuery(config.getBytesOutMetric(), updates, knownTopics);
+        boolean fullPoll = scheduler.isFullPoll() || rebalanced;
+        log.info(fullPoll ? "updating" : "updating active topics");
 
-            // store any usage changes in Kubernetes annotations
-            kubernetes.submitUpdates(updates);
+        // full polls re-read everything from Kubernetes to pick up new
+        //  and deleted topics - except straight after a restart, where
+        //  the snapshot is used
+        if ((fullPoll && !firstPoll) || rebalanced) {
+            upToDate.clear();
+        }
+        firstPoll = false;
 
-            // reset before next poll
-            log.info("update complete");
-            knownTopics = null;
-            updates = null;
-            pause();
+        // decide which topics to query for before the Kubernetes reads
+        //  start replacing the usage info
+        List<Target> allTargets = config.getTargets();
+        Collection<String> queryTopics = getQueryTopics(allTargets, fullPoll, rebalanced);
+
+        // retrieve current known usage from Kubernetes annotations, while
+        //  getting the latest usage data from Prometheus - results are
+        //  recorded by topic name as they are parsed, and matched with the
+        //  topics read from Kubernetes once both have finished
+        long phaseStart = System.nanoTime();
+        AtomicLong readsEnd = new AtomicLong(phaseStart);
+        Map<Target, Future<Integer>> reads = submitForEachTarget(allTargets, target -> {
+            UsageStore store = usage.get(target);
+            if (!upToDate.remove(target)) {
+                kubernetes.get(target).readTopics(store, shards::isOwned);
+            }
+            readsEnd.accumulateAndGet(System.nanoTime(), Math::max);
+            return store.size();
+        });
+
+        try {
+            runQueries(allTargets, queryTopics, (target, query, result) -> processResult(query, result, counters.get(target)));
+        }
+        catch (MonitoringException e) {
+            reads.values().forEach(read -> read.cancel(true));
+            throw e;
+        }
+        metrics.recordPhase(Phase.PROMETHEUS_QUERY, System.nanoTime() - phaseStart);
+
+        Map<Target, Integer> read = awaitForEachTarget(reads);
+        metrics.recordPhase(Phase.KUBERNETES_READ, readsEnd.get() - phaseStart);
+        metrics.addTopicsSeen(read.values().stream().mapToLong(Integer::longValue).sum());
+
+        // the rest of the poll depends on both the reads and the queries
+        List<Target> targets = new ArrayList<>(read.keySet());
+        for (Target target : targets) {
+            counters.get(target).endPoll(usage.get(target));
+        }
+        if (config.isPreciseActivityEnabled()) {
+            phaseStart = System.nanoTime();
+            runLastIncreaseQueries(targets, fullPoll);
+            metrics.recordPhase(Phase.PROMETHEUS_LAST_INCREASE, System.nanoTime() - phaseStart);
+        }
+        metrics.addTopicsChanged(targets.stream().mapToLong(target -> usage.get(target).getChangedCount()).sum());
+        metrics.addUpdatesDeferred(targets.stream().mapToLong(target -> writePolicy.apply(usage.get(target))).sum());
+        if (!history.isEmpty()) {
+            recordHistory(targets);
+        }
+        if (usageApi != null) {
+            usageApi.update(new UsageIndex(usage, System.currentTimeMillis()));
+        }
+
+        // store any usage changes in Kubernetes annotations
+        phaseStart = System.nanoTime();
+        Map<Target, Boolean> written = forEachTarget(targets,
+            target -> kubernetes.get(target).submitUpdates(usage.get(target)));
+        metrics.recordPhase(Phase.KUBERNETES_WRITE, System.nanoTime() - phaseStart);
+
+        // clusters with failed updates are read from Kubernetes again in
+        //  the next poll, and are left out of the snapshot
+        Map<Target, UsageStore> stored = new LinkedHashMap<>();
+        for (Map.Entry<Target, Boolean> result : written.entrySet()) {
+            if (result.getValue()) {
+                usage.get(result.getKey()).markChangesStored();
+                usageSource.changesStored(result.getKey());
+                stored.put(result.getKey(), usage.get(result.getKey()));
+            }
+        }
+        if (config.getActiveTopicSeconds() > 0) {
+            upToDate.addAll(stored.keySet());
+        }
+        if (snapshot != null) {
+            saveSnapshot(stored);
+        }
+
+        // only count the poll as successful if every cluster was updated
+        if (stored.size() == config.getTargets().size()) {
+            metrics.recordCycle(System.nanoTime() - cycleStart);
+        }
+
+        log.info("update complete");
+    }
+
+
+    /**
+     * Adds the usage in this poll to the history for each of the provided
+     *  Kafka clusters, and updates the metrics for how many topics are
+     *  being used.
+     */
+    private void recordHistory(List<Target> targets) {
+        long now = System.currentTimeMillis();
+        long idleMs = config.getIdleTopicDays() * 24L * 60 * 60 * 1000;
+
+        Map<Activity, Long> counts = new EnumMap<>(Activity.class);
+        long historyBytes = 0;
+        for (Target target : config.getTargets()) {
+            UsageHistory topicsHistory = history.get(target);
+            if (targets.contains(target)) {
+                topicsHistory.record(usage.get(target), now);
+            }
+            topicsHistory.countByActivity(usage.get(target), idleMs, now)
+                .forEach((activity, count) -> counts.merge(activity, count.longValue(), Long::sum));
+            historyBytes += topicsHistory.getSizeInBytes();
+        }
+        metrics.setTopicActivity(counts);
+        metrics.setHistorySizeBytes(historyBytes);
+    }
+
+    private void saveSnapshot(Map<Target, UsageStore> stored) {
+        try {
+            snapshot.save(stored);
+        }
+        catch (MonitoringException e) {
+            log.error("Failed to save usage snapshot", e);
         }
     }
 
 
     private void pause() {
         try {
-            Thread.sleep(config.getPollIntervalSeconds() * 1000);
+            scheduler.awaitNextPoll();
         }
         catch (InterruptedException e) {
             log.debug("Interrupt", e);
@@ -81,64 +373,171 @@ public class TopicsUsageMonitor {
     }
 
 
-    private Map<String, UsageUpdate> runQuery(String query, Map<String, UsageUpdate> usageUpdates, Map<String, UsageUpdate> knownTopics) throws MonitoringException {
-        log.debug("Retrieving latest {} info from Prometheus", query);
-        List<PrometheusData> data = prometheus.query(query);
-        for (PrometheusData result : data) {
-            if (knownTopics.containsKey(result.topic())) {
-                if (usageUpdates.containsKey(result.topic())) {
-                    // we have seen this topic before, and have already decided that we
-                    //  need to submit an update for this topic - just need to add the
-                    //  value from this query
-                    UsageUpdate topicUsageInfo = usageUpdates.get(result.topic());
-                    applyUpdate(topicUsageInfo, query, result);
+    /**
+     * Runs the provided task for each of the Kafka clusters on the shared
+     *  workers, returning the results for the clusters where the task
+     *  was successful. Failures are logged, and the cluster is skipped for
+     *  the rest of this poll.
+     */
+    private <R> Map<Target, R> forEachTarget(Collection<Target> targets, TargetTask<R> task) throws MonitoringException {
+        return awaitForEachTarget(submitForEachTarget(targets, task));
+    }
+
+    /**
+     * Starts running the provided task for each of the Kafka clusters on the
+     *  shared workers, with no more than WORKER_THREADS running at once.
+     */
+    private <R> Map<Target, Future<R>> submitForEachTarget(Collection<Target> targets, TargetTask<R> task) {
+        Map<Target, Future<R>> pending = new LinkedHashMap<>();
+        for (Target target : targets) {
+            pending.put(target, workers.submit(() -> {
+                workerPermits.acquire();
+                try {
+                    return task.run(target);
                 }
-                else {
-                    // we have seen this topic before - but not yet decided that the data has changed
-                    UsageUpdate topicUsageInfo = knownTopics.get(result.topic());
-                    if (dataHasChanged(topicUsageInfo, query, result)) {
-                        applyUpdate(topicUsageInfo, query, result);
-                        usageUpdates.put(result.topic(), topicUsageInfo);
-                    }
-                    // else {
-                    //     // metrics data already in k8s matches value from Prometheus
-                    // }
+                finally {
+                    workerPermits.release();
                 }
+            }));
+        }
+        return pending;
+    }
+
+    /**
+     * Waits for the tasks started by {@link #submitForEachTarget}, returning
+     *  the results for the clusters where the task was successful.
+     */
+    private <R> Map<Target, R> awaitForEachTarget(Map<Target, Future<R>> pending) throws MonitoringException {
+        Map<Target, R> results = new LinkedHashMap<>();
+        for (Map.Entry<Target, Future<R>> result : pending.entrySet()) {
+            try {
+                results.put(result.getKey(), result.getValue().get());
+            }
+            catch (ExecutionException e) {
+                log.error("Failed to update {}", result.getKey(), e.getCause());
+            }
+            catch (InterruptedException e) {
+                pending.values().forEach(future -> future.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new MonitoringException("Interrupted", e);
             }
-            // else {
-            //     // not seen this topic before - prometheus has usage data
-            //     //  about a topic not known in Kubernetes - ignore
-            // }
         }
+        return results;
+    }
 
-        return usageUpdates;
+    @FunctionalInterface
+    private interface TargetTask<R> {
+        R run(Target target) throws Exception;
     }
 
 
+    /**
+     * Returns the topics to retrieve the latest usage info for - every
+     *  topic (null) in a full poll, or only active topics otherwise.
+     *
+     * If the topics are shared with other replicas, full polls only query
+     *  for the topics in this replica's shard. Straight after the topics
+     *  have been re-divided, that isn't known until they have been read,
+     *  so every topic is queried.
+     *
+     * Sources that only provide changed topics are asked for every topic
+     *  (in this replica's shard) in every poll.
+     */
+    private Collection<String> getQueryTopics(List<Target> targets, boolean fullPoll, boolean rebalanced) {
+        boolean allTopics = fullPoll || usageSource.isIncremental();
+        if (allTopics && (rebalanced || !shards.isSharded())) {
+            return null;
+        }
+
+        Set<String> topics = new TreeSet<>();
+        for (Target target : targets) {
+            UsageStore store = usage.get(target);
+            if (allTopics) {
+                for (int id = 0; id < store.limit(); id++) {
+                    if (store.getTopicName(id) != null) {
+                        topics.add(store.getTopicName(id));
+                    }
+                }
+            }
+            else {
+                topics.addAll(scheduler.getActiveTopics(store));
+            }
+        }
+        log.debug("{} {} topics", topics.size(), allTopics ? "shard" : "active");
+        return topics;
+    }
 
     /**
-     * Returns true if the value retrieved from Prometheus (value) is
-     *  different from the data stored for the topic in Kubernetes (topicUsageInfo).
+     * Retrieves the latest usage info from Prometheus for the provided
+     *  topics, or for every topic if null.
      */
-    private boolean dataHasChanged(UsageUpdate topicUsageInfo, String query, PrometheusData data) {
-        if (query.equals(config.getBytesInMetric())) {
-            return data.totalbytes() != topicUsageInfo.getLastBytesIn();
+    private void runQueries(List<Target> targets, Collection<String> topics, UsageSource.ResultHandler handler) throws MonitoringException {
+        log.debug("Retrieving latest usage info from {}", config.getUsageSource());
+        List<String> metricNames = List.of(config.getBytesInMetric(), config.getBytesOutMetric());
+
+        if (topics == null) {
+            usageSource.query(targets, metricNames, handler);
         }
-        else if (query.equals(config.getBytesOutMetric())) {
-            return data.totalbytes() != topicUsageInfo.getLastBytesOut();
+        else {
+            usageSource.query(targets, metricNames, topics, handler);
+        }
+    }
+
+
+    /**
+     * Replaces the timestamps for changed topics - currently the time of
+     *  the Prometheus sample that showed the change - with the time that
+     *  the topic was actually last used, according to the metrics history.
+     */
+    private void runLastIncreaseQueries(List<Target> targets, boolean fullPoll) throws MonitoringException {
+        int numTopics = 0;
+        Set<String> changedTopics = new TreeSet<>();
+        for (Target target : targets) {
+            UsageStore store = usage.get(target);
+            numTopics += store.size();
+            for (int id = store.nextChanged(0); id >= 0; id = store.nextChanged(id + 1)) {
+                changedTopics.add(store.getTopicName(id));
+            }
+        }
+        if (changedTopics.isEmpty()) {
+            return;
+        }
+        log.debug("Retrieving last activity times for {} topics from Prometheus", changedTopics.size());
+
+        // if most topics have changed, it is cheaper to query for all topics
+        //  than to list them all in the queries
+        queryEngine.queryLastIncrease(targets,
+                                      List.of(config.getBytesInMetric(), config.getBytesOutMetric()),
+                                      changedTopics.size() > (numTopics / 2) ? null : changedTopics,
+                                      scheduler.getLookbackSeconds(fullPoll),
+                                      config.getActivityResolutionSeconds(),
+                                      (target, query, result) -> processLastIncrease(result, usage.get(target)));
+    }
+
+    /**
+     * Uses the time a topic last increased as the timestamp, if the topic
+     *  has changed usage in this poll. Topics without a result keep the
+     *  time of the Prometheus sample that showed the change.
+     */
+    void processLastIncrease(PrometheusData result, UsageStore store) {
+        int id = store.indexOf(result.topic());
+        if (id >= 0 && store.isChanged(id)) {
+            store.setTimestamp(id, result.totalbytes() * 1000);
         }
-        return false;
     }
 
     /**
-     * Updates topicUsageInfo with the latest information from Prometheus.
+     * Records a result from Prometheus, so that whether the topic has been
+     *  used can be worked out once all of the results for the poll have
+     *  been recorded, and the topics have been read from Kubernetes.
+     *  Results for topics that are not known in Kubernetes are dropped then.
      */
-    private void applyUpdate(UsageUpdate topicUsageInfo, String query, PrometheusData data) {
+    void processResult(String query, PrometheusData result, CounterTracker tracker) {
         if (query.equals(config.getBytesInMetric())) {
-            topicUsageInfo.setLastBytesIn(data.totalbytes(), data.timestamp());
+            tracker.record(result.topic(), CounterTracker.BYTES_IN, result.broker(), result.totalbytes(), result.timestamp());
         }
         else if (query.equals(config.getBytesOutMetric())) {
-            topicUsageInfo.setLastBytesOut(data.totalbytes(), data.timestamp());
+            tracker.record(result.topic(), CounterTracker.BYTES_OUT, result.broker(), result.totalbytes(), result.timestamp());
         }
     }
 
@@ -153,6 +552,9 @@ public class TopicsUsageMonitor {
         }
         catch (MonitoringException e) {
             log.error("Fatal exception", e);
+            // the metrics server's dispatcher thread would otherwise keep
+            //  the JVM running, so the pod wouldn't be restarted
+            System.exit(1);
         }
     }
 }
@@ -0,0 +1,245 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.api;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageHistory;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+
+
+/**
+ * HTTP API for the usage info held by the Monitor, so that clients can get
+ *  the last used time for every topic without reading every KafkaTopic
+ *  from Kubernetes.
+ *
+ *  GET /api/v1/topics
+ *      every topic, least recently used first
+ *  GET /api/v1/topics?idleSince=<time>
+ *      topics that have not been used since the provided time (epoch
+ *      milliseconds, or ISO-8601), least recently used first
+ *  GET /api/v1/topics/<namespace>/<cluster>/<topic>
+ *      a single topic
+ *  GET /api/v1/topics/<namespace>/<cluster>/<topic>?usageSince=<time>
+ *      a single topic, including the bytes in and out since the provided
+ *      time from the usage history (if it is being kept)
+ *
+ * Responses are written straight from the latest {@link UsageIndex} as
+ *  they are generated, so large listings are not held in memory.
+ */
+public class UsageApi implements HttpHandler {
+
+    private final Logger log = LoggerFactory.getLogger(UsageApi.class);
+
+    public static final String PATH = "/api/v1/topics";
+
+    private static final String CONTENT_TYPE = "application/json";
+
+    private final JsonFactory json = new JsonFactory();
+
+    /** Kafka clusters being monitored, to look up topics by namespace and cluster name */
+    private final List<Target> targets;
+
+    /** Usage history for each Kafka cluster (empty if history is not being kept) */
+    private final Map<Target, UsageHistory> history;
+
+    /** Usage info as at the end of the most recent poll */
+    private volatile UsageIndex index = UsageIndex.EMPTY;
+
+
+    public UsageApi(List<Target> targets, Map<Target, UsageHistory> history) {
+        this.targets = targets;
+        this.history = history;
+    }
+
+
+    /** Replaces the usage info that is served */
+    public void update(UsageIndex latest) {
+        index = latest;
+    }
+
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            // use the same index for the whole response, in case a poll
+            //  finishes while it is being written
+            UsageIndex current = index;
+
+            String path = exchange.getRequestURI().getRawPath();
+            if (path.equals(PATH) || path.equals(PATH + "/")) {
+                String idleSince = getQueryParameter(exchange, "idleSince");
+                if (idleSince == null) {
+                    writeTopics(exchange, current, current.size());
+                }
+                else {
+                    long time;
+                    try {
+                        time = parseTime(idleSince);
+                    }
+                    catch (DateTimeParseException e) {
+                        exchange.sendResponseHeaders(400, -1);
+                        return;
+                    }
+                    writeTopics(exchange, current, current.countLastUsedBefore(time));
+                }
+            }
+            else if (path.startsWith(PATH + "/")) {
+                String[] parts = path.substring(PATH.length() + 1).split("/");
+                int pos = parts.length == 3 ? lookup(current, decode(parts[0]), decode(parts[1]), decode(parts[2])) : -1;
+                if (pos == -1) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                String usageSince = getQueryParameter(exchange, "usageSince");
+                long since = -1;
+                if (usageSince != null) {
+                    try {
+                        since = parseTime(usageSince);
+                    }
+                    catch (DateTimeParseException e) {
+                        exchange.sendResponseHeaders(400, -1);
+                        return;
+                    }
+                }
+                writeTopic(exchange, current, pos, since);
+            }
+            else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+        }
+        catch (IOException e) {
+            // most likely the client disconnected before the response was complete
+            log.debug("Failed to write usage API response", e);
+        }
+    }
+
+
+    /** Writes the topics in the first count positions of the index */
+    private void writeTopics(HttpExchange exchange, UsageIndex current, int count) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, 0);
+        try (JsonGenerator out = json.createGenerator(exchange.getResponseBody(), JsonEncoding.UTF8)) {
+            out.writeStartObject();
+            out.writeNumberField("timestamp", current.getTimestamp());
+            out.writeArrayFieldStart("topics");
+            for (int pos = 0; pos < count; pos++) {
+                writeTopicObject(out, current, pos);
+            }
+            out.writeEndArray();
+            out.writeEndObject();
+        }
+    }
+
+    /**
+     * Writes a single topic, with its usage since the provided time (as
+     *  epoch milliseconds) if that isn't -1 and the topic has a history.
+     */
+    private void writeTopic(HttpExchange exchange, UsageIndex current, int pos, long sinceMs) throws IOException {
+        long[] usage = null;
+        if (sinceMs >= 0 && history.containsKey(current.getTarget(pos))) {
+            usage = history.get(current.getTarget(pos)).getUsageSince(current.getTopicName(pos), sinceMs);
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, 0);
+        try (JsonGenerator out = json.createGenerator(exchange.getResponseBody(), JsonEncoding.UTF8)) {
+            out.writeStartObject();
+            writeTopicFields(out, current, pos);
+            if (usage != null) {
+                out.writeObjectFieldStart("usageSince");
+                out.writeNumberField("time", sinceMs);
+                out.writeNumberField("bytesIn", usage[0]);
+                out.writeNumberField("bytesOut", usage[1]);
+                out.writeEndObject();
+            }
+            out.writeEndObject();
+        }
+    }
+
+    private void writeTopicObject(JsonGenerator out, UsageIndex current, int pos) throws IOException {
+        out.writeStartObject();
+        writeTopicFields(out, current, pos);
+        out.writeEndObject();
+    }
+
+    private void writeTopicFields(JsonGenerator out, UsageIndex current, int pos) throws IOException {
+        Target target = current.getTarget(pos);
+        out.writeStringField("namespace", target.getNamespace());
+        out.writeStringField("cluster", target.getCluster());
+        out.writeStringField("topic", current.getTopicName(pos));
+        out.writeNumberField("lastUsed", current.getLastUsed(pos));
+        out.writeNumberField("bytesIn", current.getBytesIn(pos));
+        out.writeNumberField("bytesOut", current.getBytesOut(pos));
+    }
+
+
+    private int lookup(UsageIndex current, String namespace, String cluster, String topicName) {
+        for (Target target : targets) {
+            if (target.getNamespace().equals(namespace) && target.getCluster().equals(cluster)) {
+                return current.indexOf(target, topicName);
+            }
+        }
+        return -1;
+    }
+
+    /** Accepts epoch milliseconds (as used in the KafkaTopic annotations) or an ISO-8601 instant */
+    private static long parseTime(String value) {
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            return Instant.parse(value).toEpochMilli();
+        }
+    }
+
+    private static String getQueryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0 && decode(param.substring(0, eq)).equals(name)) {
+                return decode(param.substring(eq + 1));
+            }
+        }
+        return null;
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+}
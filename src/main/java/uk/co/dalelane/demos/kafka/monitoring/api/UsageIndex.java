@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.api;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageStore;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+
+
+/**
+ * Read-only copy of the usage info for every topic, as at the end of a
+ *  poll, that can be queried while the next poll is running.
+ *
+ * Topics are held in order of when they were last used, so that finding
+ *  the topics that have not been used since a given time is a binary
+ *  search followed by reading the results - O(log n + k). Topics can also
+ *  be looked up by name, using the ids from the {@link UsageStore} for
+ *  each Kafka cluster, so that building the index doesn't need any maps
+ *  of topic names.
+ */
+public class UsageIndex {
+
+    /** Index with no topics, for before the first poll has completed */
+    public static final UsageIndex EMPTY = new UsageIndex(Map.of(), 0);
+
+    private final Target[] targets;
+    private final String[] topicNames;
+    private final long[] lastUsed;
+    private final long[] bytesIn;
+    private final long[] bytesOut;
+
+    /** Store for each Kafka cluster, and the position of the topic with each id in the store */
+    private final Map<Target, Positions> positions = new HashMap<>();
+
+    /** Time that the index was created, as epoch milliseconds */
+    private final long timestamp;
+
+
+    public UsageIndex(Map<Target, UsageStore> usage, long timestamp) {
+        this.timestamp = timestamp;
+
+        int size = usage.values().stream().mapToInt(UsageStore::size).sum();
+        targets = new Target[size];
+        topicNames = new String[size];
+        lastUsed = new long[size];
+        bytesIn = new long[size];
+        bytesOut = new long[size];
+
+        // list the topics in any order, then sort by last used time
+        UsageStore[] stores = new UsageStore[usage.size()];
+        Target[] storeTargets = new Target[usage.size()];
+        int[] entryStores = new int[size];
+        int[] entryIds = new int[size];
+        long[] entryLastUsed = new long[size];
+        int numStores = 0;
+        int next = 0;
+        for (Map.Entry<Target, UsageStore> entry : usage.entrySet()) {
+            UsageStore store = entry.getValue();
+            for (int id = 0; id < store.limit() && next < size; id++) {
+                if (store.getTopicName(id) != null) {
+                    entryStores[next] = numStores;
+                    entryIds[next] = id;
+                    entryLastUsed[next] = store.getTimestamp(id);
+                    next++;
+                }
+            }
+            int[] storePositions = new int[store.limit()];
+            Arrays.fill(storePositions, -1);
+            positions.put(entry.getKey(), new Positions(store, storePositions));
+            stores[numStores] = store;
+            storeTargets[numStores] = entry.getKey();
+            numStores++;
+        }
+
+        int[] order = new int[next];
+        for (int i = 0; i < next; i++) {
+            order[i] = i;
+        }
+        sort(order, entryLastUsed);
+
+        for (int pos = 0; pos < next; pos++) {
+            int i = order[pos];
+            UsageStore store = stores[entryStores[i]];
+            int id = entryIds[i];
+            targets[pos] = storeTargets[entryStores[i]];
+            topicNames[pos] = store.getTopicName(id);
+            lastUsed[pos] = entryLastUsed[i];
+            bytesIn[pos] = store.getBytesIn(id);
+            bytesOut[pos] = store.getBytesOut(id);
+            positions.get(targets[pos]).ids()[id] = pos;
+        }
+    }
+
+    /**
+     * Sorts the entries into the order of their keys (keeping the existing
+     *  order for entries with the same key), using a merge sort on the
+     *  primitive values so that no objects are created for each entry.
+     */
+    private static void sort(int[] entries, long[] keys) {
+        int length = entries.length;
+        int[] from = entries;
+        int[] to = new int[length];
+        for (int width = 1; width < length; width *= 2) {
+            for (int low = 0; low < length; low += 2 * width) {
+                int mid = Math.min(low + width, length);
+                int high = Math.min(low + (2 * width), length);
+                int i = low;
+                int j = mid;
+                int k = low;
+                if (mid < high && keys[from[mid - 1]] <= keys[from[mid]]) {
+                    // already in order
+                    System.arraycopy(from, low, to, low, high - low);
+                    continue;
+                }
+                while (i < mid && j < high) {
+                    to[k++] = keys[from[j]] < keys[from[i]] ? from[j++] : from[i++];
+                }
+                while (i < mid) {
+                    to[k++] = from[i++];
+                }
+                while (j < high) {
+                    to[k++] = from[j++];
+                }
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != entries) {
+            System.arraycopy(from, 0, entries, 0, length);
+        }
+    }
+
+
+    /** Number of topics in the index */
+    public int size() {
+        return topicNames.length;
+    }
+
+    /** Time that the index was created, as epoch milliseconds */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the position of the named topic, or -1 if it is not known.
+     *  A topic that has been deleted and created again since the index
+     *  was created is not found until the next index.
+     */
+    public int indexOf(Target target, String topicName) {
+        Positions cluster = positions.get(target);
+        if (cluster == null) {
+            return -1;
+        }
+        int id = cluster.store().indexOf(topicName);
+        if (id < 0 || id >= cluster.ids().length) {
+            return -1;
+        }
+        int pos = cluster.ids()[id];
+        return pos >= 0 && topicNames[pos].equals(topicName) ? pos : -1;
+    }
+
+    /**
+     * Returns the number of topics that were last used before the provided
+     *  time (as epoch milliseconds) - which are the topics in positions
+     *  from 0 up to (but not including) the returned value.
+     */
+    public int countLastUsedBefore(long time) {
+        int low = 0;
+        int high = lastUsed.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (lastUsed[mid] < time) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public Target getTarget(int pos) {
+        return targets[pos];
+    }
+
+    public String getTopicName(int pos) {
+        return topicNames[pos];
+    }
+
+    /** Time (as epoch milliseconds) that the topic was last known to be used, or 0 if it has never been used */
+    public long getLastUsed(int pos) {
+        return lastUsed[pos];
+    }
+
+    public long getBytesIn(int pos) {
+        return bytesIn[pos];
+    }
+
+    public long getBytesOut(int pos) {
+        return bytesOut[pos];
+    }
+
+
+    /** The store for a Kafka cluster, and the position of the topic with each id in the store (or -1) */
+    private record Positions(UsageStore store, int[] ids) {}
+}
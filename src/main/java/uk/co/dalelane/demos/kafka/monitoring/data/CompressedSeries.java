@@ -0,0 +1,298 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.data;
+
+import java.util.Arrays;
+
+
+
+/**
+ * A series of values, one per poll, that keeps only the most recent values
+ *  up to a fixed capacity - compressed as in Facebook's Gorilla time series
+ *  database.
+ *
+ * Values are encoded in blocks of {@link #BLOCK_SIZE}, held in a ring that
+ *  drops the oldest block when it is full. Each block starts from zero, so
+ *  that blocks can be decoded (and dropped) independently.
+ *
+ * Two encodings are available:
+ *  - XOR of each value with the previous one, for the per-poll usage, where
+ *    a repeated value takes a single bit. Blocks where every value is zero
+ *    (the usual case for idle topics) are not stored at all.
+ *  - delta-of-delta, for the times of each poll, where evenly spaced values
+ *    take a single bit.
+ *
+ * Not thread-safe.
+ */
+class CompressedSeries {
+
+    static final int BLOCK_SIZE = 64;
+
+    private final boolean deltaOfDelta;
+    private final int capacity;
+
+    /** Completed blocks, indexed by block number modulo the ring size - null if every value was zero */
+    private final long[][] blocks;
+    /** Number of values appended */
+    private long count = 0;
+
+    // the block being written
+    private long[] bits = new long[1];
+    private int bitPos = 0;
+    private boolean nonZero = false;
+    private long prev = 0;
+    private long prevDelta = 0;
+    private int prevLeading = -1;
+    private int prevTrailing = 0;
+
+
+    /**
+     * @param capacity number of the most recent values to keep
+     * @param deltaOfDelta true to use delta-of-delta encoding, false to use XOR encoding
+     */
+    CompressedSeries(int capacity, boolean deltaOfDelta) {
+        this.capacity = capacity;
+        this.deltaOfDelta = deltaOfDelta;
+        blocks = new long[(capacity + BLOCK_SIZE - 1) / BLOCK_SIZE + 1][];
+    }
+
+
+    void append(long value) {
+        if (deltaOfDelta) {
+            appendDeltaOfDelta(value);
+        }
+        else {
+            appendXor(value);
+        }
+        nonZero |= value != 0;
+        count++;
+
+        if (count % BLOCK_SIZE == 0) {
+            int block = (int) (((count / BLOCK_SIZE) - 1) % blocks.length);
+            blocks[block] = (nonZero || deltaOfDelta) ? Arrays.copyOf(bits, (bitPos + 63) >>> 6) : null;
+            bits = new long[1];
+            bitPos = 0;
+            nonZero = false;
+            prev = 0;
+            prevDelta = 0;
+            prevLeading = -1;
+        }
+    }
+
+    /** Number of values available - the most recent values, up to the capacity */
+    int size() {
+        return (int) Math.min(count, capacity);
+    }
+
+    /** Returns the values available, oldest first */
+    long[] toArray() {
+        int size = size();
+        long[] values = new long[size];
+
+        long first = count - size;
+        int written = 0;
+        for (long block = first / BLOCK_SIZE; written < size; block++) {
+            long blockStart = block * BLOCK_SIZE;
+            int numValues = (int) Math.min(BLOCK_SIZE, count - blockStart);
+            long[] blockBits = (blockStart + BLOCK_SIZE <= count) ? blocks[(int) (block % blocks.length)] : bits;
+
+            // skip values in the oldest block that are beyond the capacity
+            int skip = (int) Math.max(0, first - blockStart);
+            if (blockBits == null) {
+                written += numValues - skip;
+            }
+            else {
+                Reader reader = new Reader(blockBits);
+                for (int i = 0; i < numValues; i++) {
+                    long value = deltaOfDelta ? reader.nextDeltaOfDelta() : reader.nextXor();
+                    if (i >= skip) {
+                        values[written++] = value;
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    /** Approximate memory used, in bytes */
+    long getSizeInBytes() {
+        long size = 64 + (16 + 4L * blocks.length) + (16 + 8L * bits.length);
+        for (long[] block : blocks) {
+            if (block != null) {
+                size += 16 + 8L * block.length;
+            }
+        }
+        return size;
+    }
+
+
+    // ------------------------------------------------------------------------
+    //  encoding
+    // ------------------------------------------------------------------------
+
+    /**
+     * '0' if the value is the same as the previous one. Otherwise '1' and
+     *  then the meaningful bits of the XOR with the previous value: '0' if
+     *  they fit within the previous ones, or '1' with 6 bits of leading
+     *  zeros and 6 bits of length first.
+     */
+    private void appendXor(long value) {
+        long xor = value ^ prev;
+        prev = value;
+        if (xor == 0) {
+            write(0, 1);
+            return;
+        }
+
+        int leading = Long.numberOfLeadingZeros(xor);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+            write(0b10, 2);
+            write(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+        }
+        else {
+            int length = 64 - leading - trailing;
+            write(0b11, 2);
+            write(leading, 6);
+            write(length - 1, 6);
+            write(xor >>> trailing, length);
+            prevLeading = leading;
+            prevTrailing = trailing;
+        }
+    }
+
+    /**
+     * '0' if the difference from the previous value is the same as the last
+     *  difference. Otherwise the change in difference, with a prefix for
+     *  its size - '10' and 7 bits, '110' and 9 bits, '1110' and 12 bits, or
+     *  '1111' and 64 bits.
+     */
+    private void appendDeltaOfDelta(long value) {
+        long delta = value - prev;
+        long dod = delta - prevDelta;
+        prev = value;
+        prevDelta = delta;
+
+        if (dod == 0) {
+            write(0, 1);
+        }
+        else if (dod >= -64 && dod < 64) {
+            write(0b10, 2);
+            write(dod, 7);
+        }
+        else if (dod >= -256 && dod < 256) {
+            write(0b110, 3);
+            write(dod, 9);
+        }
+        else if (dod >= -2048 && dod < 2048) {
+            write(0b1110, 4);
+            write(dod, 12);
+        }
+        else {
+            write(0b1111, 4);
+            write(dod, 64);
+        }
+    }
+
+    /** Writes the lowest n bits of the value, most significant first */
+    private void write(long value, int n) {
+        if (n < 64) {
+            value &= (1L << n) - 1;
+        }
+        int word = bitPos >>> 6;
+        int free = 64 - (bitPos & 63);
+        if (word + 1 >= bits.length) {
+            bits = Arrays.copyOf(bits, Math.max(bits.length * 2, word + 2));
+        }
+        if (n <= free) {
+            bits[word] |= value << (free - n);
+        }
+        else {
+            bits[word] |= value >>> (n - free);
+            bits[word + 1] |= value << (64 - (n - free));
+        }
+        bitPos += n;
+    }
+
+
+    // ------------------------------------------------------------------------
+    //  decoding
+    // ------------------------------------------------------------------------
+
+    private static class Reader {
+        private final long[] bits;
+        private int pos = 0;
+
+        private long prev = 0;
+        private long prevDelta = 0;
+        private int prevLeading = 0;
+        private int prevTrailing = 0;
+
+        private Reader(long[] bits) {
+            this.bits = bits;
+        }
+
+        private long nextXor() {
+            if (read(1) == 0) {
+                return prev;
+            }
+            if (read(1) == 1) {
+                prevLeading = (int) read(6);
+                prevTrailing = 64 - prevLeading - ((int) read(6) + 1);
+            }
+            prev ^= read(64 - prevLeading - prevTrailing) << prevTrailing;
+            return prev;
+        }
+
+        private long nextDeltaOfDelta() {
+            long dod;
+            if (read(1) == 0) {
+                dod = 0;
+            }
+            else if (read(1) == 0) {
+                dod = signed(read(7), 7);
+            }
+            else if (read(1) == 0) {
+                dod = signed(read(9), 9);
+            }
+            else if (read(1) == 0) {
+                dod = signed(read(12), 12);
+            }
+            else {
+                dod = read(64);
+            }
+            prevDelta += dod;
+            prev += prevDelta;
+            return prev;
+        }
+
+        private long read(int n) {
+            int word = pos >>> 6;
+            int free = 64 - (pos & 63);
+            long value;
+            if (n <= free) {
+                value = bits[word] >>> (free - n);
+            }
+            else {
+                value = (bits[word] << (n - free)) | (bits[word + 1] >>> (64 - (n - free)));
+            }
+            pos += n;
+            return n == 64 ? value : value & ((1L << n) - 1);
+        }
+
+        private static long signed(long value, int n) {
+            return (value << (64 - n)) >> (64 - n);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.data;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+
+
+/**
+ * Works out which topics have actually been used from the bytes in and
+ *  bytes out counters reported for them, so that broker restarts and
+ *  partitions moving between brokers are not mistaken for usage.
+ *
+ * The latest value of each counter is kept for every topic on every
+ *  broker, and each new value is compared with the previous value from
+ *  the same broker:
+ *  - an increase is bytes moved
+ *  - a decrease means the counter was reset (e.g. the broker restarted),
+ *    so all of the new value is bytes moved since the reset
+ *  - a broker that hasn't reported the topic before (e.g. after a
+ *    partition reassignment) only gives a starting point
+ * Brokers that stop reporting a topic keep their last value, so they are
+ *  compared with where they left off if they report it again.
+ *
+ * Totals across all brokers (from sources that don't give per-broker
+ *  values) are compared in the same way, except that a decrease can't be
+ *  told apart from a broker going missing, so only gives a new starting
+ *  point.
+ *
+ * The bytes moved are added to a running total for each topic, which is
+ *  what is stored in Kubernetes - so stored usage only changes when a
+ *  topic is used. The first values for a topic (after the Monitor starts,
+ *  or after the topic was last in the {@link UsageStore}) have nothing to
+ *  be compared with, so their total across the brokers is compared with
+ *  the usage read from Kubernetes instead. A total that is ahead of the
+ *  stored usage is stored, but doesn't change when the topic was last
+ *  used - as it may only be because the stored usage was from a single
+ *  broker (before the queries returned a value for each broker).
+ *
+ * Values are recorded by topic name as they arrive, without needing the
+ *  usage info from Kubernetes, and are matched with the topics in the
+ *  store at the end of each poll. Topics are given their own ids, which
+ *  are reused for new topics once a topic is forgotten.
+ *
+ * Thread-safe, so that the results from concurrent queries can be
+ *  recorded as they are parsed.
+ */
+public class CounterTracker {
+
+    public static final int BYTES_IN = 0;
+    public static final int BYTES_OUT = 1;
+    private static final int NUM_METRICS = 2;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Position of the totals across all brokers in each topic's counters */
+    private static final int ALL_BROKERS = 0;
+
+    /** Counter value for a broker that hasn't reported the topic */
+    private static final long UNKNOWN = -1;
+
+    /** Position of each broker in each topic's counters (after ALL_BROKERS) */
+    private final Map<String, Integer> brokers = new HashMap<>();
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] topicNames = new String[INITIAL_CAPACITY];
+
+    /** Id of each topic in the store, as of the last poll - checked before use, as store ids are reused */
+    private int[] storeIds = new int[INITIAL_CAPACITY];
+
+    /** Latest value of each counter for each topic - [(broker * NUM_METRICS) + metric] */
+    private long[][] counters = new long[INITIAL_CAPACITY][];
+
+    /** Running total of the bytes moved, for each metric and topic */
+    private final long[][] totals = new long[NUM_METRICS][INITIAL_CAPACITY];
+
+    /** Time of the latest value that showed bytes moved, for each topic */
+    private long[] lastMoved = new long[INITIAL_CAPACITY];
+
+    /** Topics with counters that have nothing to be compared with yet */
+    private final BitSet firstSeen = new BitSet();
+
+    /** Topics with values recorded since the end of the last poll */
+    private final BitSet recorded = new BitSet();
+
+    /** Ids of forgotten topics that are available for reuse */
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int numFreeIds = 0;
+
+    /** Highest id that has been used (plus one) */
+    private int limit = 0;
+
+
+    /**
+     * Records the latest value of a counter for a topic.
+     *
+     * @param metric BYTES_IN or BYTES_OUT
+     * @param broker the broker that the value is from, or null if it is
+     *  the total across all of the brokers
+     * @param timestamp time of the value, as epoch milliseconds
+     */
+    public synchronized void record(String topicName, int metric, String broker, long value, long timestamp) {
+        int id = getId(topicName);
+        recorded.set(id);
+
+        long[] topicCounters = counters[id];
+        int pos = ((broker == null ? ALL_BROKERS : getBroker(broker)) * NUM_METRICS) + metric;
+        if (pos >= topicCounters.length) {
+            topicCounters = growCounters(id, pos);
+        }
+        long previous = topicCounters[pos];
+        topicCounters[pos] = value;
+
+        long moved;
+        if (previous == UNKNOWN || firstSeen.get(id)) {
+            moved = 0;
+        }
+        else if (value >= previous) {
+            moved = value - previous;
+        }
+        else {
+            moved = pos < NUM_METRICS ? 0 : value;
+        }
+
+        if (moved > 0) {
+            totals[metric][id] += moved;
+            lastMoved[id] = Math.max(lastMoved[id], timestamp);
+        }
+    }
+
+    /**
+     * Updates the usage info in the store with the running totals, marking
+     *  topics that have been used as changed. To be called once every value
+     *  for a poll has been recorded, and the store has been read from
+     *  Kubernetes.
+     *
+     * Usage info in the store that is behind the running total (e.g. because
+     *  storing it in Kubernetes failed) is updated as well, keeping the
+     *  time it was last used unless bytes have been moved since. Usage info that
+     *  is ahead of the running total (e.g. stored by another replica) is
+     *  used as the running total instead.
+     *
+     * Topics that are not in the store are compared with the usage read
+     *  from Kubernetes again if they are added to it, and are forgotten if
+     *  they had no values recorded in this poll either.
+     *
+     * @return number of topics marked as changed
+     */
+    public synchronized int endPoll(UsageStore store) {
+        int changed = 0;
+        for (int id = 0; id < limit; id++) {
+            String topicName = topicNames[id];
+            if (topicName == null) {
+                continue;
+            }
+            int storeId = getStoreId(store, id, topicName);
+            if (storeId < 0) {
+                if (recorded.get(id)) {
+                    restart(id);
+                }
+                else {
+                    forget(id);
+                }
+                continue;
+            }
+
+            long storedIn = store.getBytesIn(storeId);
+            long storedOut = store.getBytesOut(storeId);
+            if (firstSeen.get(id)) {
+                // the first totals are only a new starting point, so they
+                //  are stored (if ahead) without changing the last-used time
+                totals[BYTES_IN][id] = sumCounters(id, BYTES_IN);
+                totals[BYTES_OUT][id] = sumCounters(id, BYTES_OUT);
+                lastMoved[id] = 0;
+                firstSeen.clear(id);
+            }
+            totals[BYTES_IN][id] = Math.max(totals[BYTES_IN][id], storedIn);
+            totals[BYTES_OUT][id] = Math.max(totals[BYTES_OUT][id], storedOut);
+
+            if (totals[BYTES_IN][id] != storedIn || totals[BYTES_OUT][id] != storedOut) {
+                store.setBytesIn(storeId, totals[BYTES_IN][id], lastMoved[id]);
+                store.setBytesOut(storeId, totals[BYTES_OUT][id], lastMoved[id]);
+                store.markChanged(storeId);
+                changed++;
+            }
+        }
+        recorded.clear();
+        return changed;
+    }
+
+    /** Number of topics with counters being kept */
+    public synchronized int size() {
+        return ids.size();
+    }
+
+
+    /** Returns the id for a topic, starting new counters for it if it isn't known */
+    private int getId(String topicName) {
+        Integer existing = ids.get(topicName);
+        if (existing != null) {
+            return existing;
+        }
+
+        int id;
+        if (numFreeIds > 0) {
+            id = freeIds[--numFreeIds];
+        }
+        else {
+            id = limit++;
+            if (id == topicNames.length) {
+                grow();
+            }
+        }
+        ids.put(topicName, id);
+        topicNames[id] = topicName;
+        storeIds[id] = -1;
+        counters[id] = newCounters((brokers.size() + 1) * NUM_METRICS);
+        restart(id);
+        return id;
+    }
+
+    /** Returns the id of a topic in the store, or -1 if it isn't in the store */
+    private int getStoreId(UsageStore store, int id, String topicName) {
+        int storeId = storeIds[id];
+        if (storeId < 0 || storeId >= store.limit() || !topicName.equals(store.getTopicName(storeId))) {
+            storeId = store.indexOf(topicName);
+            storeIds[id] = storeId;
+        }
+        return storeId;
+    }
+
+    /** Keeps the counters for a topic, but compares them with the stored usage again when next matched with the store */
+    private void restart(int id) {
+        for (int metric = 0; metric < NUM_METRICS; metric++) {
+            totals[metric][id] = 0;
+        }
+        lastMoved[id] = 0;
+        firstSeen.set(id);
+    }
+
+    private void forget(int id) {
+        ids.remove(topicNames[id]);
+        topicNames[id] = null;
+        counters[id] = null;
+        firstSeen.clear(id);
+        if (numFreeIds == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[numFreeIds++] = id;
+    }
+
+    private int getBroker(String broker) {
+        Integer pos = brokers.get(broker);
+        if (pos == null) {
+            pos = brokers.size() + 1;
+            brokers.put(broker, pos);
+        }
+        return pos;
+    }
+
+    /** Total of the counters from every broker, for a topic that has nothing to be compared with yet */
+    private long sumCounters(int id, int metric) {
+        long sum = 0;
+        long[] topicCounters = counters[id];
+        for (int pos = metric; pos < topicCounters.length; pos += NUM_METRICS) {
+            if (topicCounters[pos] != UNKNOWN) {
+                sum += topicCounters[pos];
+            }
+        }
+        return sum;
+    }
+
+    private long[] growCounters(int id, int pos) {
+        int length = Math.max((brokers.size() + 1) * NUM_METRICS, pos + 1);
+        long[] grown = newCounters(length);
+        System.arraycopy(counters[id], 0, grown, 0, counters[id].length);
+        counters[id] = grown;
+        return grown;
+    }
+
+    private static long[] newCounters(int length) {
+        long[] topicCounters = new long[length];
+        Arrays.fill(topicCounters, UNKNOWN);
+        return topicCounters;
+    }
+
+    private void grow() {
+        int capacity = topicNames.length * 2;
+        topicNames = Arrays.copyOf(topicNames, capacity);
+        storeIds = Arrays.copyOf(storeIds, capacity);
+        counters = Arrays.copyOf(counters, capacity);
+        for (int metric = 0; metric < NUM_METRICS; metric++) {
+            totals[metric] = Arrays.copyOf(totals[metric], capacity);
+        }
+        lastMoved = Arrays.copyOf(lastMoved, capacity);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.data;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+
+/**
+ * Recent history of the usage of each topic in a Kafka cluster - the
+ *  bytes in and bytes out since the previous poll, for each of the last
+ *  few polls - so that questions like how much a topic has been used this
+ *  month, or when it was last used, can be answered without querying
+ *  Prometheus.
+ *
+ * The history for each topic (and the times of the polls) is held in
+ *  compressed series of a fixed size, so memory use is bounded. A topic
+ *  that is not being used takes a few hundred bytes, however many polls
+ *  are kept.
+ *
+ * Thread-safe, so that it can be read while polls are recorded.
+ */
+public class UsageHistory {
+
+    private final int capacity;
+
+    /** Times of the recorded polls, in epoch seconds */
+    private final CompressedSeries pollTimes;
+    private final Map<String, TopicHistory> topics = new HashMap<>();
+    private long polls = 0;
+
+
+    /**
+     * @param capacity number of polls to keep the history for
+     */
+    public UsageHistory(int capacity) {
+        this.capacity = capacity;
+        pollTimes = new CompressedSeries(capacity, true);
+    }
+
+
+    /**
+     * Records the usage of every topic in the store since the previous
+     *  poll, and forgets topics that are no longer in the store.
+     *
+     * The first time a topic is recorded only gives the starting point for
+     *  working out its usage in later polls.
+     */
+    public synchronized void record(UsageStore store, long timestampMs) {
+        polls++;
+        pollTimes.append(timestampMs / 1000);
+
+        for (int id = 0; id < store.limit(); id++) {
+            String name = store.getTopicName(id);
+            if (name == null) {
+                continue;
+            }
+            TopicHistory topic = topics.get(name);
+            if (topic == null) {
+                topic = new TopicHistory(store.getBytesIn(id), store.getBytesOut(id));
+                topics.put(name, topic);
+            }
+            topic.record(store.getBytesIn(id), store.getBytesOut(id), timestampMs);
+            topic.lastPoll = polls;
+        }
+
+        for (Iterator<TopicHistory> it = topics.values().iterator(); it.hasNext(); ) {
+            if (it.next().lastPoll != polls) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes in and bytes out for a topic in the polls since
+     *  the provided time (as epoch milliseconds), or null if the topic has
+     *  not been recorded. Only the polls that are still kept are included.
+     */
+    public synchronized long[] getUsageSince(String topicName, long sinceMs) {
+        TopicHistory topic = topics.get(topicName);
+        if (topic == null) {
+            return null;
+        }
+        long[] times = pollTimes.toArray();
+        long[] bytesIn = topic.bytesIn.toArray();
+        long[] bytesOut = topic.bytesOut.toArray();
+
+        // a topic's history ends at the most recent poll, but may start
+        //  after the oldest poll that is kept
+        long[] usage = new long[2];
+        for (int i = 1; i <= bytesIn.length; i++) {
+            if (times[times.length - i] * 1000 < sinceMs) {
+                break;
+            }
+            usage[0] += bytesIn[bytesIn.length - i];
+            usage[1] += bytesOut[bytesOut.length - i];
+        }
+        return usage;
+    }
+
+    /**
+     * Returns the time (as epoch milliseconds) of the most recent poll in
+     *  which the topic was used, or 0 if it has not been used since it was
+     *  first recorded.
+     */
+    public synchronized long getLastUsed(String topicName) {
+        TopicHistory topic = topics.get(topicName);
+        return topic == null ? 0 : topic.lastUsedMs;
+    }
+
+    /**
+     * Classifies a topic from when it was last used according to its
+     *  history. Only if it has not been used since history started being
+     *  recorded, when it was last used according to Kubernetes is used
+     *  instead - that is the last use before the history started.
+     *
+     * @param idleMs how long a topic needs to be unused to count as idle
+     */
+    public synchronized Activity classify(UsageStore store, int id, long idleMs, long nowMs) {
+        long lastUsed = getLastUsed(store.getTopicName(id));
+        if (lastUsed == 0) {
+            lastUsed = store.getTimestamp(id);
+            if (lastUsed == 0 && store.getBytesIn(id) == 0 && store.getBytesOut(id) == 0) {
+                return Activity.NEVER_USED;
+            }
+        }
+        return (nowMs - lastUsed > idleMs) ? Activity.IDLE : Activity.ACTIVE;
+    }
+
+    /**
+     * Returns the number of topics in the store in each class.
+     */
+    public synchronized Map<Activity, Integer> countByActivity(UsageStore store, long idleMs, long nowMs) {
+        Map<Activity, Integer> counts = new EnumMap<>(Activity.class);
+        for (Activity activity : Activity.values()) {
+            counts.put(activity, 0);
+        }
+        for (int id = 0; id < store.limit(); id++) {
+            if (store.getTopicName(id) != null) {
+                counts.merge(classify(store, id, idleMs, nowMs), 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    /** Number of polls that are kept */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Approximate memory used, in bytes */
+    public synchronized long getSizeInBytes() {
+        long size = pollTimes.getSizeInBytes();
+        for (Map.Entry<String, TopicHistory> topic : topics.entrySet()) {
+            size += 64 + (2L * topic.getKey().length()) +
+                    topic.getValue().bytesIn.getSizeInBytes() +
+                    topic.getValue().bytesOut.getSizeInBytes();
+        }
+        return size;
+    }
+
+
+    public static enum Activity {
+        ACTIVE, IDLE, NEVER_USED
+    }
+
+
+    private class TopicHistory {
+        private final CompressedSeries bytesIn = new CompressedSeries(capacity, false);
+        private final CompressedSeries bytesOut = new CompressedSeries(capacity, false);
+
+        /** Totals at the previous poll */
+        private long lastBytesIn;
+        private long lastBytesOut;
+
+        private long lastUsedMs = 0;
+        private long lastPoll;
+
+        private TopicHistory(long bytesIn, long bytesOut) {
+            lastBytesIn = bytesIn;
+            lastBytesOut = bytesOut;
+        }
+
+        private void record(long totalBytesIn, long totalBytesOut, long timestampMs) {
+            long in = increase(lastBytesIn, totalBytesIn);
+            long out = increase(lastBytesOut, totalBytesOut);
+            bytesIn.append(in);
+            bytesOut.append(out);
+            if (in != 0 || out != 0) {
+                lastUsedMs = timestampMs;
+            }
+            lastBytesIn = totalBytesIn;
+            lastBytesOut = totalBytesOut;
+        }
+
+        /** Counters that go down have been reset, so all of the new value is an increase */
+        private long increase(long previous, long current) {
+            return current >= previous ? current - previous : current;
+        }
+    }
+}
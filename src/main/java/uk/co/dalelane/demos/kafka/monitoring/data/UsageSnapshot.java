@@ -0,0 +1,310 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.data;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+
+
+/**
+ * Stores the usage info for the monitored Kafka clusters in a local file,
+ *  so that a restarted Monitor can start from where it left off instead of
+ *  reading the annotations from every KafkaTopic operand.
+ *
+ * The file is a compact binary format, written and read through memory
+ *  mapping:
+ *
+ *   header   : magic (int), version (short), written at (long, epoch ms),
+ *              payload length (int), payload CRC32 (int)
+ *   payload  : number of clusters (int), then for each cluster
+ *                namespace/cluster (string), number of topics (int),
+ *                then for each topic
+ *                  topic name (string), bytes in (long), bytes out (long),
+ *                  timestamp (long, epoch ms)
+ *   string   : length (short) followed by UTF-8 bytes
+ *
+ * A new snapshot is written to a temporary file and then moved into place,
+ *  so an interrupted write leaves the previous snapshot intact.
+ */
+public class UsageSnapshot {
+
+    private final Logger log = LoggerFactory.getLogger(UsageSnapshot.class);
+
+    private static final int MAGIC = 0x54554d53; // "TUMS"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = Integer.BYTES + Short.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private final Path file;
+    private final long maxAgeMs;
+
+
+    public UsageSnapshot(Config config) {
+        this.file = Paths.get(config.getSnapshotFile());
+        this.maxAgeMs = config.getSnapshotMaxAgeSeconds() * 1000L;
+    }
+
+
+    /**
+     * Restores usage info from the snapshot into the stores for each of the
+     *  provided Kafka clusters that it contains.
+     *
+     * @return the clusters that were restored - empty if there is no usable
+     *  snapshot, because it is missing, corrupt or too old
+     */
+    public Set<Target> load(Map<Target, UsageStore> usage) {
+        if (!Files.exists(file)) {
+            log.info("No usage snapshot at {}", file);
+            return new HashSet<>();
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new MonitoringException("Unexpected size " + channel.size());
+            }
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+
+            Map<String, UsageStore> restored = read(buffer);
+
+            Set<Target> targets = new HashSet<>();
+            int numTopics = 0;
+            for (Map.Entry<Target, UsageStore> entry : usage.entrySet()) {
+                UsageStore store = restored.get(entry.getKey().toString());
+                // the snapshot is only used if it contains the clusters being monitored
+                if (store != null) {
+                    copy(store, entry.getValue());
+                    targets.add(entry.getKey());
+                    numTopics += store.size();
+                }
+            }
+            log.info("Restored usage info for {} topics from snapshot {}", numTopics, file);
+            return targets;
+        }
+        catch (IOException | MonitoringException e) {
+            log.warn("Ignoring unusable usage snapshot {}", file, e);
+            return new HashSet<>();
+        }
+    }
+
+    private Map<String, UsageStore> read(ByteBuffer buffer) throws MonitoringException {
+        if (buffer.getInt() != MAGIC) {
+            throw new MonitoringException("Not a usage snapshot");
+        }
+        short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new MonitoringException("Unsupported snapshot version " + version);
+        }
+        long writtenAt = buffer.getLong();
+        int payloadLength = buffer.getInt();
+        int checksum = buffer.getInt();
+
+        if (payloadLength != buffer.remaining()) {
+            throw new MonitoringException("Truncated snapshot");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new MonitoringException("Snapshot checksum mismatch");
+        }
+        long age = System.currentTimeMillis() - writtenAt;
+        if (age > maxAgeMs) {
+            throw new MonitoringException("Snapshot is stale (written " + Instant.ofEpochMilli(writtenAt) + ")");
+        }
+
+        Map<String, UsageStore> restored = new HashMap<>();
+        try {
+            int numTargets = buffer.getInt();
+            for (int i = 0; i < numTargets; i++) {
+                String target = getString(buffer);
+                int numTopics = buffer.getInt();
+
+                UsageStore store = new UsageStore();
+                for (int j = 0; j < numTopics; j++) {
+                    int id = store.add(getString(buffer));
+                    store.set(id, buffer.getLong(), buffer.getLong(), buffer.getLong());
+                }
+                restored.put(target, store);
+            }
+        }
+        catch (BufferUnderflowException e) {
+            throw new MonitoringException("Invalid snapshot contents", e);
+        }
+        return restored;
+    }
+
+    private static void copy(UsageStore from, UsageStore to) {
+        to.startSync();
+        for (int fromId = 0; fromId < from.limit(); fromId++) {
+            String topicName = from.getTopicName(fromId);
+            if (topicName != null) {
+                int toId = to.add(topicName);
+                to.markSeen(toId);
+                to.set(toId, from.getBytesIn(fromId), from.getBytesOut(fromId), from.getTimestamp(fromId));
+            }
+        }
+        to.endSync();
+    }
+
+
+    /**
+     * Replaces the snapshot with the usage info from the provided stores.
+     */
+    public void save(Map<Target, UsageStore> usage) throws MonitoringException {
+        // work out the size of the file before mapping it
+        long payloadLength = Integer.BYTES;
+        for (Map.Entry<Target, UsageStore> entry : usage.entrySet()) {
+            payloadLength += encodedLength(entry.getKey().toString()) + Integer.BYTES;
+            UsageStore store = entry.getValue();
+            for (int id = 0; id < store.limit(); id++) {
+                String topicName = store.getTopicName(id);
+                if (topicName != null) {
+                    payloadLength += encodedLength(topicName) + (3 * Long.BYTES);
+                }
+            }
+        }
+        if (HEADER_SIZE + payloadLength > Integer.MAX_VALUE) {
+            throw new MonitoringException("Too much usage info for snapshot");
+        }
+
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile,
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE))
+        {
+            MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + payloadLength);
+            CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+            buffer.position(HEADER_SIZE);
+            buffer.putInt(usage.size());
+            for (Map.Entry<Target, UsageStore> entry : usage.entrySet()) {
+                UsageStore store = entry.getValue();
+                putString(buffer, encoder, entry.getKey().toString());
+                buffer.putInt(store.size());
+                for (int id = 0; id < store.limit(); id++) {
+                    String topicName = store.getTopicName(id);
+                    if (topicName != null) {
+                        putString(buffer, encoder, topicName);
+                        buffer.putLong(store.getBytesIn(id));
+                        buffer.putLong(store.getBytesOut(id));
+                        // the time stored in Kubernetes, as any deferred
+                        //  changes will not be written after a restart
+                        buffer.putLong(store.getStoredTimestamp(id));
+                    }
+                }
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(HEADER_SIZE, (int) payloadLength));
+
+            buffer.position(0);
+            buffer.putInt(MAGIC);
+            buffer.putShort(VERSION);
+            buffer.putLong(System.currentTimeMillis());
+            buffer.putInt((int) payloadLength);
+            buffer.putInt((int) crc.getValue());
+            buffer.force();
+        }
+        catch (IOException e) {
+            throw new MonitoringException("Failed to write usage snapshot", e);
+        }
+
+        try {
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw new MonitoringException("Failed to replace usage snapshot", e);
+        }
+        log.debug("Saved usage snapshot to {}", file);
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    /**
+     * Returns the number of bytes needed to store the provided string,
+     *  without needing to encode it.
+     */
+    private static int encodedLength(String value) throws MonitoringException {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        if (length > Short.MAX_VALUE) {
+            throw new MonitoringException("Name too long for snapshot : " + value);
+        }
+        return Short.BYTES + length;
+    }
+
+    /**
+     * Writes the provided string directly into the buffer, preceded by its
+     *  encoded length.
+     */
+    private static void putString(ByteBuffer buffer, CharsetEncoder encoder, String value) {
+        int lengthPosition = buffer.position();
+        buffer.position(lengthPosition + Short.BYTES);
+        encoder.reset().encode(CharBuffer.wrap(value), buffer, true);
+        buffer.putShort(lengthPosition, (short) (buffer.position() - lengthPosition - Short.BYTES));
+    }
+
+    private static String getString(ByteBuffer buffer) throws MonitoringException {
+        short length = buffer.getShort();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new MonitoringException("Invalid snapshot contents");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.data;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+
+/**
+ * Usage info for every topic in a Kafka cluster, kept for the lifetime of
+ *  the Monitor and updated in place.
+ *
+ * Each topic is given an id when it is first seen, which is an index into
+ *  parallel arrays of primitive values - so, once the topics are known,
+ *  reading and updating usage info does not create any objects. Ids of
+ *  deleted topics are reused for new topics.
+ *
+ * Not thread-safe - callers need to ensure that a store is only updated
+ *  by one thread at a time. The one exception is {@link #indexOf}, which
+ *  can be called at any time, so that the usage API can look up topics
+ *  while the next poll is updating the store.
+ */
+public class UsageStore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+    private String[] topicNames = new String[INITIAL_CAPACITY];
+    private long[] bytesIn = new long[INITIAL_CAPACITY];
+    private long[] bytesOut = new long[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+
+    /** Timestamps currently stored in Kubernetes */
+    private long[] storedTimestamps = new long[INITIAL_CAPACITY];
+
+    /** The sync that each topic was last seen in */
+    private int[] lastSeen = new int[INITIAL_CAPACITY];
+    private int sync = 0;
+
+    /** Topics with usage info that has not yet been stored in Kubernetes */
+    private final BitSet changed = new BitSet();
+
+    /** Topics with changed usage info that is being held back, rather than stored */
+    private final BitSet deferred = new BitSet();
+
+    /** Ids of deleted topics that are available for reuse */
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int numFreeIds = 0;
+
+    /** Highest id that has been used (plus one) */
+    private int limit = 0;
+
+
+    /**
+     * Returns the id for the provided topic, or -1 if it is not known.
+     *  Safe to call while the store is being updated.
+     */
+    public int indexOf(String topicName) {
+        Integer id = ids.get(topicName);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the id for the provided topic, adding it (with no usage) if
+     *  it is not already known.
+     */
+    public int add(String topicName) {
+        Integer existing = ids.get(topicName);
+        if (existing != null) {
+            return existing;
+        }
+
+        int id;
+        if (numFreeIds > 0) {
+            id = freeIds[--numFreeIds];
+        }
+        else {
+            id = limit++;
+            if (id == topicNames.length) {
+                grow();
+            }
+        }
+        ids.put(topicName, id);
+        topicNames[id] = topicName;
+        set(id, 0, 0, 0);
+        lastSeen[id] = sync;
+        return id;
+    }
+
+    /** Forgets the topic with the provided id, making the id available for reuse */
+    public void remove(int id) {
+        ids.remove(topicNames[id]);
+        topicNames[id] = null;
+        changed.clear(id);
+        deferred.clear(id);
+        if (numFreeIds == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[numFreeIds++] = id;
+    }
+
+    private void grow() {
+        int capacity = topicNames.length * 2;
+        topicNames = Arrays.copyOf(topicNames, capacity);
+        bytesIn = Arrays.copyOf(bytesIn, capacity);
+        bytesOut = Arrays.copyOf(bytesOut, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        storedTimestamps = Arrays.copyOf(storedTimestamps, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+    }
+
+
+    /** Number of topics in the store */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Upper bound (exclusive) for topic ids - ids below this without a
+     *  topic name are not in use.
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /** Returns the name of the topic with the provided id, or null if the id is not in use */
+    public String getTopicName(int id) {
+        return topicNames[id];
+    }
+
+    public long getBytesIn(int id) {
+        return bytesIn[id];
+    }
+
+    public long getBytesOut(int id) {
+        return bytesOut[id];
+    }
+
+    /** Time (as epoch milliseconds) that the topic was last known to be used */
+    public long getTimestamp(int id) {
+        return timestamps[id];
+    }
+
+    /** Time (as epoch milliseconds) currently stored in Kubernetes as when the topic was last used */
+    public long getStoredTimestamp(int id) {
+        return storedTimestamps[id];
+    }
+
+    /** Sets the usage info for a topic, as currently stored in Kubernetes */
+    public void set(int id, long lastBytesIn, long lastBytesOut, long timestamp) {
+        bytesIn[id] = lastBytesIn;
+        bytesOut[id] = lastBytesOut;
+        timestamps[id] = timestamp;
+        storedTimestamps[id] = timestamp;
+    }
+
+    public void setTimestamp(int id, long timestamp) {
+        timestamps[id] = timestamp;
+    }
+
+    public void setBytesIn(int id, long lastBytesIn, long timestamp) {
+        bytesIn[id] = lastBytesIn;
+        timestamps[id] = Math.max(timestamps[id], timestamp);
+    }
+
+    public void setBytesOut(int id, long lastBytesOut, long timestamp) {
+        bytesOut[id] = lastBytesOut;
+        timestamps[id] = Math.max(timestamps[id], timestamp);
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    public boolean isChanged(int id) {
+        return changed.get(id);
+    }
+
+    public void markChanged(int id) {
+        changed.set(id);
+        deferred.clear(id);
+    }
+
+    /** Holds back the changed usage info for a topic, instead of storing it */
+    public void markDeferred(int id) {
+        changed.clear(id);
+        deferred.set(id);
+    }
+
+    public boolean isDeferred(int id) {
+        return deferred.get(id);
+    }
+
+    /** Returns the next deferred topic id from (and including) the provided id, or -1 if there are none */
+    public int nextDeferred(int fromId) {
+        return deferred.nextSetBit(fromId);
+    }
+
+    /** Returns the next changed topic id from (and including) the provided id, or -1 if there are none */
+    public int nextChanged(int fromId) {
+        return changed.nextSetBit(fromId);
+    }
+
+    /** Number of topics with usage info that has not yet been stored */
+    public int getChangedCount() {
+        return changed.cardinality();
+    }
+
+    /** Records that all changes have been stored */
+    public void markChangesStored() {
+        for (int id = changed.nextSetBit(0); id >= 0; id = changed.nextSetBit(id + 1)) {
+            storedTimestamps[id] = timestamps[id];
+        }
+        changed.clear();
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    /**
+     * Starts replacing the contents of the store. Topics that are not
+     *  added (or marked as seen) before {@link #endSync()} is called will
+     *  be removed.
+     */
+    public void startSync() {
+        sync++;
+        changed.clear();
+        deferred.clear();
+    }
+
+    public void markSeen(int id) {
+        lastSeen[id] = sync;
+    }
+
+    /**
+     * Removes any topics that were not seen since {@link #startSync()}
+     *
+     * @return number of topics removed
+     */
+    public int endSync() {
+        int removed = 0;
+        for (int id = 0; id < limit; id++) {
+            if (topicNames[id] != null && lastSeen[id] != sync) {
+                remove(id);
+                removed++;
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.k8s;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.ConfigMapBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.base.PatchContext;
+import io.fabric8.kubernetes.client.dsl.base.PatchType;
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageStore;
+import uk.co.dalelane.demos.kafka.monitoring.shard.HashRing;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+
+
+/**
+ * Stores usage info in ConfigMaps that are shared by many topics, instead
+ *  of in annotations on each KafkaTopic operand. The changes for thousands
+ *  of topics can then be written with a few requests, without touching the
+ *  operands that the Topic Operator reconciles.
+ *
+ * Each topic is stored in one of a fixed number of ConfigMaps, chosen by a
+ *  hash of its name. The ConfigMap has an entry for the topic, keyed by the
+ *  topic name (Kafka topic names only use characters that are valid in
+ *  ConfigMap keys), with the value "timestamp,bytesin,bytesout" - so:
+ *
+ *   kubectl get configmap -l dalelane.co.uk/topics-usage-cluster=my-cluster
+ *
+ * returns the usage info for every topic in the Kafka cluster.
+ *
+ * Entries for deleted topics, and entries left in the wrong ConfigMap after
+ *  the number of ConfigMaps has been changed, are removed with the next
+ *  update to the ConfigMap they are in.
+ */
+class ConfigMapStorage {
+
+    private final Logger log = LoggerFactory.getLogger(ConfigMapStorage.class);
+
+    static final String LABEL_CLUSTER = "dalelane.co.uk/topics-usage-cluster";
+
+    private static final String NAME_PREFIX = "topics-usage-";
+
+    /** ConfigMaps are limited to 1 MiB - warn well before that is reached */
+    private static final int WARN_SIZE_BYTES = 768 * 1024;
+
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_CONFLICT = 409;
+
+    private final Target target;
+    private final KubernetesClient client;
+    private final int numConfigMaps;
+
+    /** Entries to remove with the next update, keyed by ConfigMap name - guarded by this */
+    private Map<String, Map<String, String>> removals = new HashMap<>();
+
+
+    ConfigMapStorage(Config config, Target target, KubernetesClient client) {
+        this.target = target;
+        this.client = client;
+        this.numConfigMaps = Math.max(1, config.getUsageConfigMaps());
+    }
+
+
+    /**
+     * Replaces the usage info for the topics in the provided store with the
+     *  usage info from the ConfigMaps.
+     *
+     * Topics without stored usage info keep the usage info that is already
+     *  in the store (from their KafkaTopic annotations, if they have any,
+     *  so that the time they were last used isn't lost when switching to
+     *  ConfigMaps), and are marked as changed so that they are stored along
+     *  with the next usage updates.
+     *
+     * @param isOwned identifies the topics (by name) that this Monitor is
+     *  responsible for - entries for other topics are left alone
+     * @return the number of topics without stored usage info
+     */
+    synchronized int read(UsageStore usage, Predicate<String> isOwned) {
+        removals = new HashMap<>();
+        BitSet found = new BitSet(usage.limit());
+
+        for (ConfigMap configMap : client.configMaps()
+                .inNamespace(target.getNamespace())
+                .withLabel(LABEL_CLUSTER, target.getCluster())
+                .list()
+                .getItems())
+        {
+            String name = configMap.getMetadata().getName();
+            Map<String, String> data = configMap.getData();
+            if (data == null) {
+                continue;
+            }
+
+            long size = 0;
+            for (Map.Entry<String, String> entry : data.entrySet()) {
+                String topicName = entry.getKey();
+                size += topicName.length() + entry.getValue().length();
+
+                int id = usage.indexOf(topicName);
+                if (id < 0) {
+                    // deleted topic - unless it belongs to another replica
+                    if (isOwned.test(topicName)) {
+                        remove(name, topicName);
+                    }
+                    continue;
+                }
+
+                long[] values = decode(entry.getValue());
+                if (values == null) {
+                    log.warn("Ignoring invalid usage info for {} in ConfigMap {}", topicName, name);
+                    continue;
+                }
+                usage.set(id, values[1], values[2], values[0]);
+                found.set(id);
+
+                if (!name.equals(getConfigMapName(topicName))) {
+                    // number of ConfigMaps has changed - move the entry
+                    remove(name, topicName);
+                    usage.markChanged(id);
+                }
+            }
+
+            if (size > WARN_SIZE_BYTES) {
+                log.warn("ConfigMap {} is approaching the size limit - USAGE_CONFIGMAPS should be increased", name);
+            }
+        }
+
+        int unrecorded = 0;
+        for (int id = 0; id < usage.limit(); id++) {
+            if (usage.getTopicName(id) != null && !found.get(id)) {
+                usage.markChanged(id);
+                unrecorded++;
+            }
+        }
+        return unrecorded;
+    }
+
+    /**
+     * Returns the updates to the ConfigMaps for the changed usage info in
+     *  the provided store, with any entries waiting to be removed - one
+     *  update for each ConfigMap that needs to be changed.
+     */
+    synchronized Map<String, Runnable> createUpdates(UsageStore usage) {
+        Map<String, Map<String, String>> changes = new TreeMap<>();
+        for (int id = usage.nextChanged(0); id >= 0; id = usage.nextChanged(id + 1)) {
+            String topicName = usage.getTopicName(id);
+            changes.computeIfAbsent(getConfigMapName(topicName), name -> new LinkedHashMap<>())
+                .put(topicName, encode(usage.getTimestamp(id), usage.getBytesIn(id), usage.getBytesOut(id)));
+        }
+        for (Map.Entry<String, Map<String, String>> removal : removals.entrySet()) {
+            changes.computeIfAbsent(removal.getKey(), name -> new LinkedHashMap<>())
+                .putAll(removal.getValue());
+        }
+        // if any of the updates fail, the removals are found again when the
+        //  ConfigMaps are next read
+        removals = new HashMap<>();
+
+        Map<String, Runnable> updates = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, String>> change : changes.entrySet()) {
+            String name = change.getKey();
+            Map<String, String> data = change.getValue();
+            updates.put("configmap " + name, () -> update(name, data));
+        }
+        return updates;
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    /**
+     * Merges the provided entries into a ConfigMap, creating it if it doesn't
+     *  exist yet. Entries with a null value are removed.
+     */
+    private void update(String name, Map<String, String> data) {
+        try {
+            patch(name, data);
+        }
+        catch (KubernetesClientException e) {
+            if (e.getCode() != HTTP_NOT_FOUND) {
+                throw e;
+            }
+            try {
+                create(name, data);
+            }
+            catch (KubernetesClientException ce) {
+                if (ce.getCode() != HTTP_CONFLICT) {
+                    throw ce;
+                }
+                // created by another replica in the meantime
+                patch(name, data);
+            }
+        }
+    }
+
+    private void patch(String name, Map<String, String> data) {
+        // JSON merge patch removes keys that are set to null
+        Map<String, Object> patch = Map.of("data", data);
+        // patched through a ConfigMap with only the name set, as withName
+        //  would GET the current ConfigMap from the server first
+        client.configMaps()
+            .inNamespace(target.getNamespace())
+            .resource(new ConfigMapBuilder()
+                .withNewMetadata()
+                    .withName(name)
+                    .withNamespace(target.getNamespace())
+                .endMetadata()
+                .build())
+            .patch(PatchContext.of(PatchType.JSON_MERGE), client.getKubernetesSerialization().asJson(patch));
+    }
+
+    private void create(String name, Map<String, String> data) {
+        Map<String, String> entries = new TreeMap<>();
+        data.forEach((key, value) -> {
+            if (value != null) {
+                entries.put(key, value);
+            }
+        });
+        client.configMaps()
+            .inNamespace(target.getNamespace())
+            .resource(new ConfigMapBuilder()
+                .withNewMetadata()
+                    .withName(name)
+                    .withNamespace(target.getNamespace())
+                    .addToLabels(LABEL_CLUSTER, target.getCluster())
+                .endMetadata()
+                .withData(entries)
+                .build())
+            .create();
+    }
+
+    private void remove(String configMapName, String topicName) {
+        removals.computeIfAbsent(configMapName, name -> new HashMap<>()).put(topicName, null);
+    }
+
+
+    /** Name of the ConfigMap that the usage info for a topic is stored in */
+    String getConfigMapName(String topicName) {
+        return NAME_PREFIX + target.getCluster() + "-" + Math.floorMod(HashRing.hash(topicName), numConfigMaps);
+    }
+
+    static String encode(long timestamp, long bytesIn, long bytesOut) {
+        return timestamp + "," + bytesIn + "," + bytesOut;
+    }
+
+    /** Returns timestamp, bytes in and bytes out - or null if the value is not valid */
+    static long[] decode(String value) {
+        int first = value.indexOf(',');
+        int second = value.indexOf(',', first + 1);
+        if (first < 0 || second < 0) {
+            return null;
+        }
+        try {
+            return new long[] {
+                Long.parseLong(value, 0, first, 10),
+                Long.parseLong(value, first + 1, second, 10),
+                Long.parseLong(value, second + 1, value.length(), 10)
+            };
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -13,16 +13,18 @@
  */
 package uk.co.dalelane.demos.kafka.monitoring.k8s;
 
+import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.dsl.MixedOperation;
 import io.fabric8.kubernetes.client.dsl.Resource;
 import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.EventStreamsTopic;
 import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.EventStreamsTopicsList;
 import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
 
 public class EventStreamsK8sClient extends K8sClient<EventStreamsTopic, EventStreamsTopicsList> {
 
-    public EventStreamsK8sClient(Config config) {
-        super(config);
+    public EventStreamsK8sClient(Config config, Target target, KubernetesClient client, PatchPipeline patchPipeline) {
+        super(config, target, client, patchPipeline);
     }
 
     @Override
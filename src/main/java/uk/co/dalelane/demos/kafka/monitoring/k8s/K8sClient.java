@@ -13,55 +13,94 @@
  */
 package uk.co.dalelane.demos.kafka.monitoring.k8s;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.fabric8.kubernetes.api.model.DefaultKubernetesResourceList;
+import io.fabric8.kubernetes.api.model.ListOptionsBuilder;
 import io.fabric8.kubernetes.api.model.ObjectMeta;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClientBuilder;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.FilterWatchListDeletable;
 import io.fabric8.kubernetes.client.dsl.MixedOperation;
 import io.fabric8.kubernetes.client.dsl.Resource;
+import io.fabric8.kubernetes.client.dsl.base.PatchContext;
+import io.fabric8.kubernetes.client.dsl.base.PatchType;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
 import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
-import uk.co.dalelane.demos.kafka.monitoring.data.UsageUpdate;
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageStore;
 import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.KafkaTopic;
 import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.KafkaTopicStatus;
+import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.TopicMetadata;
 import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
-import uk.co.dalelane.demos.kafka.monitoring.utils.Formats;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
 import uk.co.dalelane.demos.kafka.monitoring.utils.Config.Mode;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config.Storage;
 
 public abstract class K8sClient<T extends KafkaTopic, L extends DefaultKubernetesResourceList<T>> {
 
     private final Logger log = LoggerFactory.getLogger(K8sClient.class);
 
-    private static final String ANNOTATION_KEY_PREFIX = "dalelane.co.uk/lastused-";
+    private static final String ANNOTATION_KEY_PREFIX = TopicMetadata.USAGE_ANNOTATION_PREFIX;
     private static final String ANNOTATION_KEY_TIMESTAMP = ANNOTATION_KEY_PREFIX + "timestamp";
     private static final String ANNOTATION_KEY_BYTESIN   = ANNOTATION_KEY_PREFIX + "bytesin";
     private static final String ANNOTATION_KEY_BYTESOUT  = ANNOTATION_KEY_PREFIX + "bytesout";
 
+    private static final String INDEX_TOPIC_NAME = "topicName";
+    private static final String INDEX_CLUSTER    = "cluster";
+
+    /** HTTP status returned when the continue token for a paginated list has expired */
+    private static final int HTTP_GONE = 410;
+
     protected final KubernetesClient client;
     private final Config config;
+    private final Target target;
+    private final PatchPipeline patchPipeline;
+
+    /** Where usage info is stored if not in annotations (null if it is) */
+    private final ConfigMapStorage configMapStorage;
 
+    private SharedIndexInformer<T> topicCache;
 
-    public static K8sClient<? extends KafkaTopic, ? extends DefaultKubernetesResourceList<? extends KafkaTopic>> create(Config config) {
-        if (config.getMode() == Mode.EVENTSTREAMS) {
-            return new EventStreamsK8sClient(config);
+
+    public static K8sClient<? extends KafkaTopic, ? extends DefaultKubernetesResourceList<? extends KafkaTopic>> create(Config config, Target target, KubernetesClient client, PatchPipeline patchPipeline) {
+        if (target.getMode() == Mode.EVENTSTREAMS) {
+            return new EventStreamsK8sClient(config, target, client, patchPipeline);
         }
         else {
-            return new StrimziK8sClient(config);
+            return new StrimziK8sClient(config, target, client, patchPipeline);
         }
     }
 
+    /**
+     * Creates a Kubernetes client that can be shared by the K8sClient
+     *  instances for all of the Kafka clusters being monitored.
+     */
+    public static KubernetesClient createKubernetesClient(PatchPipeline patchPipeline) {
+        return new KubernetesClientBuilder()
+            .withHttpClientBuilderConsumer(builder -> builder.addOrReplaceInterceptor("patch-pipeline", patchPipeline))
+            .build();
+    }
 
-    public K8sClient(Config config) {
-        this.config = config;
 
-        log.debug("Creating Kubernetes client for accessing Kafka topic operands");
-        client = new KubernetesClientBuilder().build();
+    public K8sClient(Config config, Target target, KubernetesClient client, PatchPipeline patchPipeline) {
+        this.config = config;
+        this.target = target;
+        this.client = client;
+        this.patchPipeline = patchPipeline;
+        this.configMapStorage = config.getUsageStorage() == Storage.CONFIGMAPS ?
+            new ConfigMapStorage(config, target, client) :
+            null;
     }
 
 
@@ -73,76 +112,252 @@ public abstract class K8sClient<T extends KafkaTopic, L extends DefaultKubernete
 
 
     /**
-     * Stores the provided usage updates in Kubernetes as annotations on the
-     *  corresponding KafkaTopic operand.
+     * Passes each of the KafkaTopic operands in the cluster being monitored
+     *  to the provided consumer.
+     *
+     * If the topic cache is enabled, these are read from the local copy that
+     *  is kept up to date by a watch. Otherwise the operands are listed from
+     *  the Kubernetes API a page at a time, so that only one page needs to
+     *  be held in memory.
+     *
+     * If the listing can't be continued (because the API server no longer
+     *  has the version of the list that it started with) it is started again
+     *  from the beginning, so consumers may be given some operands twice.
+     */
+    private void forEachTopic(MixedOperation<T, L, Resource<T>> kafkaTopicClient, TopicConsumer<T> consumer) throws MonitoringException {
+        if (config.isTopicCacheEnabled()) {
+            for (T topic : getTopicCache().getIndexer().byIndex(INDEX_CLUSTER, target.getCluster())) {
+                consumer.accept(topic);
+            }
+            return;
+        }
+
+        int pageSize = config.getTopicListPageSize();
+        if (pageSize <= 0) {
+            for (T topic : inCluster(kafkaTopicClient).list().getItems()) {
+                consumer.accept(topic);
+            }
+            return;
+        }
+
+        boolean restarted = false;
+        String continueToken = null;
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new MonitoringException("Interrupted listing KafkaTopic operands");
+            }
+
+            L page;
+            try {
+                page = inCluster(kafkaTopicClient)
+                    .list(new ListOptionsBuilder()
+                        .withLimit((long) pageSize)
+                        .withContinue(continueToken)
+                        .build());
+            }
+            catch (KubernetesClientException e) {
+                if (e.getCode() == HTTP_GONE && continueToken != null && !restarted) {
+                    log.info("KafkaTopic listing for {} expired - starting again", target);
+                    restarted = true;
+                    continueToken = null;
+                    continue;
+                }
+                throw e;
+            }
+
+            for (T topic : page.getItems()) {
+                consumer.accept(topic);
+            }
+            continueToken = page.getMetadata() == null ? null : page.getMetadata().getContinue();
+            if (continueToken == null || continueToken.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Selects the KafkaTopic operands for the Kafka cluster being monitored,
+     *  so that operands for other clusters in the namespace are filtered
+     *  out by the Kubernetes API server rather than downloaded.
+     */
+    private FilterWatchListDeletable<T, L, Resource<T>> inCluster(MixedOperation<T, L, Resource<T>> kafkaTopicClient) {
+        return kafkaTopicClient
+            .inNamespace(target.getNamespace())
+            .withLabel(target.getK8sAnnotationPrefix() + "/cluster", target.getCluster());
+    }
+
+    /**
+     * Returns the cached KafkaTopic operands for a Kafka topic with the provided name.
+     */
+    private List<T> getTopicsByName(String topicName) throws MonitoringException {
+        return getTopicCache().getIndexer().byIndex(INDEX_TOPIC_NAME, topicName);
+    }
+
+    /**
+     * Returns the watch-driven cache of KafkaTopic operands, starting it (and
+     *  waiting for the initial list to be retrieved) the first time it is used.
+     */
+    private synchronized SharedIndexInformer<T> getTopicCache() throws MonitoringException {
+        if (topicCache == null) {
+            log.debug("Starting KafkaTopic cache for {}", target);
+
+            Map<String, Function<T, List<String>>> indexers = new HashMap<>();
+            indexers.put(INDEX_TOPIC_NAME, topic -> isTopicNameUnknown(topic) ?
+                Collections.emptyList() :
+                List.of(topic.getStatus().getTopicName()));
+            indexers.put(INDEX_CLUSTER, topic -> {
+                Map<String, String> labels = topic.getMetadata().getLabels();
+                String cluster = labels == null ? null : labels.get(target.getK8sAnnotationPrefix() + "/cluster");
+                return cluster == null ? Collections.emptyList() : List.of(cluster);
+            });
+
+            SharedIndexInformer<T> informer = inCluster(createResourceClient())
+                .withLimit((long) config.getTopicCachePageSize())
+                .runnableInformer(config.getTopicCacheResyncSeconds() * 1000L);
+            informer.addIndexers(indexers);
+            try {
+                informer.start().toCompletableFuture().get();
+            }
+            catch (ExecutionException e) {
+                informer.close();
+                throw new MonitoringException("Failed to populate KafkaTopic cache", e);
+            }
+            catch (InterruptedException e) {
+                informer.close();
+                Thread.currentThread().interrupt();
+                throw new MonitoringException("Interrupted populating KafkaTopic cache", e);
+            }
+            log.debug("KafkaTopic cache ready with {} operands", informer.getStore().list().size());
+
+            topicCache = informer;
+        }
+        return topicCache;
+    }
+
+    // ------------------------------------------------------------------------
+
+
+    /**
+     * Stores the changed usage info from the provided store in Kubernetes
+     *  as annotations on the corresponding KafkaTopic operands (or in the
+     *  usage ConfigMaps, if USAGE_STORAGE is configmaps).
+     *
+     * @return true if all of the updates were stored
      */
-    public void submitUpdates(Map<String, UsageUpdate> lastUsageUpdatesByTopic) {
-        log.debug("submitting usage updates to Kubernetes");
+    public boolean submitUpdates(UsageStore usage) throws MonitoringException {
+        log.debug("submitting usage updates for {} to Kubernetes", target);
+        if (configMapStorage != null) {
+            return patchPipeline.submit(configMapStorage.createUpdates(usage)) == 0;
+        }
+
         MixedOperation<T, L, Resource<T>> kafkaTopicClient = createResourceClient();
-        List<T> topics = kafkaTopicClient.inNamespace(config.getNamespace()).list().getItems();
+        Map<String, Runnable> patches = new LinkedHashMap<>();
+
+        if (config.isTopicCacheEnabled()) {
+            // look up the operands for the updated topics in the cache - no need
+            //  to retrieve operands for topics that haven't changed
+            for (int id = usage.nextChanged(0); id >= 0; id = usage.nextChanged(id + 1)) {
+                for (T topic : getTopicsByName(usage.getTopicName(id))) {
+                    // check if the topic is in the cluster being monitored - if not, skip it
+                    if (isTopicInWrongCluster(topic)) continue;
+
+                    addPatch(patches, kafkaTopicClient, topic, usage, id);
+                }
+            }
+            return patchPipeline.submit(patches) == 0;
+        }
 
-        for (T topic : topics) {
+        forEachTopic(kafkaTopicClient, topic -> {
             log.debug("topic {}", topic);
             KafkaTopicStatus status = topic.getStatus();
 
             // check if we know what topic this relates to - if not, skip it
-            if (isTopicNameUnknown(topic)) continue;
+            if (isTopicNameUnknown(topic)) return;
 
             // check if we have an updated timestamp for this topic - if not, skip it
-            if (!lastUsageUpdatesByTopic.containsKey(status.getTopicName())) continue;
+            int id = usage.indexOf(status.getTopicName());
+            if (id < 0 || !usage.isChanged(id)) return;
 
             // check if the topic is in the cluster being monitored - if not, skip it
-            if (isTopicInWrongCluster(topic)) continue;
+            if (isTopicInWrongCluster(topic)) return;
 
             // add the update to the topic
-            submitAnnotations(kafkaTopicClient, topic, lastUsageUpdatesByTopic.get(status.getTopicName()));
-        }
+            addPatch(patches, kafkaTopicClient, topic, usage, id);
+        });
+
+        return patchPipeline.submit(patches) == 0;
     }
 
     /**
-     * Retrieves usage info from the annotations on KafkaTopic operands.
+     * Replaces the contents of the provided store with usage info from the
+     *  annotations on KafkaTopic operands (or from the usage ConfigMaps, if
+     *  USAGE_STORAGE is configmaps).
+     *
+     * Topics without usage annotations are marked as changed, so that
+     *  initial annotations are written along with the next usage updates.
+     *  With ConfigMaps, the annotations are used for topics that don't have
+     *  an entry in the ConfigMaps yet (e.g. after switching USAGE_STORAGE).
+     *
+     * @param isOwned identifies the topics (by name) that this Monitor is
+     *  responsible for - other topics are left out of the store
      */
-    public Map<String, UsageUpdate> getTopicsWithUsageTimestamps() throws MonitoringException {
-        log.debug("Getting Kafka topic information from Kubernetes");
-        Map<String, UsageUpdate> topicTimestamps = new HashMap<>();
+    public void readTopics(UsageStore usage, Predicate<String> isOwned) throws MonitoringException {
+        log.debug("Getting Kafka topic information for {} from Kubernetes", target);
 
         MixedOperation<T, L, Resource<T>> kafkaTopicClient = createResourceClient();
-        List<T> topics = kafkaTopicClient.inNamespace(config.getNamespace()).list().getItems();
-        log.debug("found {} topics", topics.size());
 
-        for (T topic : topics) {
+        int[] found = new int[1];
+        int[] unannotated = new int[1];
+
+        usage.startSync();
+        forEachTopic(kafkaTopicClient, topic -> {
             log.debug("topic {}", topic);
+            found[0]++;
 
             // check if we know what topic this relates to - if not, skip it
-            if (isTopicNameUnknown(topic)) continue;
+            if (isTopicNameUnknown(topic)) return;
 
             // check if the topic is in the cluster being monitored - if not, skip it
-            if (isTopicInWrongCluster(topic)) continue;
+            if (isTopicInWrongCluster(topic)) return;
 
-            UsageUpdate update = null;
+            // check if the topic is looked after by another replica - if so, skip it
+            if (!isOwned.test(topic.getStatus().getTopicName())) return;
+
+            int id = usage.add(topic.getStatus().getTopicName());
+            usage.markSeen(id);
 
             if (noLastUsedTimeAnnotation(topic)) {
                 // check if the topic has any existing usage annotations - if not, add an initial annotation
-                update = new UsageUpdate(topic.getStatus().getTopicName());
-
-                submitAnnotations(kafkaTopicClient, topic, update);
+                usage.set(id, 0, 0, 0);
+                if (configMapStorage == null) {
+                    usage.markChanged(id);
+                    unannotated[0]++;
+                }
             }
             else {
                 // retrieve existing usage annotation
-                update = createUpdate(topic);
+                readAnnotations(topic, usage, id);
             }
-
-            topicTimestamps.put(topic.getStatus().getTopicName(), update);
+        });
+        int removed = usage.endSync();
+        if (configMapStorage != null) {
+            // usage info from the annotations is only kept for topics
+            //  without an entry in the ConfigMaps
+            unannotated[0] = configMapStorage.read(usage, isOwned);
         }
 
-        log.debug("{} topics with timestamps", topicTimestamps.size());
-        return topicTimestamps;
+        log.debug("found {} topics, {} with timestamps ({} removed, {} without annotations)", found[0], usage.size(), removed, unannotated[0]);
     }
 
 
     // ------------------------------------------------------------------------
 
 
+    private interface TopicConsumer<T> {
+        void accept(T topic) throws MonitoringException;
+    }
+
+
     private boolean isTopicNameUnknown(KafkaTopic topic) {
         KafkaTopicStatus status = topic.getStatus();
         return status == null || status.getTopicName() == null;
@@ -151,7 +366,7 @@ public abstract class K8sClient<T extends KafkaTopic, L extends DefaultKubernete
     private boolean isTopicInWrongCluster(KafkaTopic topic) {
         ObjectMeta metadata = topic.getMetadata();
         Map<String, String> labels = metadata.getLabels();
-        return labels == null || !config.getCluster().equals(labels.get(config.getK8sAnnotationPrefix() + "/cluster"));
+        return labels == null || !target.getCluster().equals(labels.get(target.getK8sAnnotationPrefix() + "/cluster"));
     }
 
     private boolean noLastUsedTimeAnnotation(KafkaTopic topic) {
@@ -167,41 +382,48 @@ public abstract class K8sClient<T extends KafkaTopic, L extends DefaultKubernete
     // ------------------------------------------------------------------------
 
 
-    private void submitAnnotations(MixedOperation<T, L, Resource<T>> kafkaTopicClient,
-                                   T topic,
-                                   UsageUpdate updateInfo)
+    private void addPatch(Map<String, Runnable> patches,
+                          MixedOperation<T, L, Resource<T>> kafkaTopicClient,
+                          T topic,
+                          UsageStore usage,
+                          int id)
     {
-        log.debug("updating {}", topic.getStatus().getTopicName());
-        kafkaTopicClient
-            .inNamespace(config.getNamespace())
-            .withName(topic.getMetadata().getName())
-            .patch(addAnnotations(topic, updateInfo));
+        String name = topic.getMetadata().getName();
+        String patch = createAnnotationsPatch(usage.getBytesIn(id), usage.getBytesOut(id), usage.getTimestamp(id));
+        // patching the operand that was listed (rather than withName) means
+        //  the client doesn't GET the current operand from the server first
+        patches.put(name, () -> kafkaTopicClient
+            .inNamespace(target.getNamespace())
+            .resource(topic)
+            .patch(PatchContext.of(PatchType.JSON_MERGE), patch));
     }
 
-    private T addAnnotations(T topic, UsageUpdate update) {
-        ObjectMeta metadata = topic.getMetadata();
-        Map<String, String> annotations = metadata.getAnnotations();
-        if (annotations == null) {
-            annotations = new HashMap<>();
-        }
-        annotations.put(ANNOTATION_KEY_BYTESIN,   Long.toString(update.getLastBytesIn()));
-        annotations.put(ANNOTATION_KEY_BYTESOUT,  Long.toString(update.getLastBytesOut()));
-        annotations.put(ANNOTATION_KEY_TIMESTAMP, Formats.convertTimestamp(update.getTimestamp()));
-
-        metadata.setAnnotations(annotations);
-        topic.setMetadata(metadata);
-        return topic;
+    /**
+     * Returns a JSON merge patch that sets only the usage annotations,
+     *  leaving the rest of the KafkaTopic operand untouched.
+     */
+    String createAnnotationsPatch(long bytesIn, long bytesOut, long timestamp) {
+        Map<String, String> annotations = new HashMap<>();
+        annotations.put(ANNOTATION_KEY_BYTESIN,   Long.toString(bytesIn));
+        annotations.put(ANNOTATION_KEY_BYTESOUT,  Long.toString(bytesOut));
+        annotations.put(ANNOTATION_KEY_TIMESTAMP, Long.toString(timestamp));
+
+        return client.getKubernetesSerialization().asJson(
+            Map.of("metadata", Map.of("annotations", annotations)));
     }
 
-    private UsageUpdate createUpdate(T topic) throws MonitoringException {
+    /**
+     * Stores the usage info from the annotations on a KafkaTopic operand
+     *  in the provided store.
+     */
+    void readAnnotations(T topic, UsageStore usage, int id) throws MonitoringException {
         ObjectMeta metadata = topic.getMetadata();
         Map<String, String> annotations = metadata.getAnnotations();
         try {
-            return new UsageUpdate(
-                topic.getStatus().getTopicName(),
-                Long.parseLong(annotations.get(ANNOTATION_KEY_BYTESIN)),
-                Long.parseLong(annotations.get(ANNOTATION_KEY_BYTESOUT)),
-                Formats.convertTimestamp(annotations.get(ANNOTATION_KEY_TIMESTAMP)));
+            usage.set(id,
+                      Long.parseLong(annotations.get(ANNOTATION_KEY_BYTESIN)),
+                      Long.parseLong(annotations.get(ANNOTATION_KEY_BYTESOUT)),
+                      Long.parseLong(annotations.get(ANNOTATION_KEY_TIMESTAMP)));
         }
         catch (NumberFormatException nfe) {
             // return null;
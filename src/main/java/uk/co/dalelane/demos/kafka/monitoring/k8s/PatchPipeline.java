@@ -0,0 +1,232 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.k8s;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.http.BasicBuilder;
+import io.fabric8.kubernetes.client.http.HttpRequest;
+import io.fabric8.kubernetes.client.http.HttpResponse;
+import io.fabric8.kubernetes.client.http.Interceptor;
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MonitorMetrics;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Threads;
+
+
+
+/**
+ * Submits patches to the Kubernetes API concurrently.
+ *
+ * The number of patches in flight is adjusted in response to the API server:
+ *  it grows by one after each full window of successful patches, and halves
+ *  when the API server responds to a patch with 429 Too Many Requests
+ *  (additive increase, multiplicative decrease). It halves at most once for
+ *  each window - responses to the patches that were already in flight when
+ *  it halved are from before the reduction, so do not halve it again. No
+ *  new patches are started until any Retry-After period requested by the
+ *  API server has passed.
+ *
+ * Throttled requests are retried by the Kubernetes client itself - this is
+ *  registered as an interceptor on that client so that it can see them.
+ *  The client is shared with other requests (reads, leases, etc.), so only
+ *  the PATCH requests made by the pipeline are counted. They are marked
+ *  with a header when they are sent, as responses can arrive on any thread.
+ *  Only the first attempt at each patch is marked - the client's retries
+ *  of a throttled patch are not more load, and are sent from its own
+ *  threads.
+ */
+public class PatchPipeline implements Interceptor {
+
+    private final Logger log = LoggerFactory.getLogger(PatchPipeline.class);
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final long DEFAULT_RETRY_AFTER_MS = 1000;
+    private static final String PIPELINE_HEADER = "X-Topics-Usage-Monitor-Patch";
+
+    private final int maxConcurrency;
+    private final ExecutorService executor;
+    private final MonitorMetrics metrics;
+
+    // adaptive concurrency state - guarded by this
+    private double concurrencyLimit;
+    private int inFlight;
+    private long pausedUntil;
+    /** Patches that were in flight at the last decrease, which need to complete before the next */
+    private int decreaseWindow;
+    private int completedSinceDecrease;
+
+    /** Set while a patch is being run by the pipeline, to identify its requests */
+    private final ThreadLocal<Boolean> inPatch = ThreadLocal.withInitial(() -> false);
+
+
+    public PatchPipeline(Config config, MonitorMetrics metrics) {
+        this.metrics = metrics;
+        maxConcurrency = Math.max(1, config.getPatchConcurrency());
+        concurrencyLimit = maxConcurrency;
+
+        // the number of patches in flight is limited by acquire()
+        executor = Threads.newTaskExecutor("patch");
+    }
+
+
+    /**
+     * Runs the provided patches, returning once they have all completed.
+     *
+     * @param patches patch operations, keyed by a name to use in log messages
+     * @return the number of patches that failed
+     */
+    public int submit(Map<String, Runnable> patches) throws MonitoringException {
+        if (patches.isEmpty()) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        AtomicInteger failures = new AtomicInteger();
+
+        List<Future<?>> pending = new ArrayList<>(patches.size());
+        try {
+            for (Map.Entry<String, Runnable> patch : patches.entrySet()) {
+                acquire();
+                pending.add(executor.submit(() -> {
+                    boolean succeeded = false;
+                    inPatch.set(true);
+                    try {
+                        log.debug("updating {}", patch.getKey());
+                        patch.getValue().run();
+                        succeeded = true;
+                    }
+                    catch (KubernetesClientException e) {
+                        log.error("Failed to update {}", patch.getKey(), e);
+                        failures.incrementAndGet();
+                    }
+                    finally {
+                        inPatch.set(false);
+                        release(succeeded);
+                    }
+                }));
+            }
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            pending.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new MonitoringException("Interrupted submitting updates to Kubernetes", e);
+        }
+        catch (ExecutionException e) {
+            throw new MonitoringException("Failed to submit updates to Kubernetes", e);
+        }
+
+        metrics.addPatchesSent(patches.size());
+        metrics.addPatchFailures(failures.get());
+
+        long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        log.info("submitted {} updates in {} ms ({} updates/sec) with {} failures, concurrency limit {}",
+                 patches.size(), elapsedMs,
+                 (patches.size() * 1000L) / elapsedMs,
+                 failures.get(),
+                 getConcurrencyLimit());
+        return failures.get();
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    private synchronized void acquire() throws InterruptedException {
+        while (true) {
+            long pausedFor = pausedUntil - System.currentTimeMillis();
+            if (pausedFor > 0) {
+                wait(pausedFor);
+            }
+            else if (inFlight >= getConcurrencyLimit()) {
+                wait();
+            }
+            else {
+                inFlight++;
+                return;
+            }
+        }
+    }
+
+    private synchronized void release(boolean succeeded) {
+        inFlight--;
+        completedSinceDecrease++;
+        if (succeeded) {
+            concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + (1.0 / concurrencyLimit));
+        }
+        notifyAll();
+    }
+
+    private synchronized void throttled(long retryAfterMs) {
+        pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + retryAfterMs);
+        if (completedSinceDecrease >= decreaseWindow) {
+            concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+            decreaseWindow = inFlight;
+            completedSinceDecrease = 0;
+            log.warn("Kubernetes API requests are being throttled - reducing concurrency limit to {}", getConcurrencyLimit());
+        }
+        notifyAll();
+    }
+
+    private synchronized int getConcurrencyLimit() {
+        return (int) concurrencyLimit;
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    @Override
+    public void before(BasicBuilder builder, HttpRequest request, RequestTags tags) {
+        if (inPatch.get() && request.method().equals("PATCH")) {
+            builder.header(PIPELINE_HEADER, "true");
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> afterFailure(HttpRequest.Builder builder, HttpResponse<?> response, RequestTags tags) {
+        if (response.code() == HTTP_TOO_MANY_REQUESTS && response.request().header(PIPELINE_HEADER) != null) {
+            throttled(getRetryAfterMs(response));
+        }
+        return CompletableFuture.completedFuture(false);
+    }
+
+    private long getRetryAfterMs(HttpResponse<?> response) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return Long.parseLong(retryAfter.trim()) * 1000;
+            }
+            catch (NumberFormatException nfe) {
+                // HTTP-date values are not used by the Kubernetes API server
+                log.debug("Unexpected Retry-After header {}", retryAfter);
+            }
+        }
+        return DEFAULT_RETRY_AFTER_MS;
+    }
+}
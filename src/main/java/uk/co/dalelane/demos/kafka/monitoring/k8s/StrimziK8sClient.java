@@ -13,16 +13,18 @@
  */
 package uk.co.dalelane.demos.kafka.monitoring.k8s;
 
+import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.dsl.MixedOperation;
 import io.fabric8.kubernetes.client.dsl.Resource;
 import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.StrimziTopic;
 import uk.co.dalelane.demos.kafka.monitoring.k8s.objects.StrimziTopicsList;
 import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
 
 public class StrimziK8sClient extends K8sClient<StrimziTopic, StrimziTopicsList> {
 
-    public StrimziK8sClient(Config config) {
-        super(config);
+    public StrimziK8sClient(Config config, Target target, KubernetesClient client, PatchPipeline patchPipeline) {
+        super(config, target, client, patchPipeline);
     }
 
     @Override
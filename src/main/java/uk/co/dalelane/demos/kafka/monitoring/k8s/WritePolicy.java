@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.k8s;
+
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageStore;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+
+
+
+/**
+ * Decides which usage changes are worth writing to Kubernetes.
+ *
+ * Every annotation update rewrites the KafkaTopic operand, which notifies
+ *  anything watching it (such as the Topic Operator) and adds to the load
+ *  on etcd. For a topic that is in constant use, most of these updates
+ *  only move the last used time forward slightly.
+ *
+ * If a freshness window is configured, changes are held back for topics
+ *  where the time already stored in Kubernetes is within the window, and
+ *  written once it has aged out of it. Topics that were idle (with a stored
+ *  time outside the window) are always written straight away, so a topic
+ *  starting to be used again is recorded promptly. The stored times are
+ *  then accurate to within the freshness window.
+ */
+public class WritePolicy {
+
+    private final long freshnessMs;
+
+
+    public WritePolicy(Config config) {
+        freshnessMs = config.getWriteFreshnessSeconds() * 1000L;
+    }
+
+
+    /**
+     * Defers changes that don't need writing yet, and includes any deferred
+     *  changes that are now due.
+     *
+     * @return number of topics with deferred changes
+     */
+    public int apply(UsageStore usage) {
+        if (freshnessMs <= 0) {
+            return 0;
+        }
+        long freshSince = System.currentTimeMillis() - freshnessMs;
+
+        // previously deferred changes that have become due
+        for (int id = usage.nextDeferred(0); id >= 0; id = usage.nextDeferred(id + 1)) {
+            if (usage.getStoredTimestamp(id) <= freshSince) {
+                usage.markChanged(id);
+            }
+        }
+
+        // new changes for topics where Kubernetes is already up to date enough
+        int deferred = 0;
+        for (int id = usage.nextChanged(0); id >= 0; id = usage.nextChanged(id + 1)) {
+            if (usage.getStoredTimestamp(id) > freshSince) {
+                usage.markDeferred(id);
+            }
+        }
+        for (int id = usage.nextDeferred(0); id >= 0; id = usage.nextDeferred(id + 1)) {
+            deferred++;
+        }
+        return deferred;
+    }
+}
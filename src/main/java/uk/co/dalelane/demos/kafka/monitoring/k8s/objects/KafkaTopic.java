@@ -13,7 +13,22 @@
  */
 package uk.co.dalelane.demos.kafka.monitoring.k8s.objects;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
 import io.fabric8.kubernetes.client.CustomResource;
 import io.fabric8.kubernetes.api.model.Namespaced;
+import io.fabric8.kubernetes.api.model.ObjectMeta;
+
+/**
+ * KafkaTopic operand, binding only the parts that the Monitor uses - the
+ *  name, labels and usage annotations in the metadata, and the topic name
+ *  from the status. Everything else is skipped when it is parsed.
+ */
+public abstract class KafkaTopic extends CustomResource<KafkaTopicSpec, KafkaTopicStatus> implements Namespaced {
 
-public abstract class KafkaTopic extends CustomResource<KafkaTopicSpec, KafkaTopicStatus> implements Namespaced {}
+    @Override
+    @JsonDeserialize(as = TopicMetadata.class)
+    public void setMetadata(ObjectMeta metadata) {
+        super.setMetadata(metadata);
+    }
+}
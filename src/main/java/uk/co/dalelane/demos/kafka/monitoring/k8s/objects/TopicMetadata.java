@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.k8s.objects;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+import io.fabric8.kubernetes.api.model.ObjectMeta;
+
+/**
+ * Metadata for KafkaTopic operands, that leaves out the parts the Monitor
+ *  doesn't use when it is parsed.
+ *
+ * Server-side apply bookkeeping (managedFields) and annotations other than
+ *  the usage ones are skipped - these are often much larger than the rest
+ *  of the operand, as kubectl stores the whole spec in an annotation.
+ */
+@JsonIgnoreProperties(value = { "managedFields", "ownerReferences", "finalizers" }, ignoreUnknown = true)
+public class TopicMetadata extends ObjectMeta {
+
+    public static final String USAGE_ANNOTATION_PREFIX = "dalelane.co.uk/lastused-";
+
+    @Override
+    @JsonDeserialize(using = UsageAnnotationsDeserializer.class)
+    public void setAnnotations(Map<String, String> annotations) {
+        super.setAnnotations(annotations);
+    }
+
+
+    /**
+     * Keeps only the usage annotations.
+     */
+    public static class UsageAnnotationsDeserializer extends JsonDeserializer<Map<String, String>> {
+        @Override
+        public Map<String, String> deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            Map<String, String> annotations = new HashMap<>();
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                return context.reportInputMismatch(Map.class, "Expected annotations to be an object");
+            }
+            for (String key = parser.nextFieldName(); key != null; key = parser.nextFieldName()) {
+                if (key.startsWith(USAGE_ANNOTATION_PREFIX)) {
+                    annotations.put(key, parser.nextTextValue());
+                }
+                else {
+                    // moves past the value without creating a string for it
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+            }
+            return annotations;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.metrics;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+
+
+
+/**
+ * Embedded HTTP server that makes the Monitor's own metrics available
+ *  for scraping at /metrics, and can serve other endpoints such as the
+ *  usage API.
+ */
+public class MetricsServer {
+
+    private final Logger log = LoggerFactory.getLogger(MetricsServer.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** Enough threads that a large API response doesn't hold up a metrics scrape */
+    private static final int THREADS = 4;
+
+    private final HttpServer server;
+    private final MonitorMetrics metrics;
+
+
+    public MetricsServer(Config config, MonitorMetrics metrics) throws MonitoringException {
+        this.metrics = metrics;
+
+        try {
+            log.debug("Starting metrics server on port {}", config.getMetricsPort());
+            server = HttpServer.create(new InetSocketAddress(config.getMetricsPort()), 0);
+        }
+        catch (IOException e) {
+            throw new MonitoringException("Failed to start metrics server", e);
+        }
+        server.createContext("/metrics", this::handleMetricsRequest);
+        AtomicInteger threadNum = new AtomicInteger();
+        server.setExecutor(Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "metrics-server-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+
+    /** Serves requests for paths starting with the provided path */
+    public void addContext(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+
+    private void handleMetricsRequest(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, 0);
+            try (Writer out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)) {
+                metrics.write(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageHistory.Activity;
+
+
+
+/**
+ * Measurements of the Monitor's own performance, which are made available
+ *  in the Prometheus text format so that they can be scraped.
+ */
+public class MonitorMetrics {
+
+    private static final String PREFIX = "topics_usage_monitor_";
+
+    /** Histogram bucket boundaries (in seconds) for durations */
+    private static final double[] DURATION_BUCKETS = { 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600 };
+
+
+    public enum Phase {
+        /** retrieving KafkaTopic operands and their annotations */
+        KUBERNETES_READ("kubernetes_read"),
+        /** retrieving the latest usage info from Prometheus */
+        PROMETHEUS_QUERY("prometheus_query"),
+        /** finding when changed topics were last used from the Prometheus history */
+        PROMETHEUS_LAST_INCREASE("prometheus_last_increase"),
+        /** writing usage annotations to KafkaTopic operands */
+        KUBERNETES_WRITE("kubernetes_write");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+
+    private final Histogram cycleDuration = new Histogram("");
+    private final Map<String, Histogram> phaseDurations = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> queryDurations = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong topicsSeen = new AtomicLong();
+    private final AtomicLong topicsChanged = new AtomicLong();
+    private final AtomicLong updatesDeferred = new AtomicLong();
+    private final AtomicLong patchesSent = new AtomicLong();
+    private final AtomicLong patchFailures = new AtomicLong();
+    private final AtomicLong prometheusResponseBytes = new AtomicLong();
+    private final AtomicLong shardRebalances = new AtomicLong();
+    private final AtomicLong remoteWriteSamples = new AtomicLong();
+    private final AtomicLong remoteWriteFailures = new AtomicLong();
+
+    private volatile long lastSuccessfulCycleMs = System.currentTimeMillis();
+
+    private volatile Map<Activity, Long> topicActivity = Map.of();
+    private volatile long historySizeBytes = -1;
+
+
+    public void recordCycle(long durationNanos) {
+        cycleDuration.observe(durationNanos);
+        lastSuccessfulCycleMs = System.currentTimeMillis();
+    }
+
+    public void recordPhase(Phase phase, long durationNanos) {
+        phaseDurations
+            .computeIfAbsent(phase.label, label -> new Histogram("phase=\"" + label + "\""))
+            .observe(durationNanos);
+    }
+
+    public void recordPrometheusQuery(String metric, long durationNanos) {
+        queryDurations
+            .computeIfAbsent(metric, name -> new Histogram("metric=\"" + escape(name) + "\""))
+            .observe(durationNanos);
+    }
+
+    public void addTopicsSeen(long count) {
+        topicsSeen.addAndGet(count);
+    }
+
+    public void addTopicsChanged(long count) {
+        topicsChanged.addAndGet(count);
+    }
+
+    public void addUpdatesDeferred(long count) {
+        updatesDeferred.addAndGet(count);
+    }
+
+    public void addPatchesSent(long count) {
+        patchesSent.addAndGet(count);
+    }
+
+    public void addPatchFailures(long count) {
+        patchFailures.addAndGet(count);
+    }
+
+    public void addPrometheusResponseBytes(long count) {
+        prometheusResponseBytes.addAndGet(count);
+    }
+
+    public void addShardRebalances(long count) {
+        shardRebalances.addAndGet(count);
+    }
+
+    public void addRemoteWriteSamples(long count) {
+        remoteWriteSamples.addAndGet(count);
+    }
+
+    public void addRemoteWriteFailures(long count) {
+        remoteWriteFailures.addAndGet(count);
+    }
+
+    public void setTopicActivity(Map<Activity, Long> counts) {
+        topicActivity = Map.copyOf(counts);
+    }
+
+    public void setHistorySizeBytes(long bytes) {
+        historySizeBytes = bytes;
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    /**
+     * Writes all of the metrics in the Prometheus text exposition format.
+     */
+    public void write(Writer out) throws IOException {
+        writeHeader(out, "cycle_duration_seconds", "histogram", "Time taken for each complete poll");
+        cycleDuration.write(out, PREFIX + "cycle_duration_seconds");
+
+        writeHeader(out, "phase_duration_seconds", "histogram", "Time taken for each phase of a poll");
+        for (Histogram histogram : phaseDurations.values()) {
+            histogram.write(out, PREFIX + "phase_duration_seconds");
+        }
+
+        writeHeader(out, "prometheus_query_duration_seconds", "histogram", "Time taken for each Prometheus query");
+        for (Histogram histogram : queryDurations.values()) {
+            histogram.write(out, PREFIX + "prometheus_query_duration_seconds");
+        }
+
+        writeCounter(out, "topics_seen_total", "KafkaTopic operands found in Kubernetes", topicsSeen);
+        writeCounter(out, "topics_changed_total", "Topics with changed usage info", topicsChanged);
+        writeCounter(out, "updates_deferred_total", "Topics with changed usage info held back from being written", updatesDeferred);
+        writeCounter(out, "patches_sent_total", "Annotation updates submitted to Kubernetes", patchesSent);
+        writeCounter(out, "patch_failures_total", "Annotation updates rejected by Kubernetes", patchFailures);
+        writeCounter(out, "prometheus_response_bytes_total", "Bytes received in Prometheus query responses", prometheusResponseBytes);
+        writeCounter(out, "shard_rebalances_total", "Times the topics were re-divided because replicas joined or left", shardRebalances);
+        writeCounter(out, "remote_write_samples_total", "Samples received from Prometheus remote write", remoteWriteSamples);
+        writeCounter(out, "remote_write_failures_total", "Prometheus remote write requests that could not be decoded", remoteWriteFailures);
+
+        if (!topicActivity.isEmpty()) {
+            writeHeader(out, "topics", "gauge", "Topics being monitored, by whether they have been used recently");
+            for (Activity activity : Activity.values()) {
+                out.write(PREFIX + "topics{activity=\"" + activity.name().toLowerCase(Locale.ROOT) + "\"} " +
+                          topicActivity.getOrDefault(activity, 0L) + "\n");
+            }
+        }
+        if (historySizeBytes >= 0) {
+            writeHeader(out, "history_size_bytes", "gauge", "Approximate memory used by the usage history of every topic");
+            out.write(PREFIX + "history_size_bytes " + historySizeBytes + "\n");
+        }
+
+        writeHeader(out, "seconds_since_last_successful_cycle", "gauge", "Time since the last poll completed successfully");
+        out.write(PREFIX + "seconds_since_last_successful_cycle " +
+                  ((System.currentTimeMillis() - lastSuccessfulCycleMs) / 1000.0) + "\n");
+    }
+
+    private static void writeHeader(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + PREFIX + name + " " + help + "\n");
+        out.write("# TYPE " + PREFIX + name + " " + type + "\n");
+    }
+
+    private static void writeCounter(Writer out, String name, String help, AtomicLong value) throws IOException {
+        writeHeader(out, name, "counter", help);
+        out.write(PREFIX + name + " " + value.get() + "\n");
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    private static class Histogram {
+
+        private final String labels;
+
+        private final long[] bucketCounts = new long[DURATION_BUCKETS.length];
+        private long count;
+        private double sum;
+
+        private Histogram(String labels) {
+            this.labels = labels;
+        }
+
+        private synchronized void observe(long durationNanos) {
+            double seconds = durationNanos / 1_000_000_000.0;
+            for (int i = 0; i < DURATION_BUCKETS.length; i++) {
+                if (seconds <= DURATION_BUCKETS[i]) {
+                    bucketCounts[i]++;
+                }
+            }
+            count++;
+            sum += seconds;
+        }
+
+        private synchronized void write(Writer out, String name) throws IOException {
+            String separator = labels.isEmpty() ? "" : labels + ",";
+            for (int i = 0; i < DURATION_BUCKETS.length; i++) {
+                out.write(name + "_bucket{" + separator + "le=\"" + DURATION_BUCKETS[i] + "\"} " + bucketCounts[i] + "\n");
+            }
+            out.write(name + "_bucket{" + separator + "le=\"+Inf\"} " + count + "\n");
+
+            String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.write(name + "_sum" + suffix + " " + sum + "\n");
+            out.write(name + "_count" + suffix + " " + count + "\n");
+        }
+    }
+}
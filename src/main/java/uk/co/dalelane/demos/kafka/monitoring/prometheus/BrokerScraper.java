@@ -0,0 +1,242 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Threads;
+
+
+
+/**
+ * Gets the latest usage info directly from the metrics endpoint on each
+ *  Kafka broker, instead of querying Prometheus.
+ *
+ * Broker pods are found from their labels each time, so brokers that are
+ *  added or removed are picked up straight away. All of the brokers are
+ *  scraped in parallel, and the per-topic values from each broker are
+ *  returned separately (identified by the pod name) so that a broker that
+ *  restarts can be told apart from a change in usage.
+ *
+ * If any broker in a Kafka cluster can't be scraped, there are no results
+ *  for that cluster in that poll.
+ */
+public class BrokerScraper implements UsageSource {
+
+    private final Logger log = LoggerFactory.getLogger(BrokerScraper.class);
+
+    private final KubernetesClient kubernetes;
+    private final HttpClient client;
+    private final ExecutorService executor;
+
+    private final int port;
+    private final String path;
+    private final Duration timeout;
+
+
+    public BrokerScraper(Config config, KubernetesClient kubernetes) {
+        this.kubernetes = kubernetes;
+        port = config.getBrokerMetricsPort();
+        path = config.getBrokerMetricsPath().startsWith("/") ? config.getBrokerMetricsPath() : "/" + config.getBrokerMetricsPath();
+        timeout = Duration.ofSeconds(Math.max(1, config.getBrokerScrapeTimeoutSeconds()));
+
+        executor = Threads.newTaskExecutor("scrape");
+        client = HttpClient.newBuilder()
+            .connectTimeout(timeout)
+            .executor(executor)
+            .build();
+    }
+
+
+    @Override
+    public void query(List<Target> targets, List<String> metricNames, ResultHandler handler) throws MonitoringException {
+        scrape(targets, metricNames, null, handler);
+    }
+
+    @Override
+    public void query(List<Target> targets, List<String> metricNames, Collection<String> topics, ResultHandler handler) throws MonitoringException {
+        if (topics.isEmpty()) {
+            return;
+        }
+        scrape(targets, metricNames, new HashSet<>(topics), handler);
+    }
+
+
+    private void scrape(List<Target> targets, List<String> metricNames, Set<String> topics, ResultHandler handler) throws MonitoringException {
+        long start = System.nanoTime();
+        long timestamp = System.currentTimeMillis();
+
+        // start scraping every broker in every cluster
+        Map<Target, Map<String, CompletableFuture<Map<String, double[]>>>> scrapes = new LinkedHashMap<>();
+        for (Target target : targets) {
+            Map<String, CompletableFuture<Map<String, double[]>>> brokers = new LinkedHashMap<>();
+            try {
+                for (Map.Entry<String, String> broker : getBrokerAddresses(target).entrySet()) {
+                    brokers.put(broker.getKey(), scrapeBroker(broker.getValue(), metricNames, topics));
+                }
+                scrapes.put(target, brokers);
+            }
+            catch (KubernetesClientException e) {
+                log.error("Failed to find Kafka broker pods for {}", target, e);
+            }
+        }
+
+        int numBrokers = 0;
+        for (Map.Entry<Target, Map<String, CompletableFuture<Map<String, double[]>>>> scrape : scrapes.entrySet()) {
+            Target target = scrape.getKey();
+            Map<String, CompletableFuture<Map<String, double[]>>> brokers = scrape.getValue();
+            numBrokers += brokers.size();
+
+            // wait for every broker before returning any results for the cluster
+            Map<String, Map<String, double[]>> results = new LinkedHashMap<>();
+            try {
+                for (Map.Entry<String, CompletableFuture<Map<String, double[]>>> broker : brokers.entrySet()) {
+                    results.put(broker.getKey(), broker.getValue().get());
+                }
+            }
+            catch (ExecutionException e) {
+                log.error("Failed to scrape metrics from Kafka brokers for {}", target, e.getCause());
+                continue;
+            }
+            catch (InterruptedException e) {
+                scrapes.values().forEach(futures -> futures.values().forEach(future -> future.cancel(true)));
+                Thread.currentThread().interrupt();
+                throw new MonitoringException("Interrupted scraping Kafka brokers", e);
+            }
+
+            for (Map.Entry<String, Map<String, double[]>> broker : results.entrySet()) {
+                for (Map.Entry<String, double[]> topic : broker.getValue().entrySet()) {
+                    double[] values = topic.getValue();
+                    for (int m = 0; m < metricNames.size(); m++) {
+                        if (!Double.isNaN(values[m])) {
+                            handler.accept(target, metricNames.get(m), new PrometheusData(topic.getKey(), timestamp, (long) values[m], broker.getKey()));
+                        }
+                    }
+                }
+            }
+        }
+
+        log.debug("Scraped {} Kafka brokers in {} ms", numBrokers, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Returns the host and port for the metrics endpoint of each running
+     *  broker pod in the provided Kafka cluster, by pod name.
+     */
+    private Map<String, String> getBrokerAddresses(Target target) {
+        String prefix = target.getK8sAnnotationPrefix();
+        List<Pod> pods = kubernetes.pods()
+            .inNamespace(target.getNamespace())
+            .withLabel(prefix + "/cluster", target.getCluster())
+            .withLabel(prefix + "/kind", "Kafka")
+            .list()
+            .getItems();
+
+        Map<String, String> addresses = new LinkedHashMap<>();
+        for (Pod pod : pods) {
+            Map<String, String> labels = pod.getMetadata().getLabels();
+            if ("false".equals(labels.get(prefix + "/broker-role"))) {
+                // controller-only nodes don't have any per-topic metrics
+                continue;
+            }
+            if (pod.getStatus() == null || !"Running".equals(pod.getStatus().getPhase()) || pod.getStatus().getPodIP() == null) {
+                log.warn("Kafka broker pod {} is not running", pod.getMetadata().getName());
+                continue;
+            }
+            String ip = pod.getStatus().getPodIP();
+            addresses.put(pod.getMetadata().getName(), (ip.contains(":") ? "[" + ip + "]" : ip) + ":" + port);
+        }
+        log.debug("Found {} Kafka broker pods for {}", addresses.size(), target);
+        return addresses;
+    }
+
+    /**
+     * Scrapes the metrics endpoint on a single broker, returning the
+     *  values of the provided metrics for each topic.
+     */
+    private CompletableFuture<Map<String, double[]>> scrapeBroker(String address, List<String> metricNames, Set<String> topics) {
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create("http://" + address + path))
+            .header("Accept-Encoding", "gzip")
+            .timeout(timeout)
+            .GET()
+            .build();
+
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+            .thenApplyAsync(response -> {
+                Map<String, double[]> values = new HashMap<>();
+                try (InputStream body = decode(response)) {
+                    if (response.statusCode() != 200) {
+                        throw new CompletionException(new MonitoringException("Unexpected response " + response.statusCode() + " from " + address));
+                    }
+                    new TextFormatParser(metricNames).parse(body, (metric, topic, value) -> {
+                        if (topics == null || topics.contains(topic)) {
+                            double[] topicValues = values.computeIfAbsent(topic, t -> {
+                                double[] initial = new double[metricNames.size()];
+                                Arrays.fill(initial, Double.NaN);
+                                return initial;
+                            });
+                            // each broker should only have one sample per topic, but
+                            //  add them up in case of extra labels
+                            topicValues[metric] = Double.isNaN(topicValues[metric]) ? value : topicValues[metric] + value;
+                        }
+                    });
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                catch (MonitoringException e) {
+                    throw new CompletionException(e);
+                }
+                return values;
+            }, executor);
+    }
+
+    private InputStream decode(HttpResponse<InputStream> response) throws IOException {
+        boolean compressed = response.headers()
+            .firstValue("Content-Encoding")
+            .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+            .orElse(false);
+        return compressed ? new GZIPInputStream(response.body(), 64 * 1024) : response.body();
+    }
+}
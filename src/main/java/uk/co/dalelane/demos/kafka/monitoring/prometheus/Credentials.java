@@ -0,0 +1,227 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+
+
+
+/**
+ * Holds the service account token and CA certificate used to connect to
+ *  Prometheus, so that they are not read from disk for every query.
+ *
+ * The directories containing them are watched, and both are reloaded when
+ *  anything in either directory changes - which is how Kubernetes rotates
+ *  projected service account tokens and updates mounted config maps. If a
+ *  reload fails, the previous credentials are kept.
+ *
+ * The SSL context is created once, with a trust manager that always uses
+ *  the latest CA, so that the HTTP client (and its pooled connections)
+ *  don't need to be recreated when the CA changes.
+ */
+class Credentials {
+
+    private final Logger log = LoggerFactory.getLogger(Credentials.class);
+
+    private final Path tokenFile;
+    private final Path caFile;
+
+    private volatile String token;
+    private volatile X509TrustManager trustManager;
+
+    private final SSLContext sslContext;
+
+
+    Credentials(Path tokenFile, Path caFile) throws MonitoringException {
+        this.tokenFile = tokenFile;
+        this.caFile = caFile;
+
+        try {
+            reloadToken();
+            reloadCa();
+
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[] { new ReloadingTrustManager() }, null);
+        }
+        catch (GeneralSecurityException | IOException e) {
+            throw new MonitoringException("Failed to load Prometheus credentials", e);
+        }
+
+        startWatching();
+    }
+
+
+    /** Returns the value for the Authorization header */
+    String getAuthorization() {
+        return "Bearer " + token;
+    }
+
+    SSLContext getSslContext() {
+        return sslContext;
+    }
+
+
+    private void reloadToken() throws IOException {
+        token = Files.readString(tokenFile).trim();
+    }
+
+    private void reloadCa() throws GeneralSecurityException, IOException {
+        X509Certificate caCert;
+        try (InputStream in = Files.newInputStream(caFile)) {
+            caCert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        }
+
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        ks.load(null);
+        ks.setCertificateEntry("prometheus-ca", caCert);
+
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        for (TrustManager tm : tmf.getTrustManagers()) {
+            if (tm instanceof X509TrustManager) {
+                trustManager = (X509TrustManager) tm;
+                return;
+            }
+        }
+        throw new CertificateException("No X509 trust manager available");
+    }
+
+    private void reload() {
+        try {
+            reloadToken();
+            reloadCa();
+            log.debug("Reloaded Prometheus credentials");
+        }
+        catch (GeneralSecurityException | IOException e) {
+            log.error("Failed to reload Prometheus credentials - keeping the previous ones", e);
+        }
+    }
+
+
+    private void startWatching() {
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            for (Path dir : new Path[] { tokenFile.toAbsolutePath().getParent(), caFile.toAbsolutePath().getParent() }) {
+                dir.register(watcher,
+                             StandardWatchEventKinds.ENTRY_CREATE,
+                             StandardWatchEventKinds.ENTRY_MODIFY,
+                             StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+        catch (IOException e) {
+            log.warn("Unable to watch Prometheus credentials for changes", e);
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    // files in mounted volumes are replaced in several steps,
+                    //  so wait for them all before reloading
+                    do {
+                        key.pollEvents();
+                        key.reset();
+                        key = watcher.poll(1, TimeUnit.SECONDS);
+                    } while (key != null);
+                    reload();
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException e) {
+                log.debug("Stopped watching Prometheus credentials");
+            }
+        }, "credentials-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Checks server certificates using the latest CA.
+     */
+    private class ReloadingTrustManager extends X509ExtendedTrustManager {
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            trustManager.checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            current().checkServerTrusted(chain, authType, socket);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            current().checkServerTrusted(chain, authType, engine);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            trustManager.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            current().checkClientTrusted(chain, authType, socket);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            current().checkClientTrusted(chain, authType, engine);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return trustManager.getAcceptedIssuers();
+        }
+
+        /** The default trust manager is an extended one, which also checks host names */
+        private X509ExtendedTrustManager current() throws CertificateException {
+            X509TrustManager tm = trustManager;
+            if (tm instanceof X509ExtendedTrustManager) {
+                return (X509ExtendedTrustManager) tm;
+            }
+            throw new CertificateException("Unexpected trust manager " + tm.getClass().getName());
+        }
+    }
+}
@@ -14,42 +14,40 @@
 package uk.co.dalelane.demos.kafka.monitoring.prometheus;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.security.GeneralSecurityException;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-import java.time.Instant;
-import java.util.ArrayList;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.List;
-
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MonitorMetrics;
 import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
-import uk.co.dalelane.demos.kafka.monitoring.utils.Formats;
-import uk.co.dalelane.demos.kafka.monitoring.utils.Config.Mode;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Threads;
 
 
 
@@ -63,115 +61,262 @@ public class PrometheusClient {
     private final static String PROMETHEUS_CA_PATH = "creds/prometheus-ca.crt";
     private final static String K8S_TOKEN_PATH = "creds/k8s-token";
 
-    private final String clusterNameKey;
+    /** Amount of an error response to include in the exception */
+    private final static int MAX_ERROR_BODY_LENGTH = 512;
+
+    private final PrometheusResponseParser parser;
 
-    private HttpClient client;
+    private final HttpClient client;
+    private final Credentials credentials;
+    private final Duration queryTimeout;
 
     private Config config;
+    private MonitorMetrics metrics;
 
-    public PrometheusClient(Config config) throws MonitoringException {
+    public PrometheusClient(Config config, MonitorMetrics metrics) throws MonitoringException {
         this.config = config;
-
-        clusterNameKey = (config.getMode() == Mode.EVENTSTREAMS) ?
-            "eventstreams_ibm_com_cluster" :
-            "strimzi_io_cluster";
+        this.metrics = metrics;
+        parser = new PrometheusResponseParser(config.getPrometheusBrokerLabel());
 
         try {
-            log.debug("Creating HTTP client for Prometheus API");
-            client = HttpClient
-                .newBuilder()
-                .sslContext(setupSslContext())
-                .build();
+            credentials = new Credentials(getToken(), Path.of(PROMETHEUS_CA_PATH));
         }
-        catch (GeneralSecurityException | IOException e) {
+        catch (FileNotFoundException e) {
             throw new MonitoringException("Failed to create Prometheus client", e);
         }
+        queryTimeout = Duration.ofSeconds(Math.max(1, config.getPrometheusQueryTimeoutSeconds()));
+
+        // queries share persistent connections - multiplexed over a single
+        //  connection if Prometheus supports HTTP/2
+        log.debug("Creating HTTP client for Prometheus API");
+        client = HttpClient
+            .newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(Math.max(1, config.getPrometheusConnectTimeoutSeconds())))
+            .executor(Threads.newTaskExecutor("prometheus"))
+            .sslContext(credentials.getSslContext())
+            .build();
     }
 
 
-    public List<PrometheusData> query(String query) throws MonitoringException {
+    /** Topic label matcher that selects every topic */
+    public static final String ALL_TOPICS = "topic!=\"\"";
+
+
+    /**
+     * Retrieves the latest value of the provided metric for each of the
+     *  selected topics in the provided Kafka clusters, summed across all
+     *  brokers. The clusters are retrieved in a single query, so must all
+     *  have the same mode.
+     *
+     * The response is parsed as it is received, on a thread from the provided
+     *  executor, with each result passed to the provided handler (together
+     *  with the cluster it is for) so the whole response is never held in
+     *  memory.
+     *
+     * @param topicMatcher PromQL label matcher for the topics to retrieve
+     */
+    public CompletableFuture<Void> queryAsync(List<Target> targets, String metric, String topicMatcher, Executor executor, BiConsumer<Target, PrometheusData> handler) throws MonitoringException {
+        return sendQuery(targets, createTopicsQuery(targets, metric, topicMatcher), executor, handler);
+    }
+
+    /**
+     * Retrieves the time that any of the provided metrics last increased for
+     *  each of the selected topics in the provided Kafka clusters, within the
+     *  lookback window. The value in each result is the time of the last
+     *  increase, in epoch seconds, accurate to within twice the resolution.
+     *  Topics with no increase in the lookback window are not returned.
+     *
+     * The clusters are retrieved in a single query, so must all have the
+     *  same mode. Results are parsed as with {@link #queryAsync}
+     *
+     * @param topicMatcher PromQL label matcher for the topics to retrieve
+     */
+    public CompletableFuture<Void> queryLastIncreaseAsync(List<Target> targets, List<String> metrics, String topicMatcher, long lookbackSeconds, long resolutionSeconds, Executor executor, BiConsumer<Target, PrometheusData> handler) throws MonitoringException {
+        return sendQuery(targets, createLastIncreaseQuery(targets, metrics, topicMatcher, lookbackSeconds, resolutionSeconds), executor, handler);
+    }
+
+    private CompletableFuture<Void> sendQuery(List<Target> targets, String query, Executor executor, BiConsumer<Target, PrometheusData> handler) throws MonitoringException {
         try {
             String url  = config.getPrometheusUrl() + INSTANT_QUERY_PATH + "?query=" + URLEncoder.encode(query, "UTF-8");
             log.debug("prometheus query {}", url);
 
             HttpRequest request = HttpRequest.newBuilder()
                 .uri(URI.create(url))
-                .header("Authorization", "Bearer " + Files.readString(getToken()).trim())
+                .header("Authorization", credentials.getAuthorization())
+                .header("Accept-Encoding", "gzip")
+                .timeout(queryTimeout)
                 .GET()
                 .build();
 
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-
-            ObjectMapper mapper = new ObjectMapper();
-            String responseStr = response.body();
-            log.debug(responseStr);
-            JsonNode root = mapper.readTree(responseStr);
-
-            return parse(root);
-        }
-        catch (JsonProcessingException e) {
-            throw new MonitoringException("Failed to parse Prometheus API response", e);
+            CompletableFuture<Void> completed = new CompletableFuture<>();
+            CompletableFuture<HttpResponse<InputStream>> sent = client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+            sent
+                .thenAcceptAsync(response -> {
+                    log.debug("prometheus response status {}", response.statusCode());
+                    try (InputStream body = decode(response)) {
+                        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                            String start = new String(body.readNBytes(MAX_ERROR_BODY_LENGTH), StandardCharsets.UTF_8);
+                            throw new MonitoringException("Prometheus query failed with status " + response.statusCode() + ": " + start);
+                        }
+                        parser.parse(body, targets, (target, result) -> {
+                            // stops reading the response (closing it) if the query was cancelled
+                            if (completed.isCancelled()) {
+                                throw new CancellationException();
+                            }
+                            handler.accept(target, result);
+                        });
+                    }
+                    catch (JsonProcessingException e) {
+                        throw new CompletionException(new MonitoringException("Failed to parse Prometheus API response", e));
+                    }
+                    catch (IOException e) {
+                        throw new CompletionException(new MonitoringException("Failed to read Prometheus API response", e));
+                    }
+                    catch (MonitoringException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor)
+                .whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        completed.complete(null);
+                    }
+                    else {
+                        completed.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                    }
+                });
+            // cancelling the query cancels the request, if it is still waiting for a response
+            completed.whenComplete((ignored, error) -> {
+                if (completed.isCancelled()) {
+                    sent.cancel(true);
+                }
+            });
+            return completed;
         }
-        catch (IOException | InterruptedException e) {
+        catch (IOException e) {
             throw new MonitoringException("Failed to submit Prometheus query", e);
         }
     }
 
+    private InputStream decode(HttpResponse<InputStream> response) throws IOException {
+        boolean compressed = response.headers()
+            .firstValue("Content-Encoding")
+            .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+            .orElse(false);
+        InputStream body = new CountingInputStream(response.body());
+        return compressed ? new GZIPInputStream(body) : body;
+    }
 
-    private List<PrometheusData> parse(JsonNode prometheusQueryResponse) throws MonitoringException {
-        JsonNode results = prometheusQueryResponse.path("data").path("result");
-        if (results.isArray()) {
-            List<PrometheusData> parsedData = new ArrayList<>();
-            for (int i = 0; i < results.size(); i++) {
-                JsonNode result = results.get(i);
+    /**
+     * Counts the bytes received in a response (before any decompression).
+     */
+    private class CountingInputStream extends FilterInputStream {
+        private long count = 0;
 
-                JsonNode metricData = result.path("metric");
-                if (isTopicInCorrectCluster(metricData) && isTopicInCorrectNamespace(metricData)) {
-                    String topic = metricData.path("topic").asText();
-                    JsonNode values = result.path("value");
-                    Instant timestamp = Formats.parseTimestamp(values.get(0).asDouble());
-                    Long totalbytes = values.get(1).asLong();
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
 
-                    PrometheusData nextData = new PrometheusData(topic, timestamp, totalbytes);
-                    log.debug("prometheus data {}", nextData);
-                    parsedData.add(nextData);
-                }
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
             }
-            return parsedData;
+            return b;
         }
-        else {
-            throw new MonitoringException("Unexpected results");
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            metrics.addPrometheusResponseBytes(count);
+            count = 0;
+            super.close();
         }
     }
 
 
-    private boolean isTopicInCorrectCluster(JsonNode metricData) {
-        return metricData.path(clusterNameKey).asText().equals(config.getCluster());
+    /**
+     * Creates a PromQL query that aggregates the series for the provided
+     *  metric into a single series for each topic on each broker (or for
+     *  each topic, if there is no broker label) in each cluster, selecting
+     *  only series for the Kafka clusters being monitored so that this
+     *  filtering is done by Prometheus.
+     */
+    private String createTopicsQuery(List<Target> targets, String metric, String topicMatcher) {
+        String clusterLabel = targets.get(0).getPrometheusClusterLabel();
+        String brokerLabel = config.getPrometheusBrokerLabel();
+        return "sum by (namespace, " + clusterLabel + ", topic" + (brokerLabel.isEmpty() ? "" : ", " + brokerLabel) + ") (" +
+                    metric + "{" +
+                        createLabelMatcher(clusterLabel, targets, Target::getCluster) + "," +
+                        createLabelMatcher("namespace", targets, Target::getNamespace) + "," +
+                        topicMatcher +
+                    "}" +
+                ")";
     }
 
-    private boolean isTopicInCorrectNamespace(JsonNode metricData) {
-        return metricData.path("namespace").asText().equals(config.getNamespace());
+    /**
+     * Creates a PromQL query that finds the last time the aggregated series
+     *  for each topic increased, by evaluating whether any of the metrics
+     *  increased at each step of a subquery over the lookback window and
+     *  taking the latest evaluation time where one did.
+     */
+    private String createLastIncreaseQuery(List<Target> targets, List<String> metrics, String topicMatcher, long lookbackSeconds, long resolutionSeconds) {
+        String clusterLabel = targets.get(0).getPrometheusClusterLabel();
+        String increased = metrics.stream()
+            .map(metric ->
+                "(sum by (namespace, " + clusterLabel + ", topic) (" +
+                    "increase(" +
+                        metric + "{" +
+                            createLabelMatcher(clusterLabel, targets, Target::getCluster) + "," +
+                            createLabelMatcher("namespace", targets, Target::getNamespace) + "," +
+                            topicMatcher +
+                        "}[" + (2 * resolutionSeconds) + "s]" +
+                    ")" +
+                ") > 0)")
+            .collect(Collectors.joining(" or "));
+
+        return "max_over_time(timestamp(" + increased + ")[" + lookbackSeconds + "s:" + resolutionSeconds + "s])";
     }
 
+    /**
+     * Creates a PromQL label matcher for the given label values - an exact
+     *  match if there is only one value, otherwise a regular expression.
+     */
+    private static String createLabelMatcher(String label, List<Target> targets, Function<Target, String> value) {
+        Set<String> values = new TreeSet<>();
+        targets.forEach(target -> values.add(value.apply(target)));
 
-    // ------------------------------------------------------------------------
+        if (values.size() == 1) {
+            return label + "=\"" + escapeLabelValue(values.iterator().next()) + "\"";
+        }
+        else {
+            return label + "=~\"" +
+                escapeLabelValue(values.stream()
+                    .map(PrometheusClient::escapeRegex)
+                    .collect(Collectors.joining("|"))) +
+                "\"";
+        }
+    }
 
-    private static SSLContext setupSslContext() throws CertificateException, KeyStoreException, NoSuchAlgorithmException, IOException, KeyManagementException {
-        CertificateFactory cf = CertificateFactory.getInstance("X.509");
-        FileInputStream fis = new FileInputStream(PROMETHEUS_CA_PATH);
-        X509Certificate caCert = (X509Certificate) cf.generateCertificate(fis);
+    static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
 
-        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-        ks.load(null);
-        ks.setCertificateEntry("prometheus-ca", caCert);
+    static String escapeRegex(String value) {
+        return value.replaceAll("[\\\\.+*?()|\\[\\]{}^$]", "\\\\$0");
+    }
 
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        tmf.init(ks);
 
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(null, tmf.getTrustManagers(), null);
-        return sslContext;
-    }
+    // ------------------------------------------------------------------------
 
     private Path getToken() throws FileNotFoundException {
         File runningInKubernetes = new File("/var/run/secrets/kubernetes.io/serviceaccount/token");
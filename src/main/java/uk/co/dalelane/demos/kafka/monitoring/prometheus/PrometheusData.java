@@ -13,6 +13,15 @@
  */
 package uk.co.dalelane.demos.kafka.monitoring.prometheus;
 
-import java.time.Instant;
+/**
+ * @param timestamp time of the sample, as epoch milliseconds
+ * @param broker the broker that the value is from, or null if it is the
+ *  total across all of the brokers
+ */
+public record PrometheusData(String topic, long timestamp, long totalbytes, String broker) {
 
-public record PrometheusData(String topic, Instant timestamp, Long totalbytes) {}
+    /** Total across all of the brokers */
+    public PrometheusData(String topic, long timestamp, long totalbytes) {
+        this(topic, timestamp, totalbytes, null);
+    }
+}
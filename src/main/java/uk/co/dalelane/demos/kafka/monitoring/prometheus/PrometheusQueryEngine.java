@@ -0,0 +1,270 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MonitorMetrics;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Threads;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config.Mode;
+
+
+
+/**
+ * Runs the queries for several metrics concurrently, splitting each one
+ *  into queries for separate shards of the topics so that no single query
+ *  has to return every topic.
+ *
+ * Topics are sharded by the first character of their name, so that each
+ *  shard can be selected with a simple regular expression. Kafka clusters
+ *  with the same mode are combined into a single query. Results from every
+ *  query are passed to a single handler, one at a time. If any query
+ *  fails, the others are cancelled, as the results are not used.
+ */
+public class PrometheusQueryEngine implements UsageSource {
+
+    private final Logger log = LoggerFactory.getLogger(PrometheusQueryEngine.class);
+
+    /**
+     * Characters that a Kafka topic name can contain. The hyphen is last so
+     *  that it is not treated as a range when used in a character class.
+     */
+    private static final String TOPIC_NAME_CHARS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz.-";
+
+    /**
+     * Maximum length of a label matcher listing topic names, to keep the
+     *  query URL within the limits of typical proxies.
+     */
+    private static final int MAX_TOPIC_MATCHER_LENGTH = 4000;
+
+    /** Name used in place of a metric name for last increase queries */
+    public static final String LAST_INCREASE = "last_increase";
+
+    private final PrometheusClient prometheus;
+    private final MonitorMetrics metrics;
+
+    private final int concurrency;
+    private final List<String> topicShards;
+    private final ExecutorService executor;
+
+
+    public PrometheusQueryEngine(Config config, PrometheusClient prometheus, MonitorMetrics metrics) {
+        this.prometheus = prometheus;
+        this.metrics = metrics;
+
+        concurrency = Math.max(1, config.getPrometheusQueryConcurrency());
+        topicShards = createTopicShards(config.getPrometheusQueryShards());
+
+        // the number of queries at once is limited by the permits in query()
+        executor = Threads.newTaskExecutor("prometheus-query");
+    }
+
+
+    /**
+     * Retrieves the latest values of each of the provided metrics for all
+     *  topics in the provided Kafka clusters, returning once every query
+     *  has completed.
+     *
+     * @param handler called with the cluster, metric name and result for each topic
+     */
+    @Override
+    public void query(List<Target> targets, List<String> metricNames, ResultHandler handler) throws MonitoringException {
+        query(targets, metricNames, topicShards, prometheus::queryAsync, handler);
+    }
+
+    /**
+     * Retrieves the latest values of each of the provided metrics for only
+     *  the named topics in the provided Kafka clusters, returning once every
+     *  query has completed.
+     *
+     * @param handler called with the cluster, metric name and result for each topic
+     */
+    @Override
+    public void query(List<Target> targets, List<String> metricNames, Collection<String> topics, ResultHandler handler) throws MonitoringException {
+        if (topics.isEmpty()) {
+            return;
+        }
+        query(targets, metricNames, createTopicBatches(topics), prometheus::queryAsync, handler);
+    }
+
+    /**
+     * Retrieves the time that any of the provided metrics last increased,
+     *  within the lookback window, for the named topics in the provided
+     *  Kafka clusters - or for all topics if no names are provided. Returns
+     *  once every query has completed.
+     *
+     * @param handler called with the cluster, {@link #LAST_INCREASE} and result
+     *  for each topic, where the result value is the time of the last increase
+     *  in epoch seconds
+     */
+    public void queryLastIncrease(List<Target> targets, List<String> metricNames, Collection<String> topics, long lookbackSeconds, long resolutionSeconds, ResultHandler handler) throws MonitoringException {
+        query(targets,
+              List.of(LAST_INCREASE),
+              topics == null ? topicShards : createTopicBatches(topics),
+              (batch, query, topicMatcher, executor, batchHandler) ->
+                  prometheus.queryLastIncreaseAsync(batch, metricNames, topicMatcher, lookbackSeconds, resolutionSeconds, executor, batchHandler),
+              handler);
+    }
+
+    void query(List<Target> targets, List<String> metricNames, List<String> topicMatchers, QuerySender sender, ResultHandler handler) throws MonitoringException {
+        long start = System.nanoTime();
+
+        Map<Mode, List<Target>> targetsByMode = new EnumMap<>(Mode.class);
+        for (Target target : targets) {
+            targetsByMode.computeIfAbsent(target.getMode(), mode -> new ArrayList<>()).add(target);
+        }
+
+        Object handlerLock = new Object();
+        Semaphore permits = new Semaphore(concurrency);
+        List<CompletableFuture<Void>> queries = new ArrayList<>();
+        // completed with the error from the first query to fail
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        try {
+            for (List<Target> batch : targetsByMode.values()) {
+                for (String metric : metricNames) {
+                    for (String topicShard : topicMatchers) {
+                        permits.acquire();
+                        if (failed.isDone()) {
+                            permits.release();
+                            failed.get();
+                        }
+                        long queryStart = System.nanoTime();
+                        CompletableFuture<Void> query;
+                        try {
+                            query = sender.send(batch, metric, topicShard, executor, (target, result) -> {
+                                synchronized (handlerLock) {
+                                    // no more results once any query has failed
+                                    if (failed.isDone()) {
+                                        throw new CancellationException();
+                                    }
+                                    handler.accept(target, metric, result);
+                                }
+                            });
+                        }
+                        catch (MonitoringException e) {
+                            permits.release();
+                            cancel(queries, failed, handlerLock);
+                            throw e;
+                        }
+                        // the future from the sender is kept, as cancelling a
+                        //  dependent future would not cancel the query itself
+                        queries.add(query);
+                        query.whenComplete((ignored, error) -> {
+                            if (error != null) {
+                                failed.completeExceptionally(error);
+                            }
+                            permits.release();
+                            metrics.recordPrometheusQuery(metric, System.nanoTime() - queryStart);
+                        });
+                    }
+                }
+            }
+
+            CompletableFuture.anyOf(CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[0])), failed).get();
+        }
+        catch (InterruptedException e) {
+            cancel(queries, failed, handlerLock);
+            Thread.currentThread().interrupt();
+            throw new MonitoringException("Interrupted querying Prometheus", e);
+        }
+        catch (ExecutionException e) {
+            cancel(queries, failed, handlerLock);
+            if (e.getCause() instanceof MonitoringException) {
+                throw (MonitoringException) e.getCause();
+            }
+            throw new MonitoringException("Failed to query Prometheus", e);
+        }
+
+        log.debug("{} Prometheus queries completed in {} ms",
+                  queries.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+
+    /**
+     * Cancels the provided queries, and stops any more of their results being
+     *  passed to the handler - waiting for any result that is being handled.
+     */
+    private static void cancel(List<CompletableFuture<Void>> queries, CompletableFuture<Void> failed, Object handlerLock) {
+        synchronized (handlerLock) {
+            failed.cancel(true);
+        }
+        queries.forEach(query -> query.cancel(true));
+    }
+
+
+    @FunctionalInterface
+    interface QuerySender {
+        CompletableFuture<Void> send(List<Target> targets, String metric, String topicMatcher, Executor executor, BiConsumer<Target, PrometheusData> handler) throws MonitoringException;
+    }
+
+
+    /**
+     * Returns label matchers that split the topics into the requested number
+     *  of shards, based on the first character of the topic name.
+     */
+    private static List<String> createTopicShards(int numShards) {
+        List<String> shards = new ArrayList<>();
+        if (numShards <= 1) {
+            shards.add(PrometheusClient.ALL_TOPICS);
+            return shards;
+        }
+
+        numShards = Math.min(numShards, TOPIC_NAME_CHARS.length());
+        for (int i = 0; i < numShards; i++) {
+            int from = (i * TOPIC_NAME_CHARS.length()) / numShards;
+            int to = ((i + 1) * TOPIC_NAME_CHARS.length()) / numShards;
+            shards.add("topic=~\"[" + TOPIC_NAME_CHARS.substring(from, to) + "].*\"");
+        }
+        return shards;
+    }
+
+    /**
+     * Returns label matchers that select the provided topics by name,
+     *  split so that no matcher is too long.
+     */
+    private static List<String> createTopicBatches(Collection<String> topics) {
+        List<String> batches = new ArrayList<>();
+        StringBuilder batch = new StringBuilder();
+        for (String topic : topics) {
+            String escaped = PrometheusClient.escapeLabelValue(PrometheusClient.escapeRegex(topic));
+            if (batch.length() > 0 && batch.length() + escaped.length() + 1 > MAX_TOPIC_MATCHER_LENGTH) {
+                batches.add("topic=~\"" + batch + "\"");
+                batch.setLength(0);
+            }
+            if (batch.length() > 0) {
+                batch.append('|');
+            }
+            batch.append(escaped);
+        }
+        batches.add("topic=~\"" + batch + "\"");
+        return batches;
+    }
+}
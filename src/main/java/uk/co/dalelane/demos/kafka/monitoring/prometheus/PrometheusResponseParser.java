@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Formats;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+
+
+/**
+ * Streaming parser for Prometheus instant query responses, which reads
+ *  the response token by token without building a tree of the response.
+ */
+class PrometheusResponseParser {
+
+    private final Logger log = LoggerFactory.getLogger(PrometheusResponseParser.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** Label that identifies the broker a series is from, or empty if not used */
+    private final String brokerLabel;
+
+
+    PrometheusResponseParser(String brokerLabel) {
+        this.brokerLabel = brokerLabel;
+    }
+
+    /**
+     * Parses a Prometheus instant query response, token by token, passing
+     *  each result to the provided handler.
+     */
+    void parse(InputStream prometheusQueryResponse, List<Target> targets, BiConsumer<Target, PrometheusData> handler) throws IOException, MonitoringException {
+        try (JsonParser parser = MAPPER.createParser(prometheusQueryResponse)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new MonitoringException("Unexpected results");
+            }
+
+            String status = null;
+            String error = null;
+            boolean foundResults = false;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "status":
+                        status = parser.getText();
+                        break;
+                    case "error":
+                        error = parser.getText();
+                        break;
+                    case "data":
+                        foundResults = parseData(parser, targets, handler);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+
+            if (!"success".equals(status)) {
+                throw new MonitoringException("Prometheus query failed: " + error);
+            }
+            if (!foundResults) {
+                throw new MonitoringException("Unexpected results");
+            }
+        }
+    }
+
+    private boolean parseData(JsonParser parser, List<Target> targets, BiConsumer<Target, PrometheusData> handler) throws IOException {
+        boolean foundResults = false;
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return foundResults;
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (field.equals("result") && parser.currentToken() == JsonToken.START_ARRAY) {
+                foundResults = true;
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    parseResult(parser, targets, handler);
+                }
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+        return foundResults;
+    }
+
+    private void parseResult(JsonParser parser, List<Target> targets, BiConsumer<Target, PrometheusData> handler) throws IOException {
+        String clusterLabel = targets.get(0).getPrometheusClusterLabel();
+        String topic = null;
+        String namespace = null;
+        String cluster = null;
+        String broker = null;
+        double timestamp = 0;
+        long totalbytes = 0;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (field.equals("metric") && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String label = parser.currentName();
+                    parser.nextToken();
+                    if (label.equals("topic")) {
+                        topic = parser.getText();
+                    }
+                    else if (label.equals("namespace")) {
+                        namespace = parser.getText();
+                    }
+                    else if (label.equals(clusterLabel)) {
+                        cluster = parser.getText();
+                    }
+                    else if (label.equals(brokerLabel)) {
+                        broker = parser.getText();
+                    }
+                    else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            else if (field.equals("value") && token == JsonToken.START_ARRAY) {
+                parser.nextToken();
+                timestamp = parser.getDoubleValue();
+                parser.nextToken();
+                totalbytes = parseValue(parser);
+                parser.nextToken();
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+
+        Target target = findTarget(targets, namespace, cluster);
+        if (topic != null && target != null) {
+            PrometheusData nextData = new PrometheusData(topic, Formats.toEpochMillis(timestamp), totalbytes, broker);
+            log.debug("prometheus data {} {}", target, nextData);
+            handler.accept(target, nextData);
+        }
+    }
+
+    /**
+     * Returns the monitored Kafka cluster that a result is for. Combining
+     *  several clusters in one query can return results for other clusters
+     *  (e.g. a cluster name in a different namespace) which are ignored.
+     */
+    private static Target findTarget(List<Target> targets, String namespace, String cluster) {
+        for (Target target : targets) {
+            if (target.getNamespace().equals(namespace) && target.getCluster().equals(cluster)) {
+                return target;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Prometheus sample values are strings. Counters are whole numbers, so
+     *  these are parsed directly from the parser's buffer where possible,
+     *  without creating a String.
+     */
+    private static long parseValue(JsonParser parser) throws IOException {
+        char[] chars = parser.getTextCharacters();
+        int offset = parser.getTextOffset();
+        int length = parser.getTextLength();
+
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = chars[i];
+            if (c < '0' || c > '9' || length > 18) {
+                // not a simple whole number (e.g. "1.5e+21" or "NaN")
+                return (long) Double.parseDouble(parser.getText());
+            }
+            value = (value * 10) + (c - '0');
+        }
+        return value;
+    }
+}
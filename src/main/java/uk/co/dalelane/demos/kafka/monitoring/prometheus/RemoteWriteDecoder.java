@@ -0,0 +1,420 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+
+
+
+/**
+ * Decoder for Prometheus remote_write requests - a snappy-compressed
+ *  (block format) protobuf WriteRequest:
+ *
+ *   WriteRequest { repeated TimeSeries timeseries = 1; }
+ *   TimeSeries   { repeated Label labels = 1; repeated Sample samples = 2; }
+ *   Label        { string name = 1; string value = 2; }
+ *   Sample       { double value = 1; int64 timestamp = 2; }
+ *
+ * Both formats are decoded by hand, straight from byte arrays that are
+ *  reused between requests, so that decoding does not create any objects
+ *  for each series or sample. Labels are passed to the handler as offsets
+ *  into the decompressed request, so the handler only needs to create
+ *  strings for series it has not seen before.
+ *
+ * Not thread-safe - each thread receiving requests needs its own decoder.
+ */
+class RemoteWriteDecoder {
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** Upper limit on the decompressed size of a request, to protect against bad requests */
+    private static final int MAX_DECOMPRESSED_SIZE = 256 * 1024 * 1024;
+
+    private byte[] buffer = new byte[64 * 1024];
+
+    private final Labels labels = new Labels();
+
+    /** Position of the next byte to read in the buffer */
+    private int pos;
+
+
+    /**
+     * Receives the decoded series and samples.
+     */
+    interface Handler {
+        /**
+         * Called with the labels for each series in the request.
+         *
+         * @return an identifier for the series, passed with each of its
+         *  samples - or a negative value to skip its samples
+         */
+        int series(Labels labels);
+
+        void sample(int series, double value, long timestampMs);
+    }
+
+
+    /**
+     * Decompresses and decodes a request, passing each series and sample
+     *  to the provided handler.
+     *
+     * @param compressed snappy-compressed request body
+     * @param length number of bytes of the body in the array
+     */
+    void decode(byte[] compressed, int length, Handler handler) throws MonitoringException {
+        try {
+            int size = decompress(compressed, length);
+            decodeWriteRequest(size, handler);
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new MonitoringException("Truncated remote write request", e);
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    //  snappy (block format)
+    // ------------------------------------------------------------------------
+
+    /**
+     * Decompresses the snappy-compressed input into the buffer.
+     *
+     * @return number of decompressed bytes
+     */
+    private int decompress(byte[] in, int length) throws MonitoringException {
+        int inPos = 0;
+
+        // preamble - the uncompressed length as a varint
+        long uncompressed = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in[inPos++];
+            uncompressed |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+            if (shift > 28) {
+                throw new MonitoringException("Invalid snappy length");
+            }
+        }
+        if (uncompressed > MAX_DECOMPRESSED_SIZE) {
+            throw new MonitoringException("Remote write request too large");
+        }
+        int size = (int) uncompressed;
+        if (buffer.length < size) {
+            buffer = new byte[Math.max(size, buffer.length * 2)];
+        }
+
+        int outPos = 0;
+        while (inPos < length) {
+            int tag = in[inPos++] & 0xff;
+            int elementLength;
+            int offset;
+
+            switch (tag & 0x03) {
+                case 0:
+                    // literal - length is in the tag, or in the next 1 to 4 bytes
+                    elementLength = tag >>> 2;
+                    if (elementLength >= 60) {
+                        int bytes = elementLength - 59;
+                        elementLength = 0;
+                        for (int i = 0; i < bytes; i++) {
+                            elementLength |= (in[inPos++] & 0xff) << (8 * i);
+                        }
+                    }
+                    elementLength++;
+                    if (elementLength <= 0 || outPos + elementLength > size || inPos + elementLength > length) {
+                        throw new MonitoringException("Invalid snappy literal");
+                    }
+                    System.arraycopy(in, inPos, buffer, outPos, elementLength);
+                    inPos += elementLength;
+                    outPos += elementLength;
+                    continue;
+
+                case 1:
+                    // copy with a 1-byte offset
+                    elementLength = ((tag >>> 2) & 0x07) + 4;
+                    offset = ((tag >>> 5) << 8) | (in[inPos++] & 0xff);
+                    break;
+
+                case 2:
+                    // copy with a 2-byte offset
+                    elementLength = (tag >>> 2) + 1;
+                    offset = (in[inPos] & 0xff) | ((in[inPos + 1] & 0xff) << 8);
+                    inPos += 2;
+                    break;
+
+                default:
+                    // copy with a 4-byte offset
+                    elementLength = (tag >>> 2) + 1;
+                    offset = (in[inPos] & 0xff) | ((in[inPos + 1] & 0xff) << 8) |
+                             ((in[inPos + 2] & 0xff) << 16) | ((in[inPos + 3] & 0xff) << 24);
+                    inPos += 4;
+            }
+
+            if (offset <= 0 || offset > outPos || outPos + elementLength > size) {
+                throw new MonitoringException("Invalid snappy copy");
+            }
+            if (offset >= elementLength) {
+                System.arraycopy(buffer, outPos - offset, buffer, outPos, elementLength);
+                outPos += elementLength;
+            }
+            else {
+                // overlapping copy, which repeats the last offset bytes
+                for (int i = 0; i < elementLength; i++) {
+                    buffer[outPos] = buffer[outPos - offset];
+                    outPos++;
+                }
+            }
+        }
+
+        if (outPos != size) {
+            throw new MonitoringException("Unexpected snappy length");
+        }
+        return size;
+    }
+
+
+    // ------------------------------------------------------------------------
+    //  protobuf
+    // ------------------------------------------------------------------------
+
+    private void decodeWriteRequest(int end, Handler handler) throws MonitoringException {
+        pos = 0;
+        while (pos < end) {
+            int key = (int) readVarint();
+            if (key == ((1 << 3) | WIRE_LENGTH_DELIMITED)) {
+                int length = readLength(end);
+                decodeTimeSeries(pos + length, handler);
+            }
+            else {
+                skipField(key, end);
+            }
+        }
+    }
+
+    private void decodeTimeSeries(int end, Handler handler) throws MonitoringException {
+        int start = pos;
+
+        // labels first, in case samples come before them in the message
+        labels.reset();
+        while (pos < end) {
+            int key = (int) readVarint();
+            if (key == ((1 << 3) | WIRE_LENGTH_DELIMITED)) {
+                int length = readLength(end);
+                decodeLabel(pos + length);
+            }
+            else {
+                skipField(key, end);
+            }
+        }
+
+        int series = handler.series(labels);
+        if (series < 0) {
+            return;
+        }
+
+        pos = start;
+        while (pos < end) {
+            int key = (int) readVarint();
+            if (key == ((2 << 3) | WIRE_LENGTH_DELIMITED)) {
+                int length = readLength(end);
+                decodeSample(pos + length, series, handler);
+            }
+            else {
+                skipField(key, end);
+            }
+        }
+    }
+
+    private void decodeLabel(int end) throws MonitoringException {
+        int nameStart = 0, nameLength = 0, valueStart = 0, valueLength = 0;
+        while (pos < end) {
+            int key = (int) readVarint();
+            if (key == ((1 << 3) | WIRE_LENGTH_DELIMITED)) {
+                nameLength = readLength(end);
+                nameStart = pos;
+                pos += nameLength;
+            }
+            else if (key == ((2 << 3) | WIRE_LENGTH_DELIMITED)) {
+                valueLength = readLength(end);
+                valueStart = pos;
+                pos += valueLength;
+            }
+            else {
+                skipField(key, end);
+            }
+        }
+        labels.add(nameStart, nameLength, valueStart, valueLength);
+    }
+
+    private void decodeSample(int end, int series, Handler handler) throws MonitoringException {
+        double value = 0;
+        long timestamp = 0;
+        while (pos < end) {
+            int key = (int) readVarint();
+            if (key == ((1 << 3) | WIRE_FIXED64)) {
+                value = Double.longBitsToDouble(readFixed64());
+            }
+            else if (key == ((2 << 3) | WIRE_VARINT)) {
+                timestamp = readVarint();
+            }
+            else {
+                skipField(key, end);
+            }
+        }
+        handler.sample(series, value, timestamp);
+    }
+
+
+    private long readVarint() throws MonitoringException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer[pos++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new MonitoringException("Invalid varint");
+    }
+
+    private long readFixed64() {
+        long value = (long) LONG_VIEW.get(buffer, pos);
+        pos += 8;
+        return value;
+    }
+
+    private int readLength(int end) throws MonitoringException {
+        long length = readVarint();
+        if (length < 0 || pos + length > end) {
+            throw new MonitoringException("Invalid field length");
+        }
+        return (int) length;
+    }
+
+    private void skipField(int key, int end) throws MonitoringException {
+        switch (key & 0x07) {
+            case WIRE_VARINT:
+                readVarint();
+                break;
+            case WIRE_FIXED64:
+                pos += 8;
+                break;
+            case WIRE_LENGTH_DELIMITED:
+                int length = readLength(end);
+                pos += length;
+                break;
+            case WIRE_FIXED32:
+                pos += 4;
+                break;
+            default:
+                throw new MonitoringException("Unsupported protobuf wire type " + (key & 0x07));
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    /**
+     * Labels for the current series, as offsets into the decompressed
+     *  request. Only valid during the call to {@link Handler#series}.
+     */
+    class Labels {
+
+        /** name start, name length, value start, value length - for each label */
+        private int[] offsets = new int[4 * 16];
+        private int size;
+
+        private void reset() {
+            size = 0;
+        }
+
+        private void add(int nameStart, int nameLength, int valueStart, int valueLength) {
+            if ((size + 1) * 4 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[size * 4]     = nameStart;
+            offsets[size * 4 + 1] = nameLength;
+            offsets[size * 4 + 2] = valueStart;
+            offsets[size * 4 + 3] = valueLength;
+            size++;
+        }
+
+        /** Returns the index of the label with the provided (UTF-8) name, or -1 if there is none */
+        int indexOf(byte[] name) {
+            for (int i = 0; i < size; i++) {
+                int start = offsets[i * 4];
+                int length = offsets[i * 4 + 1];
+                if (Arrays.equals(buffer, start, start + length, name, 0, name.length)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /** Returns true if the value of the label at the provided index matches the provided (UTF-8) value */
+        boolean valueEquals(int index, byte[] value) {
+            int start = offsets[index * 4 + 2];
+            int length = offsets[index * 4 + 3];
+            return Arrays.equals(buffer, start, start + length, value, 0, value.length);
+        }
+
+        String getValue(int index) {
+            return new String(buffer, offsets[index * 4 + 2], offsets[index * 4 + 3], StandardCharsets.UTF_8);
+        }
+
+        /**
+         * 64-bit hash of all of the label names and values, which identifies
+         *  the series. Prometheus sends labels sorted by name, so the same
+         *  series always has the same hash.
+         *
+         * The labels are read 8 bytes at a time, as hashing them is most of
+         *  the cost of handling a sample for a known series.
+         */
+        long hash() {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < size * 2; i++) {
+                int p = offsets[i * 2];
+                int end = p + offsets[i * 2 + 1];
+                for (; p + 8 <= end; p += 8) {
+                    h = mix(h ^ (long) LONG_VIEW.get(buffer, p));
+                }
+                long tail = 0;
+                for (; p < end; p++) {
+                    tail = (tail << 8) | (buffer[p] & 0xff);
+                }
+                // length as a separator, so that "ab"+"c" and "a"+"bc" differ
+                h = mix(h ^ tail ^ ((long) offsets[i * 2 + 1] << 56));
+            }
+            return h;
+        }
+
+        private static long mix(long h) {
+            h *= 0x9e3779b97f4a7c15L;
+            return h ^ (h >>> 29);
+        }
+    }
+}
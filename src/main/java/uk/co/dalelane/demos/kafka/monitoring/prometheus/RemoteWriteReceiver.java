@@ -0,0 +1,763 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MonitorMetrics;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+
+
+/**
+ * Receives the latest usage info pushed by Prometheus, using the remote
+ *  write protocol, instead of querying for it.
+ *
+ * The latest value of every series for the bytes in and bytes out metrics
+ *  is kept, and the per-topic totals are updated by the difference each
+ *  time a series gets a new sample - so the totals are always current,
+ *  and each query only needs to return the topics that have changed since
+ *  they were last returned.
+ *
+ * The totals only go up when bytes are actually moved. A series that goes
+ *  down has been reset (e.g. the broker restarted), so all of its new
+ *  value is added. A series that first appears after the warm-up (e.g.
+ *  after a partition reassignment) only gives a starting point.
+ *
+ * Prometheus should be configured with write_relabel_configs so that only
+ *  the bytes in and bytes out series are sent. Other series are skipped.
+ *
+ * Nothing is returned until the warm-up time has passed after starting,
+ *  so that the totals include a sample from every broker - partial sums
+ *  would look like changes in usage.
+ *
+ * Series that haven't had a sample for the expiry time (e.g. from broker
+ *  pods that have been replaced, or topics that have been deleted) are
+ *  forgotten, along with topics that no longer have any series, so that
+ *  churn in the series doesn't keep growing the memory used.
+ */
+public class RemoteWriteReceiver implements UsageSource {
+
+    private final Logger log = LoggerFactory.getLogger(RemoteWriteReceiver.class);
+
+    private static final String PATH = "/api/v1/write";
+
+    private static final int RECEIVER_THREADS = 4;
+
+    /** Largest (compressed) request body that is accepted, to protect against bad requests */
+    private static final int MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] NAME_LABEL = "__name__".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TOPIC_LABEL = "topic".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NAMESPACE_LABEL = "namespace".getBytes(StandardCharsets.UTF_8);
+
+    private final MonitorMetrics metrics;
+
+    private final List<String> metricNames;
+    private final byte[][] metricNameBytes;
+
+    private final List<Target> targets;
+    private final byte[][] targetNamespaces;
+    private final byte[][] targetClusterLabels;
+    private final byte[][] targetClusters;
+
+    private final long warmupEndMs;
+    private final long seriesExpiryMs;
+
+    /** Authorization header that requests need to include, or null if requests don't need one */
+    private final byte[] expectedAuthorization;
+
+    /** Buffer that each receiver thread reads request bodies into */
+    private final ThreadLocal<RequestBody> requestBodies = ThreadLocal.withInitial(RequestBody::new);
+
+    /**
+     * Decoder for each receiver thread, so that requests are decompressed
+     *  and decoded in parallel - the lock is only held while applying each
+     *  series and sample.
+     */
+    private final ThreadLocal<RemoteWriteDecoder> decoders = ThreadLocal.withInitial(RemoteWriteDecoder::new);
+    private final ThreadLocal<SeriesUpdater> updaters = ThreadLocal.withInitial(SeriesUpdater::new);
+
+
+    // state below is guarded by this object's lock
+
+    /** Index of each known series, from the hash of its labels */
+    private LongIntMap seriesIds = new LongIntMap();
+    private int numSeries = 0;
+    /**
+     * Incremented when series are given new indexes, so that the receiver
+     *  threads know to discard their copies of the series indexes
+     */
+    private volatile int generation = 0;
+    /** Hash of the labels of each known series */
+    private long[] seriesHashes = new long[1024];
+    /** Time of the latest sample received for each known series, as epoch milliseconds */
+    private long[] seriesLastSeen = new long[1024];
+    /** Topic that each known series is for, or -1 for series to ignore */
+    private int[] seriesTopics = new int[1024];
+    /** Index of the metric that each known series is for */
+    private int[] seriesMetrics = new int[1024];
+    /** Latest value of each known series */
+    private double[] seriesValues = new double[1024];
+
+    /** Index of each known topic, for each Kafka cluster */
+    private final Map<Target, Map<String, Integer>> topicIds = new HashMap<>();
+    private int numTopics = 0;
+    private Target[] topicTargets = new Target[1024];
+    private String[] topicNames = new String[1024];
+    /** Sum of the latest values from every series, for each metric and topic */
+    private final double[][] topicTotals;
+    /** Time of the latest sample for each topic, as epoch milliseconds */
+    private long[] topicTimestamps = new long[1024];
+    /** Topics with totals that have changed since they were last stored */
+    private final BitSet changedTopics = new BitSet();
+    /** Changed topics that have been returned, but are not yet known to be stored */
+    private final BitSet reportedTopics = new BitSet();
+
+
+    public RemoteWriteReceiver(Config config, MonitorMetrics metrics) throws MonitoringException {
+        this.metrics = metrics;
+
+        metricNames = List.of(config.getBytesInMetric(), config.getBytesOutMetric());
+        metricNameBytes = new byte[metricNames.size()][];
+        for (int m = 0; m < metricNames.size(); m++) {
+            metricNameBytes[m] = metricNames.get(m).getBytes(StandardCharsets.UTF_8);
+        }
+        topicTotals = new double[metricNames.size()][1024];
+
+        targets = config.getTargets();
+        targetNamespaces = new byte[targets.size()][];
+        targetClusterLabels = new byte[targets.size()][];
+        targetClusters = new byte[targets.size()][];
+        for (int t = 0; t < targets.size(); t++) {
+            Target target = targets.get(t);
+            targetNamespaces[t] = target.getNamespace().getBytes(StandardCharsets.UTF_8);
+            targetClusterLabels[t] = target.getPrometheusClusterLabel().getBytes(StandardCharsets.UTF_8);
+            targetClusters[t] = target.getCluster().getBytes(StandardCharsets.UTF_8);
+        }
+
+        warmupEndMs = System.currentTimeMillis() + (config.getRemoteWriteWarmupSeconds() * 1000L);
+        seriesExpiryMs = config.getRemoteWriteSeriesExpirySeconds() * 1000L;
+
+        if (config.getRemoteWriteTokenFile() != null && !config.getRemoteWriteTokenFile().isEmpty()) {
+            try {
+                String token = Files.readString(Path.of(config.getRemoteWriteTokenFile())).trim();
+                expectedAuthorization = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+            }
+            catch (IOException e) {
+                throw new MonitoringException("Failed to read remote write token", e);
+            }
+        }
+        else {
+            expectedAuthorization = null;
+        }
+
+        HttpServer server;
+        try {
+            log.debug("Starting remote write receiver on port {}", config.getRemoteWritePort());
+            server = HttpServer.create(new InetSocketAddress(config.getRemoteWritePort()), 0);
+        }
+        catch (IOException e) {
+            throw new MonitoringException("Failed to start remote write receiver", e);
+        }
+        server.createContext(PATH, this::handleWriteRequest);
+        AtomicInteger threadCount = new AtomicInteger();
+        server.setExecutor(Executors.newFixedThreadPool(RECEIVER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "remote-write-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+
+    @Override
+    public void query(List<Target> targets, List<String> metricNames, ResultHandler handler) throws MonitoringException {
+        report(targets, metricNames, null, handler);
+    }
+
+    @Override
+    public void query(List<Target> targets, List<String> metricNames, Collection<String> topics, ResultHandler handler) throws MonitoringException {
+        if (topics.isEmpty()) {
+            return;
+        }
+        report(targets, metricNames, topics instanceof Set ? (Set<String>) topics : new HashSet<>(topics), handler);
+    }
+
+    /**
+     * Results are only returned for topics that have changed since they
+     *  were last returned, so there is no need to choose which topics to
+     *  ask for.
+     */
+    @Override
+    public boolean isIncremental() {
+        return true;
+    }
+
+
+    /**
+     * Passes the totals for topics that have changed to the handler. They
+     *  are reported again in every query until {@link #changesStored} is
+     *  called for their Kafka cluster.
+     */
+    private synchronized void report(List<Target> targets, List<String> metricNames, Set<String> topics, ResultHandler handler) {
+        long now = System.currentTimeMillis();
+        if (now < warmupEndMs) {
+            log.info("Waiting for remote write samples from every broker before reporting usage");
+            return;
+        }
+        expireSeries(now);
+
+        int[] metrics = new int[metricNames.size()];
+        for (int m = 0; m < metricNames.size(); m++) {
+            metrics[m] = this.metricNames.indexOf(metricNames.get(m));
+        }
+        Set<Target> wanted = new HashSet<>(targets);
+
+        int reported = 0;
+        for (int id = changedTopics.nextSetBit(0); id >= 0; id = changedTopics.nextSetBit(id + 1)) {
+            if (!wanted.contains(topicTargets[id]) || (topics != null && !topics.contains(topicNames[id]))) {
+                continue;
+            }
+            for (int m = 0; m < metrics.length; m++) {
+                if (metrics[m] >= 0 && !Double.isNaN(topicTotals[metrics[m]][id])) {
+                    handler.accept(topicTargets[id],
+                                   metricNames.get(m),
+                                   new PrometheusData(topicNames[id], topicTimestamps[id], (long) topicTotals[metrics[m]][id]));
+                }
+            }
+            reportedTopics.set(id);
+            reported++;
+        }
+        log.debug("Reporting {} changed topics from {} series", reported, numSeries);
+    }
+
+    /**
+     * Forgets that the topics reported for the provided Kafka cluster have
+     *  changed, unless they have changed again since they were reported.
+     */
+    @Override
+    public synchronized void changesStored(Target target) {
+        for (int id = reportedTopics.nextSetBit(0); id >= 0; id = reportedTopics.nextSetBit(id + 1)) {
+            if (target.equals(topicTargets[id])) {
+                reportedTopics.clear(id);
+                changedTopics.clear(id);
+            }
+        }
+    }
+
+
+    private void handleWriteRequest(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!isAuthorized(exchange)) {
+                metrics.addRemoteWriteFailures(1);
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+
+            RequestBody body = requestBodies.get();
+            boolean complete = getContentLength(exchange) <= MAX_REQUEST_SIZE;
+            if (complete) {
+                try (InputStream in = exchange.getRequestBody()) {
+                    complete = body.read(in, MAX_REQUEST_SIZE);
+                }
+            }
+            if (!complete) {
+                log.warn("Rejected remote write request larger than {} bytes", MAX_REQUEST_SIZE);
+                metrics.addRemoteWriteFailures(1);
+                exchange.sendResponseHeaders(413, -1);
+                return;
+            }
+
+            try {
+                metrics.addRemoteWriteSamples(receive(body.bytes, body.length));
+                exchange.sendResponseHeaders(204, -1);
+            }
+            catch (MonitoringException e) {
+                log.warn("Failed to decode remote write request : {}", e.getMessage());
+                metrics.addRemoteWriteFailures(1);
+                exchange.sendResponseHeaders(400, -1);
+            }
+        }
+    }
+
+
+    private boolean isAuthorized(HttpExchange exchange) {
+        if (expectedAuthorization == null) {
+            return true;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        return authorization != null &&
+               MessageDigest.isEqual(expectedAuthorization, authorization.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Returns the length of the request body from its header, or 0 if it isn't known */
+    private static long getContentLength(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            return contentLength == null ? 0 : Long.parseLong(contentLength.trim());
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
+    /**
+     * Applies a (snappy-compressed) remote write request to the totals.
+     *  Can be called by several threads at once.
+     *
+     * @return number of samples in the request
+     */
+    int receive(byte[] body, int length) throws MonitoringException {
+        SeriesUpdater updater = updaters.get();
+        updater.samples = 0;
+        try {
+            decoders.get().decode(body, length, updater);
+        }
+        finally {
+            updater.flush();
+        }
+        return updater.samples;
+    }
+
+
+    /**
+     * Applies the series and samples from remote write requests, for a
+     *  single receiver thread.
+     *
+     * Series that the thread has seen before are looked up in its own copy
+     *  of the series indexes, and samples are applied in batches, so the
+     *  lock is only needed for new series and once per batch - rather than
+     *  for every sample, which would leave the receiver threads waiting for
+     *  each other.
+     */
+    private class SeriesUpdater implements RemoteWriteDecoder.Handler {
+
+        private static final int BATCH_SIZE = 1024;
+
+        /** Index for series to skip, in the thread's copy of the series indexes */
+        private static final int IGNORED = -2;
+
+        private final LongIntMap knownSeries = new LongIntMap();
+        private int knownGeneration = 0;
+
+        /** Hash of the labels of the latest series from the decoder */
+        private long currentHash;
+
+        private final int[] batchSeries = new int[BATCH_SIZE];
+        private final long[] batchHashes = new long[BATCH_SIZE];
+        private final double[] batchValues = new double[BATCH_SIZE];
+        private final long[] batchTimestamps = new long[BATCH_SIZE];
+        private int batchSize = 0;
+
+        private int samples;
+
+        @Override
+        public int series(RemoteWriteDecoder.Labels labels) {
+            if (knownGeneration != generation) {
+                // series have been given new indexes
+                flush();
+                knownSeries.clear();
+                knownGeneration = generation;
+            }
+            long hash = labels.hash();
+            currentHash = hash;
+            int series = knownSeries.get(hash);
+            if (series == -1) {
+                series = findSeries(labels, hash);
+                knownSeries.put(hash, series < 0 ? IGNORED : series);
+            }
+            return series < 0 ? -1 : series;
+        }
+
+        @Override
+        public void sample(int series, double value, long timestampMs) {
+            samples++;
+            if (Double.isNaN(value)) {
+                // includes the stale markers sent when a series goes away,
+                //  which leave its latest value in the totals
+                return;
+            }
+            batchSeries[batchSize] = series;
+            batchHashes[batchSize] = currentHash;
+            batchValues[batchSize] = value;
+            batchTimestamps[batchSize] = timestampMs;
+            if (++batchSize == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (batchSize == 0) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            synchronized (RemoteWriteReceiver.this) {
+                boolean reindexed = knownGeneration != generation;
+                for (int i = 0; i < batchSize; i++) {
+                    int series = batchSeries[i];
+                    if (reindexed && (series = seriesIds.get(batchHashes[i])) < 0) {
+                        // expired since the batch started
+                        continue;
+                    }
+                    update(series, batchValues[i], batchTimestamps[i], now);
+                }
+            }
+            batchSize = 0;
+        }
+    }
+
+    /**
+     * Returns the index of the series with the provided labels, adding it
+     *  if it is new - or -1 if it is not one of the metrics being received.
+     */
+    private int findSeries(RemoteWriteDecoder.Labels labels, long hash) {
+        int name = labels.indexOf(NAME_LABEL);
+        if (name < 0) {
+            return -1;
+        }
+        int metric = -1;
+        for (int m = 0; m < metricNameBytes.length; m++) {
+            if (labels.valueEquals(name, metricNameBytes[m])) {
+                metric = m;
+                break;
+            }
+        }
+        if (metric < 0) {
+            return -1;
+        }
+
+        synchronized (this) {
+            int series = seriesIds.get(hash);
+            if (series < 0) {
+                int topic = findTopic(labels);
+                if (topic < 0) {
+                    return -1;
+                }
+                series = addSeries(hash, metric, topic);
+            }
+            return series;
+        }
+    }
+
+    /** Applies a sample to the totals. Only called while holding the lock. */
+    private void update(int series, double value, long timestampMs, long receivedMs) {
+        seriesLastSeen[series] = receivedMs;
+        double previous = seriesValues[series];
+        if (previous == value) {
+            return;
+        }
+        seriesValues[series] = value;
+
+        double increase;
+        if (Double.isNaN(previous)) {
+            if (receivedMs >= warmupEndMs) {
+                // new series - nothing to compare with yet
+                return;
+            }
+            increase = value;
+        }
+        else if (value < previous) {
+            // counter reset
+            increase = value;
+        }
+        else {
+            increase = value - previous;
+        }
+
+        int topic = seriesTopics[series];
+        double[] totals = topicTotals[seriesMetrics[series]];
+        totals[topic] = (Double.isNaN(totals[topic]) ? 0 : totals[topic]) + increase;
+        if (timestampMs > topicTimestamps[topic]) {
+            topicTimestamps[topic] = timestampMs;
+        }
+        changedTopics.set(topic);
+        reportedTopics.clear(topic);
+    }
+
+    /**
+     * Returns the index of the topic for a new series, adding it if this is
+     *  the first series for the topic - or -1 if the series is not for a
+     *  topic in one of the Kafka clusters being monitored.
+     */
+    private int findTopic(RemoteWriteDecoder.Labels labels) {
+        int topic = labels.indexOf(TOPIC_LABEL);
+        int namespace = labels.indexOf(NAMESPACE_LABEL);
+        if (topic < 0 || namespace < 0) {
+            return -1;
+        }
+        for (int t = 0; t < targets.size(); t++) {
+            int cluster = labels.indexOf(targetClusterLabels[t]);
+            if (cluster >= 0 &&
+                labels.valueEquals(cluster, targetClusters[t]) &&
+                labels.valueEquals(namespace, targetNamespaces[t]))
+            {
+                Target target = targets.get(t);
+                return topicIds
+                    .computeIfAbsent(target, k -> new HashMap<>())
+                    .computeIfAbsent(labels.getValue(topic), name -> addTopic(target, name));
+            }
+        }
+        return -1;
+    }
+
+    private int addTopic(Target target, String name) {
+        int id = numTopics++;
+        if (id == topicNames.length) {
+            int capacity = topicNames.length * 2;
+            topicTargets = Arrays.copyOf(topicTargets, capacity);
+            topicNames = Arrays.copyOf(topicNames, capacity);
+            topicTimestamps = Arrays.copyOf(topicTimestamps, capacity);
+            for (int m = 0; m < topicTotals.length; m++) {
+                topicTotals[m] = Arrays.copyOf(topicTotals[m], capacity);
+            }
+        }
+        topicTargets[id] = target;
+        topicNames[id] = name;
+        topicTimestamps[id] = 0;
+        for (int m = 0; m < topicTotals.length; m++) {
+            topicTotals[m][id] = Double.NaN;
+        }
+        return id;
+    }
+
+    private int addSeries(long hash, int metric, int topic) {
+        int id = numSeries++;
+        if (id == seriesTopics.length) {
+            int capacity = seriesTopics.length * 2;
+            seriesTopics = Arrays.copyOf(seriesTopics, capacity);
+            seriesHashes = Arrays.copyOf(seriesHashes, capacity);
+            seriesLastSeen = Arrays.copyOf(seriesLastSeen, capacity);
+            seriesMetrics = Arrays.copyOf(seriesMetrics, capacity);
+            seriesValues = Arrays.copyOf(seriesValues, capacity);
+        }
+        seriesTopics[id] = topic;
+        seriesHashes[id] = hash;
+        seriesLastSeen[id] = System.currentTimeMillis();
+        seriesMetrics[id] = metric;
+        seriesValues[id] = Double.NaN;
+        seriesIds.put(hash, id);
+        return id;
+    }
+
+    /**
+     * Forgets series that haven't had a sample since the expiry time, and
+     *  topics that no longer have any series (unless they have changes that
+     *  are still to be reported). The remaining series and topics are given
+     *  new indexes, so that the arrays don't fill up with gaps. Only called
+     *  while holding the lock.
+     */
+    private void expireSeries(long nowMs) {
+        long cutoff = nowMs - seriesExpiryMs;
+        int expired = 0;
+        for (int series = 0; series < numSeries; series++) {
+            if (seriesLastSeen[series] < cutoff) {
+                expired++;
+            }
+        }
+        if (expired == 0) {
+            return;
+        }
+
+        BitSet keepTopics = (BitSet) changedTopics.clone();
+        for (int series = 0; series < numSeries; series++) {
+            if (seriesLastSeen[series] >= cutoff) {
+                keepTopics.set(seriesTopics[series]);
+            }
+        }
+
+        // move the topics that are kept down to fill the gaps
+        int[] newTopicIds = new int[numTopics];
+        int keptTopics = 0;
+        for (int topic = 0; topic < numTopics; topic++) {
+            Map<String, Integer> clusterTopics = topicIds.get(topicTargets[topic]);
+            if (!keepTopics.get(topic)) {
+                newTopicIds[topic] = -1;
+                clusterTopics.remove(topicNames[topic]);
+                continue;
+            }
+            int id = keptTopics++;
+            newTopicIds[topic] = id;
+            topicTargets[id] = topicTargets[topic];
+            topicNames[id] = topicNames[topic];
+            topicTimestamps[id] = topicTimestamps[topic];
+            for (int m = 0; m < topicTotals.length; m++) {
+                topicTotals[m][id] = topicTotals[m][topic];
+            }
+            clusterTopics.put(topicNames[id], id);
+        }
+        Arrays.fill(topicTargets, keptTopics, numTopics, null);
+        Arrays.fill(topicNames, keptTopics, numTopics, null);
+        int removedTopics = numTopics - keptTopics;
+        numTopics = keptTopics;
+
+        renumber(changedTopics, newTopicIds);
+        renumber(reportedTopics, newTopicIds);
+
+        // and the same for the series
+        LongIntMap ids = new LongIntMap();
+        int keptSeries = 0;
+        for (int series = 0; series < numSeries; series++) {
+            if (seriesLastSeen[series] < cutoff) {
+                continue;
+            }
+            int id = keptSeries++;
+            seriesHashes[id] = seriesHashes[series];
+            seriesTopics[id] = newTopicIds[seriesTopics[series]];
+            seriesMetrics[id] = seriesMetrics[series];
+            seriesValues[id] = seriesValues[series];
+            seriesLastSeen[id] = seriesLastSeen[series];
+            ids.put(seriesHashes[id], id);
+        }
+        numSeries = keptSeries;
+        seriesIds = ids;
+        generation++;
+
+        log.debug("Expired {} series and {} topics", expired, removedTopics);
+    }
+
+    /** Moves the set bits to the new indexes for the topics they are for */
+    private static void renumber(BitSet topics, int[] newTopicIds) {
+        BitSet renumbered = new BitSet();
+        for (int topic = topics.nextSetBit(0); topic >= 0; topic = topics.nextSetBit(topic + 1)) {
+            renumbered.set(newTopicIds[topic]);
+        }
+        topics.clear();
+        topics.or(renumbered);
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    /**
+     * Reusable buffer for the body of a request.
+     */
+    private static class RequestBody {
+        private byte[] bytes = new byte[64 * 1024];
+        private int length;
+
+        /**
+         * Reads the whole body, unless it is longer than the provided
+         *  maximum.
+         *
+         * @return false if the body was too long
+         */
+        private boolean read(InputStream in, int maxLength) throws IOException {
+            length = 0;
+            int count;
+            while ((count = in.read(bytes, length, bytes.length - length)) >= 0) {
+                length += count;
+                if (length > maxLength) {
+                    return false;
+                }
+                if (length == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.min(bytes.length * 2, maxLength + 1));
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Open-addressing hash map from series hashes to series indexes, which
+     *  doesn't need to box either of them.
+     */
+    private static class LongIntMap {
+        private long[] keys = new long[2048];
+        private int[] values = new int[2048];
+        private boolean[] used = new boolean[2048];
+        private int size = 0;
+
+        private int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); used[i]; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        private void put(long key, int value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (used[i] && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!used[i]) {
+                used[i] = true;
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private void clear() {
+            Arrays.fill(used, false);
+            size = 0;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            return (int) ((key * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+        }
+    }
+}
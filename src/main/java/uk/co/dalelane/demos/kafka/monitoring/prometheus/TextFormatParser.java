@@ -0,0 +1,248 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+
+
+
+/**
+ * Streaming parser for the Prometheus text exposition format, as served
+ *  by the JMX exporter on each Kafka broker.
+ *
+ * The response is read in large chunks, and then a line at a time into a
+ *  reused buffer. Lines are compared with the wanted metric names as bytes,
+ *  so the (many) samples for other metrics are skipped without creating
+ *  any objects.
+ *  Only the topic label is kept from the samples that are wanted.
+ */
+class TextFormatParser {
+
+    private static final String TOPIC_LABEL = "topic";
+
+    private final byte[][] metricNames;
+
+    private final byte[] chunk = new byte[64 * 1024];
+    private int chunkPos = 0;
+    private int chunkEnd = 0;
+
+    private byte[] line = new byte[1024];
+    private byte[] label = new byte[256];
+
+
+    /**
+     * @param metricNames names of the metrics to look for - samples are
+     *  identified to the handler by their index in this list
+     */
+    TextFormatParser(List<String> metricNames) {
+        this.metricNames = new byte[metricNames.size()][];
+        for (int i = 0; i < metricNames.size(); i++) {
+            this.metricNames[i] = metricNames.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+
+    /**
+     * Parses a response, passing each sample for the wanted metrics that
+     *  has a topic label to the provided handler.
+     */
+    void parse(InputStream in, SampleHandler handler) throws IOException, MonitoringException {
+        int length;
+        while ((length = readLine(in)) >= 0) {
+            if (length == 0 || line[0] == '#') {
+                // blank lines, or HELP and TYPE comments
+                continue;
+            }
+            int metric = matchMetricName(length);
+            if (metric >= 0) {
+                parseSample(metric, length, handler);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface SampleHandler {
+        void accept(int metric, String topic, double value);
+    }
+
+
+    /**
+     * Reads the next line into the line buffer, without the line ending.
+     *
+     * @return length of the line, or -1 at the end of the response
+     */
+    private int readLine(InputStream in) throws IOException {
+        int length = 0;
+        while (true) {
+            if (chunkPos == chunkEnd) {
+                chunkEnd = in.read(chunk);
+                chunkPos = 0;
+                if (chunkEnd <= 0) {
+                    chunkEnd = 0;
+                    return length == 0 ? -1 : trimLine(length);
+                }
+            }
+
+            // copy up to the next newline in the chunk
+            int end = chunkPos;
+            while (end < chunkEnd && chunk[end] != '\n') {
+                end++;
+            }
+            int count = end - chunkPos;
+            if (length + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+            }
+            System.arraycopy(chunk, chunkPos, line, length, count);
+            length += count;
+
+            if (end < chunkEnd) {
+                chunkPos = end + 1;
+                return trimLine(length);
+            }
+            chunkPos = chunkEnd;
+        }
+    }
+
+    private int trimLine(int length) {
+        return (length > 0 && line[length - 1] == '\r') ? length - 1 : length;
+    }
+
+    /**
+     * Returns the index of the metric that the current line is a sample
+     *  for, or -1 if it is not one of the wanted metrics.
+     */
+    private int matchMetricName(int length) {
+        for (int m = 0; m < metricNames.length; m++) {
+            byte[] name = metricNames[m];
+            if (length > name.length &&
+                (line[name.length] == '{' || line[name.length] == ' ') &&
+                Arrays.equals(line, 0, name.length, name, 0, name.length))
+            {
+                return m;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a sample line, such as
+     *   name{label="value",topic="my-topic",} 1.2345E7 1700000000000
+     */
+    private void parseSample(int metric, int length, SampleHandler handler) throws MonitoringException {
+        int pos = metricNames[metric].length;
+        String topic = null;
+
+        if (line[pos] == '{') {
+            pos++;
+            while (pos < length && line[pos] != '}') {
+                // label name
+                int nameStart = pos;
+                while (pos < length && line[pos] != '=') {
+                    pos++;
+                }
+                int nameEnd = pos;
+                if (pos + 1 >= length || line[pos + 1] != '"') {
+                    throw new MonitoringException("Invalid metrics line");
+                }
+                pos += 2;
+
+                // label value, with \\, \" and \n escapes
+                int labelLength = 0;
+                while (pos < length && line[pos] != '"') {
+                    byte b = line[pos++];
+                    if (b == '\\' && pos < length) {
+                        b = line[pos++];
+                        if (b == 'n') {
+                            b = '\n';
+                        }
+                    }
+                    if (labelLength == label.length) {
+                        label = Arrays.copyOf(label, label.length * 2);
+                    }
+                    label[labelLength++] = b;
+                }
+                pos++;
+
+                if (isTopicLabel(nameStart, nameEnd)) {
+                    topic = new String(label, 0, labelLength, StandardCharsets.UTF_8);
+                }
+
+                // separator - the JMX exporter includes a trailing comma
+                while (pos < length && (line[pos] == ',' || line[pos] == ' ')) {
+                    pos++;
+                }
+            }
+            pos++;
+        }
+        if (topic == null) {
+            // not a per-topic sample, such as the total for all topics
+            return;
+        }
+
+        // value, followed by an optional timestamp which isn't needed
+        while (pos < length && line[pos] == ' ') {
+            pos++;
+        }
+        int valueStart = pos;
+        while (pos < length && line[pos] != ' ') {
+            pos++;
+        }
+        double value = parseValue(new String(line, valueStart, pos - valueStart, StandardCharsets.US_ASCII));
+        if (Double.isFinite(value)) {
+            handler.accept(metric, topic, value);
+        }
+    }
+
+    /**
+     * Parses a sample value, including the +Inf, -Inf and NaN values used in
+     *  the text format (which Java spells differently). Values that aren't
+     *  finite aren't usable as byte counts, so are skipped by the caller.
+     */
+    private static double parseValue(String value) throws MonitoringException {
+        switch (value) {
+            case "+Inf":
+            case "Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            case "NaN":
+                return Double.NaN;
+            default:
+                try {
+                    return Double.parseDouble(value);
+                }
+                catch (NumberFormatException nfe) {
+                    throw new MonitoringException("Invalid metrics value " + value, nfe);
+                }
+        }
+    }
+
+    private boolean isTopicLabel(int nameStart, int nameEnd) {
+        if (nameEnd - nameStart != TOPIC_LABEL.length()) {
+            return false;
+        }
+        for (int i = 0; i < TOPIC_LABEL.length(); i++) {
+            if (line[nameStart + i] != TOPIC_LABEL.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import java.util.Collection;
+import java.util.List;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+
+
+/**
+ * Provides the latest values of per-topic metrics for each Kafka cluster,
+ *  either for each broker or summed across all brokers.
+ */
+public interface UsageSource {
+
+    /**
+     * Retrieves the latest values of each of the provided metrics for all
+     *  topics in the provided Kafka clusters, returning once every value
+     *  has been passed to the handler.
+     *
+     * @param handler called with the cluster, metric name and result for each topic
+     */
+    void query(List<Target> targets, List<String> metricNames, ResultHandler handler) throws MonitoringException;
+
+    /**
+     * Retrieves the latest values of each of the provided metrics for only
+     *  the named topics in the provided Kafka clusters, returning once every
+     *  value has been passed to the handler.
+     *
+     * @param handler called with the cluster, metric name and result for each topic
+     */
+    void query(List<Target> targets, List<String> metricNames, Collection<String> topics, ResultHandler handler) throws MonitoringException;
+
+    /**
+     * Returns true if results are only provided for topics whose usage has
+     *  changed since they were last provided, which makes it cheap to ask
+     *  for every topic in every poll.
+     */
+    default boolean isIncremental() {
+        return false;
+    }
+
+    /**
+     * Called once the results provided for a Kafka cluster have been
+     *  stored, so that incremental sources can stop providing them. Results
+     *  for clusters where this isn't called are provided again in the next
+     *  query.
+     */
+    default void changesStored(Target target) {
+    }
+
+
+    /**
+     * Receives results, one at a time.
+     */
+    @FunctionalInterface
+    public interface ResultHandler {
+        void accept(Target target, String metric, PrometheusData result);
+    }
+}
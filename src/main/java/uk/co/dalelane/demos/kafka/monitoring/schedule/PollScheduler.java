@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.schedule;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageStore;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+
+
+
+/**
+ * Decides when each poll should start, and which topics it should check.
+ *
+ * Polls start at a fixed rate: each one is due a fixed interval after the
+ *  previous one was due, regardless of how long the poll took, so the
+ *  period does not drift. An optional random delay is added to each start
+ *  time so that several Monitors do not all query at the same moment.
+ *
+ * If an active topic window is configured, topics are split into two tiers.
+ *  Topics that have been used within the window are checked on every poll.
+ *  Other topics are only checked on full polls, which happen once every
+ *  few polls.
+ */
+public class PollScheduler {
+
+    private final Logger log = LoggerFactory.getLogger(PollScheduler.class);
+
+    private final long intervalMs;
+    private final long jitterMs;
+    private final long activeTopicMs;
+    private final int idleTopicPolls;
+
+    private long nextDeadline;
+    private long poll = 0;
+
+
+    public PollScheduler(Config config) {
+        intervalMs = config.getPollIntervalSeconds() * 1000L;
+        jitterMs = config.getPollJitterSeconds() * 1000L;
+        activeTopicMs = config.getActiveTopicSeconds() * 1000L;
+        idleTopicPolls = Math.max(1, config.getIdleTopicPolls());
+
+        nextDeadline = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Returns true if every topic should be checked in the current poll,
+     *  or false if only active topics should be checked.
+     */
+    public boolean isFullPoll() {
+        return activeTopicMs <= 0 || (poll % idleTopicPolls) == 0;
+    }
+
+    /**
+     * Returns the longest time (in seconds) since the topics in the current
+     *  poll could last have been checked.
+     */
+    public long getLookbackSeconds(boolean fullPoll) {
+        long polls = (fullPoll && activeTopicMs > 0) ? idleTopicPolls : 1;
+        return (polls * intervalMs) / 1000;
+    }
+
+    /**
+     * Returns the names of the topics that have been used recently enough
+     *  to be checked in every poll.
+     */
+    public Set<String> getActiveTopics(UsageStore usage) {
+        long activeSince = System.currentTimeMillis() - activeTopicMs;
+
+        Set<String> active = new TreeSet<>();
+        for (int id = 0; id < usage.limit(); id++) {
+            if (usage.getTopicName(id) != null && usage.getTimestamp(id) > activeSince) {
+                active.add(usage.getTopicName(id));
+            }
+        }
+        return active;
+    }
+
+
+    /**
+     * Waits until the next poll is due.
+     */
+    public void awaitNextPoll() throws InterruptedException {
+        poll++;
+        nextDeadline += intervalMs;
+
+        long now = System.currentTimeMillis();
+        if (nextDeadline < now) {
+            // the poll overran - start the next one straight away, and use
+            //  that as the basis for future polls rather than trying to
+            //  catch up on the polls that were missed
+            log.warn("Poll took longer than the poll interval - starting next poll {} ms late", now - nextDeadline);
+            nextDeadline = now;
+            return;
+        }
+
+        long jitter = jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs) : 0;
+        long wait = (nextDeadline + jitter) - now;
+        log.debug("next poll in {} ms", wait);
+        Thread.sleep(wait);
+    }
+}
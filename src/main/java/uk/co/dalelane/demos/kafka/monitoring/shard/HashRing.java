@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.shard;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+
+/**
+ * Consistent hash ring, used to decide which replica of the Monitor is
+ *  responsible for each topic.
+ *
+ * Each member is placed at several points around the ring, and a topic
+ *  belongs to the member at the first point at or after the hash of its
+ *  name. When a member joins or leaves, only the topics next to its points
+ *  move, so most topics stay with the same replica.
+ *
+ * Every replica needs to build the same ring from the same members, so the
+ *  hash function only depends on the characters in the names.
+ */
+public class HashRing {
+
+    /** Number of points on the ring for each member, to spread topics evenly */
+    private static final int POINTS_PER_MEMBER = 128;
+
+    private final Set<String> members;
+
+    /** Sorted positions of the points on the ring */
+    private final long[] points;
+
+    /** Member at each of the positions in points */
+    private final String[] owners;
+
+
+    public HashRing(Collection<String> members) {
+        this.members = new TreeSet<>(members);
+
+        int numPoints = this.members.size() * POINTS_PER_MEMBER;
+        long[][] entries = new long[numPoints][];
+        String[] names = this.members.toArray(new String[0]);
+        int i = 0;
+        for (int m = 0; m < names.length; m++) {
+            for (int p = 0; p < POINTS_PER_MEMBER; p++) {
+                entries[i++] = new long[] { hash(names[m] + "#" + p), m };
+            }
+        }
+        // ties are broken by member name so that every replica agrees
+        Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+        points = new long[numPoints];
+        owners = new String[numPoints];
+        for (i = 0; i < numPoints; i++) {
+            points[i] = entries[i][0];
+            owners[i] = names[(int) entries[i][1]];
+        }
+    }
+
+
+    public Set<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * Returns the member responsible for the provided topic, or null if
+     *  the ring has no members.
+     */
+    public String getOwner(String topicName) {
+        if (points.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(points, hash(topicName));
+        if (index < 0) {
+            // not an exact match - use the next point round the ring
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+
+    /**
+     * 64-bit FNV-1a hash of the characters, with the MurmurHash3 finalizer
+     *  to spread similar names (such as topics with a numeric suffix)
+     *  around the ring.
+     */
+    public static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.shard;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fabric8.kubernetes.api.model.coordination.v1.Lease;
+import io.fabric8.kubernetes.api.model.coordination.v1.LeaseBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageStore;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+
+
+
+/**
+ * Shares the topics between the replicas of the Monitor.
+ *
+ * Each replica keeps a Lease in Kubernetes, renewed in the background,
+ *  that shows it is still running. At the start of each poll, the Leases
+ *  are listed to find the running replicas, and topics are divided between
+ *  them using a consistent hash of the topic name. Each replica only reads,
+ *  queries and updates the topics in its own shard.
+ *
+ * Replicas notice other replicas joining or leaving at the start of their
+ *  next poll. Until then, a topic may briefly be updated by two replicas
+ *  or by none - both are harmless, as the next poll by the new owner will
+ *  store the correct usage info.
+ *
+ * If sharding is not enabled, every topic belongs to this replica.
+ */
+public class ShardMembership {
+
+    private final Logger log = LoggerFactory.getLogger(ShardMembership.class);
+
+    private static final String LABEL_GROUP = "dalelane.co.uk/topics-usage-monitor-group";
+    private static final String FIELD_MANAGER = "topics-usage-monitor";
+
+    private final boolean enabled;
+    private final String identity;
+    private final String namespace;
+    private final String group;
+    private final String leaseName;
+    private final int leaseDurationSeconds;
+
+    private final KubernetesClient client;
+
+    private volatile HashRing ring;
+
+
+    public ShardMembership(Config config, KubernetesClient client) {
+        enabled = config.isShardingEnabled();
+        identity = config.getPodName();
+        namespace = config.getPodNamespace();
+        group = config.getShardGroup();
+        leaseName = group + "-" + identity;
+        leaseDurationSeconds = Math.max(3, config.getShardLeaseDurationSeconds());
+
+        this.client = client;
+        ring = enabled ? new HashRing(List.of(identity)) : null;
+    }
+
+
+    /**
+     * Creates the Lease for this replica, and starts renewing it in the
+     *  background. The Lease is removed when the Monitor shuts down, so
+     *  that other replicas pick up its topics without waiting for it to
+     *  expire.
+     */
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        log.info("Joining shard group {} as {}", group, identity);
+        renew();
+
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long renewInterval = leaseDurationSeconds / 3;
+        renewer.scheduleAtFixedRate(this::renew, renewInterval, renewInterval, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            renewer.shutdownNow();
+            release();
+        }, "lease-release"));
+
+        refresh();
+    }
+
+
+    /**
+     * Finds the replicas that are currently running, and re-divides the
+     *  topics between them if they have changed.
+     *
+     * @return true if the replicas have changed since the last time this
+     *  was called, meaning that this replica may now own different topics
+     */
+    public boolean refresh() {
+        if (!enabled) {
+            return false;
+        }
+
+        List<Lease> leases;
+        try {
+            leases = client.leases().inNamespace(namespace).withLabel(LABEL_GROUP, group).list().getItems();
+        }
+        catch (KubernetesClientException e) {
+            // keep using the current members - a replica that has stopped
+            //  will be dropped once the Leases can be listed again
+            log.warn("Failed to list replicas in shard group {}", group, e);
+            return false;
+        }
+
+        ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+        Set<String> members = new TreeSet<>();
+        members.add(identity);
+        for (Lease lease : leases) {
+            if (isLive(lease, now)) {
+                members.add(lease.getSpec().getHolderIdentity());
+            }
+            else if (isLongExpired(lease, now)) {
+                // left behind by a replica that did not shut down cleanly
+                delete(lease.getMetadata().getName());
+            }
+        }
+
+        if (members.equals(ring.getMembers())) {
+            return false;
+        }
+        log.info("Shard group {} members changed from {} to {}", group, ring.getMembers(), members);
+        ring = new HashRing(members);
+        return true;
+    }
+
+
+    /** Returns true if there is more than one replica sharing the topics */
+    public boolean isSharded() {
+        return enabled && ring.getMembers().size() > 1;
+    }
+
+    /** Returns true if this replica is responsible for the provided topic */
+    public boolean isOwned(String topicName) {
+        return !enabled || identity.equals(ring.getOwner(topicName));
+    }
+
+    /**
+     * Removes topics that this replica is not responsible for from the
+     *  provided store.
+     *
+     * @return number of topics removed
+     */
+    public int retainOwned(UsageStore usage) {
+        int removed = 0;
+        if (enabled) {
+            for (int id = 0; id < usage.limit(); id++) {
+                String topicName = usage.getTopicName(id);
+                if (topicName != null && !isOwned(topicName)) {
+                    usage.remove(id);
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    private boolean isLive(Lease lease, ZonedDateTime now) {
+        return lease.getSpec() != null &&
+               lease.getSpec().getHolderIdentity() != null &&
+               lease.getSpec().getRenewTime() != null &&
+               lease.getSpec().getRenewTime().plusSeconds(getDuration(lease)).isAfter(now);
+    }
+
+    private boolean isLongExpired(Lease lease, ZonedDateTime now) {
+        return lease.getSpec() != null &&
+               lease.getSpec().getRenewTime() != null &&
+               lease.getSpec().getRenewTime().plusSeconds(10L * getDuration(lease)).isBefore(now);
+    }
+
+    private int getDuration(Lease lease) {
+        Integer duration = lease.getSpec().getLeaseDurationSeconds();
+        return duration == null ? leaseDurationSeconds : duration;
+    }
+
+
+    private void renew() {
+        Lease lease = new LeaseBuilder()
+            .withNewMetadata()
+                .withName(leaseName)
+                .withNamespace(namespace)
+                .addToLabels(LABEL_GROUP, group)
+            .endMetadata()
+            .withNewSpec()
+                .withHolderIdentity(identity)
+                .withLeaseDurationSeconds(leaseDurationSeconds)
+                .withRenewTime(ZonedDateTime.now(ZoneOffset.UTC))
+            .endSpec()
+            .build();
+        try {
+            client.leases().inNamespace(namespace).resource(lease)
+                .fieldManager(FIELD_MANAGER)
+                .forceConflicts()
+                .serverSideApply();
+            log.trace("Renewed lease {}", leaseName);
+        }
+        catch (KubernetesClientException e) {
+            log.warn("Failed to renew lease {}", leaseName, e);
+        }
+    }
+
+    private void release() {
+        log.info("Leaving shard group {}", group);
+        delete(leaseName);
+    }
+
+    private void delete(String name) {
+        try {
+            client.leases().inNamespace(namespace).withName(name).delete();
+        }
+        catch (KubernetesClientException e) {
+            log.warn("Failed to delete lease {}", name, e);
+        }
+    }
+}
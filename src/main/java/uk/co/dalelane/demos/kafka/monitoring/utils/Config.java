@@ -13,6 +13,10 @@
  */
 package uk.co.dalelane.demos.kafka.monitoring.utils;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +41,11 @@ public class Config {
     /** Whether to monitor a Strimzi cluster ("strimzi") or an Event Streams cluster ("eventstreams") */
     private static final String MODE = "MODE";
 
+    /** Comma-separated list of Kafka clusters to monitor, as namespace/cluster or namespace/cluster/mode (replaces NAMESPACE, CLUSTER and MODE) */
+    private static final String TARGETS = "TARGETS";
+    /** Maximum number of the monitored Kafka clusters to read from or write to Kubernetes at once */
+    private static final String WORKER_THREADS = "WORKER_THREADS";
+
     /** Metric to use to identify per-topic bytes in */
     private static final String BYTES_IN_METRIC = "BYTES_IN_METRIC";
 
@@ -46,52 +55,282 @@ public class Config {
     /** URL for querying Prometheus */
     private static final String PROMETHEUS_URL = "PROMETHEUS_URL";
 
+    /** Where to get the latest usage info from - Prometheus (prometheus), directly from the Kafka brokers (brokers), or pushed by Prometheus remote write (remote_write) */
+    private static final String USAGE_SOURCE = "USAGE_SOURCE";
+
+    /** Where to store usage info - annotations on each KafkaTopic operand (annotations), or ConfigMaps shared by many topics (configmaps) */
+    private static final String USAGE_STORAGE = "USAGE_STORAGE";
+
+    /** Number of ConfigMaps to share the usage info for each Kafka cluster between (if USAGE_STORAGE is configmaps) */
+    private static final String USAGE_CONFIGMAPS = "USAGE_CONFIGMAPS";
+
+    /** Port for the metrics endpoint on each Kafka broker pod (if USAGE_SOURCE is brokers) */
+    private static final String BROKER_METRICS_PORT = "BROKER_METRICS_PORT";
+
+    /** Path for the metrics endpoint on each Kafka broker pod (if USAGE_SOURCE is brokers) */
+    private static final String BROKER_METRICS_PATH = "BROKER_METRICS_PATH";
+
+    /** Maximum time (in seconds) to wait for the metrics from a Kafka broker pod */
+    private static final String BROKER_SCRAPE_TIMEOUT_SECONDS = "BROKER_SCRAPE_TIMEOUT_SECONDS";
+
+    /** Port to receive Prometheus remote write requests on (if USAGE_SOURCE is remote_write) */
+    private static final String REMOTE_WRITE_PORT = "REMOTE_WRITE_PORT";
+
+    /** Time (in seconds) to receive samples for after starting, before reporting any usage */
+    private static final String REMOTE_WRITE_WARMUP_SECONDS = "REMOTE_WRITE_WARMUP_SECONDS";
+
+    /** Time (in seconds) without any samples after which a remote write series is forgotten */
+    private static final String REMOTE_WRITE_SERIES_EXPIRY_SECONDS = "REMOTE_WRITE_SERIES_EXPIRY_SECONDS";
+
+    /** File with the bearer token that remote write requests need to include (unset to accept requests without one) */
+    private static final String REMOTE_WRITE_TOKEN_FILE = "REMOTE_WRITE_TOKEN_FILE";
+
+    /** Number of shards to split the topics into when querying Prometheus */
+    private static final String PROMETHEUS_QUERY_SHARDS = "PROMETHEUS_QUERY_SHARDS";
+
+    /**
+     * Prometheus label that identifies the broker a series is from, so that
+     *  the counters from each broker can be tracked separately (empty to
+     *  get totals across the brokers from Prometheus)
+     */
+    private static final String PROMETHEUS_BROKER_LABEL = "PROMETHEUS_BROKER_LABEL";
+
+    /** Maximum number of Prometheus queries to run concurrently */
+    private static final String PROMETHEUS_QUERY_CONCURRENCY = "PROMETHEUS_QUERY_CONCURRENCY";
+
+    /** Maximum time (in seconds) to wait for a connection to Prometheus */
+    private static final String PROMETHEUS_CONNECT_TIMEOUT_SECONDS = "PROMETHEUS_CONNECT_TIMEOUT_SECONDS";
+
+    /** Maximum time (in seconds) to wait for Prometheus to start responding to a query */
+    private static final String PROMETHEUS_QUERY_TIMEOUT_SECONDS = "PROMETHEUS_QUERY_TIMEOUT_SECONDS";
+
     /** How frequently (in seconds) to poll for metrics updates */
     private static final String POLL_INTERVAL_SECONDS = "POLL_INTERVAL_SECONDS";
 
+    /** Maximum random delay (in seconds) to add to the start of each poll */
+    private static final String POLL_JITTER_SECONDS = "POLL_JITTER_SECONDS";
+
+    /** Topics used within this many seconds are checked every poll, others only on full polls (0 to check every topic every poll) */
+    private static final String ACTIVE_TOPIC_SECONDS = "ACTIVE_TOPIC_SECONDS";
+
+    /** How many polls between full polls that check every topic (if ACTIVE_TOPIC_SECONDS is set) */
+    private static final String IDLE_TOPIC_POLLS = "IDLE_TOPIC_POLLS";
+
+    /** Whether to find the time each topic was last used from Prometheus history, rather than using the time of the poll that noticed it */
+    private static final String PRECISE_ACTIVITY_ENABLED = "PRECISE_ACTIVITY_ENABLED";
+
+    /** Resolution (in seconds) to use when finding the time each topic was last used - ideally the Prometheus scrape interval */
+    private static final String ACTIVITY_RESOLUTION_SECONDS = "ACTIVITY_RESOLUTION_SECONDS";
+
+    /** Changes are not written for topics with a stored last used time within this many seconds (0 to write every change) */
+    private static final String WRITE_FRESHNESS_SECONDS = "WRITE_FRESHNESS_SECONDS";
+
+    /** Number of polls to keep a history of the usage of each topic for (0 to disable) */
+    private static final String HISTORY_POLLS = "HISTORY_POLLS";
+
+    /** Topics not used for this many days are counted as idle in the Monitor metrics (if HISTORY_POLLS is set) */
+    private static final String IDLE_TOPIC_DAYS = "IDLE_TOPIC_DAYS";
+
+    /** Whether to keep a watch-driven local cache of KafkaTopic operands instead of listing them every poll */
+    private static final String TOPIC_CACHE_ENABLED = "TOPIC_CACHE_ENABLED";
 
-    private final String namespace;
-    private final String cluster;
-    private final Mode mode;
+    /** How frequently (in seconds) the KafkaTopic cache should be resynced (0 to disable resyncs) */
+    private static final String TOPIC_CACHE_RESYNC_SECONDS = "TOPIC_CACHE_RESYNC_SECONDS";
+
+    /** Maximum number of KafkaTopic operands to retrieve in each page when listing them from Kubernetes (if TOPIC_CACHE_ENABLED is false) */
+    private static final String TOPIC_LIST_PAGE_SIZE = "TOPIC_LIST_PAGE_SIZE";
+
+    /** Maximum number of KafkaTopic operands to retrieve in each page when (re)populating the cache */
+    private static final String TOPIC_CACHE_PAGE_SIZE = "TOPIC_CACHE_PAGE_SIZE";
+
+    /** Maximum number of KafkaTopic annotation updates to submit to Kubernetes concurrently */
+    private static final String PATCH_CONCURRENCY = "PATCH_CONCURRENCY";
+
+    /** Port for the HTTP server that provides the Monitor's own metrics (0 to disable) */
+    private static final String METRICS_PORT = "METRICS_PORT";
+
+    /** Whether to serve the usage info for every topic as JSON at /api/v1/topics on METRICS_PORT */
+    private static final String USAGE_API_ENABLED = "USAGE_API_ENABLED";
+
+    /** Location of a file to store usage info in, so that it does not need to be read from Kubernetes after a restart */
+    private static final String SNAPSHOT_FILE = "SNAPSHOT_FILE";
+
+    /** Maximum age (in seconds) of a snapshot file that will be used when restarting */
+    private static final String SNAPSHOT_MAX_AGE_SECONDS = "SNAPSHOT_MAX_AGE_SECONDS";
+
+    /** Whether to share the topics between multiple replicas of the Monitor */
+    private static final String SHARDING_ENABLED = "SHARDING_ENABLED";
+
+    /** Name of this replica of the Monitor (if SHARDING_ENABLED) - typically provided from the pod name */
+    private static final String POD_NAME = "POD_NAME";
+
+    /** Namespace for the Leases used to keep track of replicas (if SHARDING_ENABLED) - typically provided from the pod namespace */
+    private static final String POD_NAMESPACE = "POD_NAMESPACE";
+
+    /** Name shared by the replicas of the Monitor that are sharing topics, used as a prefix for their Lease names */
+    private static final String SHARD_GROUP = "SHARD_GROUP";
+
+    /** How long (in seconds) a replica is considered to be running after it last renewed its Lease */
+    private static final String SHARD_LEASE_DURATION_SECONDS = "SHARD_LEASE_DURATION_SECONDS";
+
+
+    private final List<Target> targets;
+    private final int workerThreads;
     private final String bytesInMetric;
     private final String bytesOutMetric;
     private final String prometheusUrl;
+    private final Source usageSource;
+    private final Storage usageStorage;
+    private final int usageConfigMaps;
+    private final int brokerMetricsPort;
+    private final String brokerMetricsPath;
+    private final int brokerScrapeTimeoutSeconds;
+    private final int remoteWritePort;
+    private final int remoteWriteWarmupSeconds;
+    private final int remoteWriteSeriesExpirySeconds;
+    private final String remoteWriteTokenFile;
+    private final int prometheusQueryShards;
+    private final String prometheusBrokerLabel;
+    private final int prometheusQueryConcurrency;
+    private final int prometheusConnectTimeoutSeconds;
+    private final int prometheusQueryTimeoutSeconds;
     private final int pollIntervalSeconds;
+    private final int pollJitterSeconds;
+    private final int activeTopicSeconds;
+    private final int idleTopicPolls;
+    private final boolean preciseActivityEnabled;
+    private final int activityResolutionSeconds;
+    private final int writeFreshnessSeconds;
+    private final int historyPolls;
+    private final int idleTopicDays;
+    private final boolean topicCacheEnabled;
+    private final int topicCacheResyncSeconds;
+    private final int topicCachePageSize;
+    private final int topicListPageSize;
+    private final int patchConcurrency;
+    private final int metricsPort;
+    private final boolean usageApiEnabled;
+    private final String snapshotFile;
+    private final int snapshotMaxAgeSeconds;
+    private final boolean shardingEnabled;
+    private final String podName;
+    private final String podNamespace;
+    private final String shardGroup;
+    private final int shardLeaseDurationSeconds;
+
+
+    private final Map<String, String> env;
 
 
     public Config() throws MonitoringException {
-        namespace = getRequiredVar(NAMESPACE);
-        cluster = getRequiredVar(CLUSTER);
+        this(System.getenv());
+    }
+
+    /**
+     * Creates config from the provided values instead of from
+     *  environment variables.
+     */
+    public Config(Map<String, String> env) throws MonitoringException {
+        this.env = env;
+
+        targets = getTargets(getVar(MODE, "strimzi"));
+        workerThreads = getVar(WORKER_THREADS, 4);
         bytesInMetric = getVar(BYTES_IN_METRIC, "kafka_server_brokertopicmetrics_bytesin_total");
         bytesOutMetric = getVar(BYTES_OUT_METRIC, "kafka_server_brokertopicmetrics_bytesout_total");
         prometheusUrl = getVar(PROMETHEUS_URL, "https://thanos-querier.openshift-monitoring.svc:9091");
+        usageSource = getUsageSource(getVar(USAGE_SOURCE, "prometheus"));
+        usageStorage = getUsageStorage(getVar(USAGE_STORAGE, "annotations"));
+        usageConfigMaps = getVar(USAGE_CONFIGMAPS, 16);
+        brokerMetricsPort = getVar(BROKER_METRICS_PORT, 9404);
+        brokerMetricsPath = getVar(BROKER_METRICS_PATH, "/metrics");
+        brokerScrapeTimeoutSeconds = getVar(BROKER_SCRAPE_TIMEOUT_SECONDS, 30);
+        remoteWritePort = getVar(REMOTE_WRITE_PORT, 9201);
+        remoteWriteWarmupSeconds = getVar(REMOTE_WRITE_WARMUP_SECONDS, 120);
+        remoteWriteSeriesExpirySeconds = getVar(REMOTE_WRITE_SERIES_EXPIRY_SECONDS, 3600);
+        remoteWriteTokenFile = getVar(REMOTE_WRITE_TOKEN_FILE, (String) null);
+        prometheusQueryShards = getVar(PROMETHEUS_QUERY_SHARDS, 1);
+        prometheusBrokerLabel = getVar(PROMETHEUS_BROKER_LABEL, "pod");
+        prometheusQueryConcurrency = getVar(PROMETHEUS_QUERY_CONCURRENCY, 4);
+        prometheusConnectTimeoutSeconds = getVar(PROMETHEUS_CONNECT_TIMEOUT_SECONDS, 10);
+        prometheusQueryTimeoutSeconds = getVar(PROMETHEUS_QUERY_TIMEOUT_SECONDS, 120);
         pollIntervalSeconds = getVar(POLL_INTERVAL_SECONDS, 60 * 60);
+        pollJitterSeconds = getVar(POLL_JITTER_SECONDS, 0);
+        activeTopicSeconds = getVar(ACTIVE_TOPIC_SECONDS, 0);
+        idleTopicPolls = getVar(IDLE_TOPIC_POLLS, 12);
+        preciseActivityEnabled = getVar(PRECISE_ACTIVITY_ENABLED, false);
+        activityResolutionSeconds = getVar(ACTIVITY_RESOLUTION_SECONDS, 60);
+        writeFreshnessSeconds = getVar(WRITE_FRESHNESS_SECONDS, 0);
+        historyPolls = getVar(HISTORY_POLLS, 0);
+        idleTopicDays = getVar(IDLE_TOPIC_DAYS, 30);
+        topicCacheEnabled = getVar(TOPIC_CACHE_ENABLED, false);
+        topicCacheResyncSeconds = getVar(TOPIC_CACHE_RESYNC_SECONDS, 10 * 60);
+        topicCachePageSize = getVar(TOPIC_CACHE_PAGE_SIZE, 500);
+        topicListPageSize = getVar(TOPIC_LIST_PAGE_SIZE, 500);
+        patchConcurrency = getVar(PATCH_CONCURRENCY, 4);
+        metricsPort = getVar(METRICS_PORT, 8080);
+        usageApiEnabled = getVar(USAGE_API_ENABLED, false);
+        snapshotFile = getVar(SNAPSHOT_FILE, (String) null);
+        snapshotMaxAgeSeconds = getVar(SNAPSHOT_MAX_AGE_SECONDS, 24 * 60 * 60);
+        shardingEnabled = getVar(SHARDING_ENABLED, false);
+        podName = shardingEnabled ? getRequiredVar(POD_NAME) : null;
+        podNamespace = shardingEnabled ? getRequiredVar(POD_NAMESPACE) : null;
+        shardGroup = getVar(SHARD_GROUP, "topics-usage-monitor");
+        shardLeaseDurationSeconds = getVar(SHARD_LEASE_DURATION_SECONDS, 60);
+    }
+
+    private List<Target> getTargets(String defaultMode) throws MonitoringException {
+        List<Target> targets = new ArrayList<>();
+        if (env.get(TARGETS) == null) {
+            targets.add(new Target(getRequiredVar(NAMESPACE), getRequiredVar(CLUSTER), getMode(defaultMode)));
+            return targets;
+        }
 
-        String modeStr = getVar(MODE, "strimzi");
-        mode = "eventstreams".equalsIgnoreCase(modeStr) ? Mode.EVENTSTREAMS : Mode.STRIMZI;
+        for (String targetStr : getRequiredVar(TARGETS).split(",")) {
+            String[] parts = targetStr.trim().split("/");
+            if (parts.length < 2 || parts.length > 3 || parts[0].isEmpty() || parts[1].isEmpty()) {
+                throw new MonitoringException("Unexpected environment variable " + TARGETS + " : " + targetStr);
+            }
+            targets.add(new Target(parts[0], parts[1], getMode(parts.length == 3 ? parts[2] : defaultMode)));
+        }
+        return targets;
+    }
+    private Mode getMode(String modeStr) {
+        return "eventstreams".equalsIgnoreCase(modeStr) ? Mode.EVENTSTREAMS : Mode.STRIMZI;
+    }
+    private Source getUsageSource(String sourceStr) {
+        if ("brokers".equalsIgnoreCase(sourceStr)) {
+            return Source.BROKERS;
+        }
+        else if ("remote_write".equalsIgnoreCase(sourceStr)) {
+            return Source.REMOTE_WRITE;
+        }
+        return Source.PROMETHEUS;
+    }
+    private Storage getUsageStorage(String storageStr) {
+        return "configmaps".equalsIgnoreCase(storageStr) ? Storage.CONFIGMAPS : Storage.ANNOTATIONS;
     }
 
     private String getRequiredVar(String key) throws MonitoringException {
-        if (System.getenv(key) == null) {
+        if (env.get(key) == null) {
             throw new MonitoringException("Missing required environment variable " + key);
         }
-        String value = System.getenv(key);
+        String value = env.get(key);
         log.info("{} = {}", key, value);
         return value;
     }
     private String getVar(String key, String defaultValue) {
         String value = defaultValue;
-        if (System.getenv(key) != null) {
-            value = System.getenv(key);
+        if (env.get(key) != null) {
+            value = env.get(key);
         }
         log.info("{} = {}", key, value);
         return value;
     }
     private int getVar(String key, int defaultValue) throws MonitoringException {
         int value = defaultValue;
-        if (System.getenv(key) != null) {
+        if (env.get(key) != null) {
             try {
-                value = Integer.parseInt(System.getenv(key));
+                value = Integer.parseInt(env.get(key));
             }
             catch (NumberFormatException nfe) {
                 throw new MonitoringException("Unexpected environment variable " + key, nfe);
@@ -100,6 +339,14 @@ public class Config {
         log.info("{} = {}", key, value);
         return value;
     }
+    private boolean getVar(String key, boolean defaultValue) {
+        boolean value = defaultValue;
+        if (env.get(key) != null) {
+            value = Boolean.parseBoolean(env.get(key));
+        }
+        log.info("{} = {}", key, value);
+        return value;
+    }
     private String trimSlashes(String input) {
         if (input.endsWith("/")) {
             return input.substring(0, input.length() - 1);
@@ -108,15 +355,81 @@ public class Config {
     }
 
 
-    public String getNamespace() {
-        return namespace;
+    public List<Target> getTargets() {
+        return targets;
     }
-    public String getCluster() {
-        return cluster;
+    public int getWorkerThreads() {
+        return workerThreads;
     }
     public int getPollIntervalSeconds() {
         return pollIntervalSeconds;
     }
+    public int getPollJitterSeconds() {
+        return pollJitterSeconds;
+    }
+    public int getActiveTopicSeconds() {
+        return activeTopicSeconds;
+    }
+    public int getIdleTopicPolls() {
+        return idleTopicPolls;
+    }
+    public boolean isPreciseActivityEnabled() {
+        return preciseActivityEnabled;
+    }
+    public int getActivityResolutionSeconds() {
+        return activityResolutionSeconds;
+    }
+    public int getWriteFreshnessSeconds() {
+        return writeFreshnessSeconds;
+    }
+    public int getHistoryPolls() {
+        return historyPolls;
+    }
+    public int getIdleTopicDays() {
+        return idleTopicDays;
+    }
+    public boolean isTopicCacheEnabled() {
+        return topicCacheEnabled;
+    }
+    public int getTopicCacheResyncSeconds() {
+        return topicCacheResyncSeconds;
+    }
+    public int getTopicCachePageSize() {
+        return topicCachePageSize;
+    }
+    public int getTopicListPageSize() {
+        return topicListPageSize;
+    }
+    public int getPatchConcurrency() {
+        return patchConcurrency;
+    }
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+    public boolean isUsageApiEnabled() {
+        return usageApiEnabled;
+    }
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+    public int getSnapshotMaxAgeSeconds() {
+        return snapshotMaxAgeSeconds;
+    }
+    public boolean isShardingEnabled() {
+        return shardingEnabled;
+    }
+    public String getPodName() {
+        return podName;
+    }
+    public String getPodNamespace() {
+        return podNamespace;
+    }
+    public String getShardGroup() {
+        return shardGroup;
+    }
+    public int getShardLeaseDurationSeconds() {
+        return shardLeaseDurationSeconds;
+    }
     public String getBytesInMetric() {
         return bytesInMetric;
     }
@@ -126,20 +439,62 @@ public class Config {
     public String getPrometheusUrl() {
         return trimSlashes(prometheusUrl);
     }
-    public Mode getMode() {
-        return mode;
+    public Source getUsageSource() {
+        return usageSource;
     }
-    public String getK8sAnnotationPrefix() {
-        if (mode == Mode.EVENTSTREAMS) {
-            return "eventstreams.ibm.com";
-        }
-        else {
-            return "strimzi.io";
-        }
+    public Storage getUsageStorage() {
+        return usageStorage;
+    }
+    public int getUsageConfigMaps() {
+        return usageConfigMaps;
+    }
+    public int getBrokerMetricsPort() {
+        return brokerMetricsPort;
+    }
+    public String getBrokerMetricsPath() {
+        return brokerMetricsPath;
+    }
+    public int getBrokerScrapeTimeoutSeconds() {
+        return brokerScrapeTimeoutSeconds;
+    }
+    public int getRemoteWritePort() {
+        return remoteWritePort;
+    }
+    public int getRemoteWriteWarmupSeconds() {
+        return remoteWriteWarmupSeconds;
+    }
+    public int getRemoteWriteSeriesExpirySeconds() {
+        return remoteWriteSeriesExpirySeconds;
+    }
+    public String getRemoteWriteTokenFile() {
+        return remoteWriteTokenFile;
+    }
+    public int getPrometheusQueryShards() {
+        return prometheusQueryShards;
+    }
+    public String getPrometheusBrokerLabel() {
+        return prometheusBrokerLabel;
+    }
+    public int getPrometheusQueryConcurrency() {
+        return prometheusQueryConcurrency;
+    }
+    public int getPrometheusConnectTimeoutSeconds() {
+        return prometheusConnectTimeoutSeconds;
+    }
+    public int getPrometheusQueryTimeoutSeconds() {
+        return prometheusQueryTimeoutSeconds;
     }
 
 
     public static enum Mode {
         STRIMZI, EVENTSTREAMS
     }
+
+    public static enum Source {
+        PROMETHEUS, BROKERS, REMOTE_WRITE
+    }
+
+    public static enum Storage {
+        ANNOTATIONS, CONFIGMAPS
+    }
 }
@@ -25,6 +25,11 @@ public class Formats {
         return Instant.ofEpochSecond(seconds, nanos);
     }
 
+    /** Returns the epoch milliseconds for a timestamp represented by the numerical value. */
+    public static long toEpochMillis(double timestampSeconds) {
+        return Math.round(timestampSeconds * 1000);
+    }
+
 
     public static String convertTimestamp(Instant timestampInstant) {
         long timestampLong = timestampInstant.toEpochMilli();
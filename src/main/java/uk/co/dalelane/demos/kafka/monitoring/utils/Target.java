@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.utils;
+
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config.Mode;
+
+/**
+ * A Kafka cluster being monitored.
+ */
+public class Target {
+
+    private final String namespace;
+    private final String cluster;
+    private final Mode mode;
+
+    public Target(String namespace, String cluster, Mode mode) {
+        this.namespace = namespace;
+        this.cluster = cluster;
+        this.mode = mode;
+    }
+
+    /** Kubernetes namespace where the Kafka cluster is running */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /** Name of the Kafka cluster */
+    public String getCluster() {
+        return cluster;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public String getK8sAnnotationPrefix() {
+        if (mode == Mode.EVENTSTREAMS) {
+            return "eventstreams.ibm.com";
+        }
+        else {
+            return "strimzi.io";
+        }
+    }
+
+    /** Name of the Prometheus label that identifies the Kafka cluster */
+    public String getPrometheusClusterLabel() {
+        if (mode == Mode.EVENTSTREAMS) {
+            return "eventstreams_ibm_com_cluster";
+        }
+        else {
+            return "strimzi_io_cluster";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return namespace + "/" + cluster;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+
+/**
+ * Creates the executors used for blocking calls to the Kubernetes API.
+ *
+ * On Java 21 or later, each task runs on its own virtual thread, so that
+ *  waiting for a response does not tie up a platform thread. On earlier
+ *  versions, tasks run on a pool of platform threads that grows as needed.
+ *  Either way, callers are responsible for limiting how many tasks they
+ *  run at once.
+ *
+ * Virtual threads are found at runtime so that the Monitor can still be
+ *  built and run with Java 17. The Monitor is built for Java 17 and the
+ *  container image uses a Java 17 runtime, so there this lookup always
+ *  fails and platform threads are used - virtual threads are only used
+ *  if the Monitor is run with a later Java version.
+ */
+public class Threads {
+
+    private static final Logger log = LoggerFactory.getLogger(Threads.class);
+
+    private Threads() {}
+
+
+    /**
+     * Returns an executor that starts a new thread for each task.
+     *
+     * @param name prefix for the names of the threads
+     */
+    public static ExecutorService newTaskExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class
+                .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, factory);
+        }
+        catch (ReflectiveOperationException e) {
+            log.debug("Virtual threads not available for {} tasks", name);
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.data;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+
+
+public class CompressedSeriesTest {
+
+    @Test
+    public void emptySeries() {
+        CompressedSeries series = new CompressedSeries(100, false);
+        assertEquals(0, series.size());
+        assertArrayEquals(new long[0], series.toArray());
+    }
+
+    @Test
+    public void xorRoundTrip() {
+        Random random = new Random(1);
+        long[] values = new long[1000];
+        for (int i = 0; i < values.length; i++) {
+            // zeros, repeats, small and large changes, and the extremes
+            int kind = i % 5;
+            if (kind == 0) {
+                values[i] = 0;
+            }
+            else if (kind == 1) {
+                values[i] = values[i - 1];
+            }
+            else if (kind == 2) {
+                values[i] = random.nextInt(1 << 20);
+            }
+            else if (kind == 3) {
+                values[i] = random.nextLong();
+            }
+            else {
+                values[i] = (i % 2 == 0) ? Long.MIN_VALUE : Long.MAX_VALUE;
+            }
+        }
+        assertRoundTrip(values, false);
+    }
+
+    @Test
+    public void deltaOfDeltaRoundTrip() {
+        Random random = new Random(2);
+        long[] values = new long[1000];
+        long time = 1_750_000_000_000L;
+        for (int i = 0; i < values.length; i++) {
+            // evenly spaced, with jitter of each size, and occasional large jumps
+            int kind = i % 6;
+            if (kind == 0) {
+                time += 60_000;
+            }
+            else if (kind < 4) {
+                int jitter = kind == 1 ? 100 : kind == 2 ? 400 : 3000;
+                time += 60_000 + random.nextInt(jitter) - (jitter / 2);
+            }
+            else if (kind == 4) {
+                time += random.nextInt(1 << 30);
+            }
+            else {
+                time -= random.nextInt(1 << 20);
+            }
+            values[i] = time;
+        }
+        assertRoundTrip(values, true);
+    }
+
+    @Test
+    public void keepsMostRecentValues() {
+        for (int capacity : new int[] { 1, 63, 64, 65, 100, 128, 200 }) {
+            for (boolean deltaOfDelta : new boolean[] { false, true }) {
+                CompressedSeries series = new CompressedSeries(capacity, deltaOfDelta);
+                for (int count = 1; count <= 5 * capacity + 2 * CompressedSeries.BLOCK_SIZE; count++) {
+                    series.append(count * 1000L + (count % 3));
+
+                    int size = Math.min(count, capacity);
+                    long[] expected = new long[size];
+                    for (int i = 0; i < size; i++) {
+                        long value = count - size + i + 1;
+                        expected[i] = value * 1000L + (value % 3);
+                    }
+                    assertArrayEquals(expected, series.toArray(), "capacity " + capacity + ", count " + count);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void idleBlocksAreNotStored() {
+        CompressedSeries idle = new CompressedSeries(1024, false);
+        CompressedSeries used = new CompressedSeries(1024, false);
+        for (int i = 0; i < 1024; i++) {
+            idle.append(0);
+            used.append(i);
+        }
+        long[] zeros = new long[1024];
+        assertArrayEquals(zeros, idle.toArray());
+        assertTrue(idle.getSizeInBytes() < used.getSizeInBytes() / 4);
+
+        // a block with a single non-zero value is kept
+        idle.append(5);
+        for (int i = 1; i < CompressedSeries.BLOCK_SIZE; i++) {
+            idle.append(0);
+        }
+        long[] values = idle.toArray();
+        assertEquals(5, values[1024 - CompressedSeries.BLOCK_SIZE]);
+        assertEquals(5, Arrays.stream(values).sum());
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    private static void assertRoundTrip(long[] values, boolean deltaOfDelta) {
+        CompressedSeries series = new CompressedSeries(values.length, deltaOfDelta);
+        for (long value : values) {
+            series.append(value);
+        }
+        assertEquals(values.length, series.size());
+        assertArrayEquals(values, series.toArray());
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import static uk.co.dalelane.demos.kafka.monitoring.data.CounterTracker.BYTES_IN;
+import static uk.co.dalelane.demos.kafka.monitoring.data.CounterTracker.BYTES_OUT;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+
+public class CounterTrackerTest {
+
+    private static final long STORED_TIME = 1_700_000_000_000L;
+    private static final long POLL = 60_000L;
+
+    private CounterTracker tracker;
+    private UsageStore store;
+    private int id;
+
+
+    @BeforeEach
+    public void setup() {
+        tracker = new CounterTracker();
+        store = new UsageStore();
+        id = store.add("topic");
+        store.set(id, 100, 50, STORED_TIME);
+    }
+
+
+    @Test
+    public void firstValuesMatchingStoredUsageAreNotChanges() {
+        poll(1, "broker-0", 60, 20);
+        poll(1, "broker-1", 40, 30);
+        assertEquals(0, tracker.endPoll(store));
+        assertStored(100, 50, STORED_TIME);
+    }
+
+    @Test
+    public void firstValuesAheadOfStoredUsageAreStoredWithoutBeingUsed() {
+        poll(1, "broker-0", 90, 20);
+        poll(1, "broker-1", 40, 30);
+        assertEquals(1, tracker.endPoll(store));
+        assertStored(130, 50, STORED_TIME);
+    }
+
+    @Test
+    public void storedUsageFromASingleBrokerIsOnlyAStartingPoint() {
+        // usage stored from the last broker's value, rather than the total
+        store.set(id, 40, 30, STORED_TIME);
+        poll(1, "broker-0", 60, 20);
+        poll(1, "broker-1", 40, 30);
+        assertEquals(1, tracker.endPoll(store));
+        assertStored(100, 50, STORED_TIME);
+
+        store.markChangesStored();
+        poll(2, "broker-0", 60, 20);
+        poll(2, "broker-1", 40, 30);
+        assertEquals(0, tracker.endPoll(store));
+
+        poll(3, "broker-0", 65, 20);
+        poll(3, "broker-1", 40, 30);
+        assertEquals(1, tracker.endPoll(store));
+        assertStored(105, 50, time(3));
+    }
+
+    @Test
+    public void increasesAreUsage() {
+        startFrom100And50();
+
+        poll(2, "broker-0", 70, 20);
+        poll(2, "broker-1", 40, 35);
+        assertEquals(1, tracker.endPoll(store));
+        assertStored(110, 55, time(2));
+
+        // no change - the stored usage stays the same
+        store.markChangesStored();
+        poll(3, "broker-0", 70, 20);
+        poll(3, "broker-1", 40, 35);
+        assertEquals(0, tracker.endPoll(store));
+        assertStored(110, 55, time(2));
+    }
+
+    @Test
+    public void resetCountersAreUsageSinceTheReset() {
+        startFrom100And50();
+
+        // broker-0 restarted, and has since moved 5 bytes in
+        poll(2, "broker-0", 5, 0);
+        poll(2, "broker-1", 40, 30);
+        assertEquals(1, tracker.endPoll(store));
+        assertStored(105, 50, time(2));
+    }
+
+    @Test
+    public void newBrokersAreOnlyAStartingPoint() {
+        startFrom100And50();
+
+        // a partition moved to broker-2, which reports its own total for the topic
+        poll(2, "broker-0", 60, 20);
+        poll(2, "broker-1", 40, 30);
+        poll(2, "broker-2", 1000, 1000);
+        assertEquals(0, tracker.endPoll(store));
+        assertStored(100, 50, STORED_TIME);
+
+        poll(3, "broker-2", 1010, 1000);
+        assertEquals(1, tracker.endPoll(store));
+        assertStored(110, 50, time(3));
+    }
+
+    @Test
+    public void missingBrokersCarryOnFromTheirLastValue() {
+        startFrom100And50();
+
+        // broker-1 isn't reported for a poll, and has moved 5 bytes in when it is again
+        poll(2, "broker-0", 60, 20);
+        assertEquals(0, tracker.endPoll(store));
+        poll(3, "broker-0", 60, 20);
+        poll(3, "broker-1", 45, 30);
+        assertEquals(1, tracker.endPoll(store));
+        assertStored(105, 50, time(3));
+    }
+
+    @Test
+    public void decreasingTotalsAreOnlyANewStartingPoint() {
+        poll(1, null, 100, 50);
+        assertEquals(0, tracker.endPoll(store));
+
+        // a broker missing from the total
+        poll(2, null, 60, 20);
+        assertEquals(0, tracker.endPoll(store));
+
+        poll(3, null, 70, 20);
+        assertEquals(1, tracker.endPoll(store));
+        assertStored(110, 50, time(3));
+    }
+
+    @Test
+    public void storedUsageAheadOfTheTotalIsAdopted() {
+        startFrom100And50();
+
+        // usage stored by another replica
+        store.set(id, 500, 300, time(2));
+        poll(2, "broker-0", 60, 20);
+        poll(2, "broker-1", 40, 30);
+        assertEquals(0, tracker.endPoll(store));
+        assertStored(500, 300, time(2));
+
+        poll(3, "broker-0", 70, 20);
+        poll(3, "broker-1", 40, 30);
+        assertEquals(1, tracker.endPoll(store));
+        assertStored(510, 300, time(3));
+    }
+
+    @Test
+    public void storedUsageBehindTheTotalIsUpdated() {
+        startFrom100And50();
+        poll(2, "broker-0", 70, 20);
+        poll(2, "broker-1", 40, 30);
+        assertEquals(1, tracker.endPoll(store));
+
+        // storing the change failed, so the store was re-read from Kubernetes
+        store.set(id, 100, 50, STORED_TIME);
+        poll(3, "broker-0", 70, 20);
+        poll(3, "broker-1", 40, 30);
+        assertEquals(1, tracker.endPoll(store));
+        assertStored(110, 50, time(2));
+    }
+
+    @Test
+    public void topicsNotInTheStoreAreForgotten() {
+        poll(1, "broker-0", 10, 10, "unknown");
+        tracker.endPoll(store);
+        assertEquals(1, tracker.size());
+
+        tracker.endPoll(store);
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void topicsAddedToTheStoreAreComparedWithStoredUsage() {
+        poll(1, "broker-0", 10, 10, "new-topic");
+        assertEquals(0, tracker.endPoll(store));
+
+        int newId = store.add("new-topic");
+        store.set(newId, 10, 10, STORED_TIME);
+        poll(2, "broker-0", 15, 10, "new-topic");
+        assertEquals(1, tracker.endPoll(store));
+        assertEquals(15, store.getBytesIn(newId));
+        assertEquals(10, store.getBytesOut(newId));
+        assertTrue(store.isChanged(newId));
+        assertFalse(store.isChanged(id));
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    private static long time(int poll) {
+        return STORED_TIME + poll * POLL;
+    }
+
+    private void poll(int poll, String broker, long bytesIn, long bytesOut) {
+        poll(poll, broker, bytesIn, bytesOut, "topic");
+    }
+
+    private void poll(int poll, String broker, long bytesIn, long bytesOut, String topic) {
+        tracker.record(topic, BYTES_IN, broker, bytesIn, time(poll));
+        tracker.record(topic, BYTES_OUT, broker, bytesOut, time(poll));
+    }
+
+    /** Starts with counters that match the stored usage */
+    private void startFrom100And50() {
+        poll(1, "broker-0", 60, 20);
+        poll(1, "broker-1", 40, 30);
+        assertEquals(0, tracker.endPoll(store));
+    }
+
+    private void assertStored(long bytesIn, long bytesOut, long timestamp) {
+        assertEquals(bytesIn, store.getBytesIn(id), "bytes in");
+        assertEquals(bytesOut, store.getBytesOut(id), "bytes out");
+        assertEquals(timestamp, store.getTimestamp(id), "timestamp");
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config.Mode;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+
+
+public class UsageSnapshotTest {
+
+    private static final Target FIRST = new Target("kafka", "first-cluster", Mode.STRIMZI);
+    private static final Target SECOND = new Target("event-streams", "second-cluster", Mode.EVENTSTREAMS);
+
+    /** Offset of the written at time in the snapshot header */
+    private static final int WRITTEN_AT_OFFSET = Integer.BYTES + Short.BYTES;
+
+    @TempDir
+    private Path dir;
+
+    private Path file;
+    private UsageSnapshot snapshot;
+
+
+    @BeforeEach
+    public void setup() throws MonitoringException {
+        file = dir.resolve("usage.snapshot");
+        snapshot = new UsageSnapshot(config(24 * 60 * 60));
+    }
+
+
+    @Test
+    public void roundTrip() throws MonitoringException {
+        UsageStore first = new UsageStore();
+        set(first, "orders", 100, 200, 1_700_000_000_000L);
+        set(first, "deleted", 1, 1, 1);
+        set(first, "payments.événements.💳", 0, 0, 0);
+        first.remove(first.indexOf("deleted"));
+
+        // a change that hasn't been stored in Kubernetes yet
+        int changed = set(first, "changed", 10, 10, 1_600_000_000_000L);
+        first.setBytesIn(changed, 20, 1_700_000_000_000L);
+        first.markChanged(changed);
+
+        UsageStore second = new UsageStore();
+        set(second, "orders", 5, 6, 7);
+
+        Map<Target, UsageStore> saved = new HashMap<>();
+        saved.put(FIRST, first);
+        saved.put(SECOND, second);
+        snapshot.save(saved);
+
+        Map<Target, UsageStore> loaded = stores(FIRST, SECOND);
+        assertEquals(Set.of(FIRST, SECOND), snapshot.load(loaded));
+
+        UsageStore restored = loaded.get(FIRST);
+        assertEquals(3, restored.size());
+        assertUsage(restored, "orders", 100, 200, 1_700_000_000_000L);
+        assertUsage(restored, "payments.événements.💳", 0, 0, 0);
+        assertUsage(restored, "changed", 20, 10, 1_600_000_000_000L);
+        assertEquals(-1, restored.indexOf("deleted"));
+        assertEquals(0, restored.getChangedCount());
+
+        assertEquals(1, loaded.get(SECOND).size());
+        assertUsage(loaded.get(SECOND), "orders", 5, 6, 7);
+    }
+
+    @Test
+    public void onlyRestoresClustersInTheSnapshot() throws MonitoringException {
+        UsageStore first = new UsageStore();
+        set(first, "orders", 100, 200, 300);
+        snapshot.save(Map.of(FIRST, first));
+
+        Map<Target, UsageStore> loaded = stores(FIRST, SECOND);
+        assertEquals(Set.of(FIRST), snapshot.load(loaded));
+        assertUsage(loaded.get(FIRST), "orders", 100, 200, 300);
+        assertEquals(0, loaded.get(SECOND).size());
+    }
+
+    @Test
+    public void replacesExistingContents() throws MonitoringException {
+        UsageStore first = new UsageStore();
+        set(first, "orders", 100, 200, 300);
+        snapshot.save(Map.of(FIRST, first));
+
+        Map<Target, UsageStore> loaded = stores(FIRST);
+        set(loaded.get(FIRST), "stale", 1, 2, 3);
+        snapshot.load(loaded);
+
+        assertEquals(1, loaded.get(FIRST).size());
+        assertEquals(-1, loaded.get(FIRST).indexOf("stale"));
+    }
+
+    @Test
+    public void ignoresMissingSnapshot() {
+        assertTrue(snapshot.load(stores(FIRST)).isEmpty());
+    }
+
+    @Test
+    public void ignoresCorruptSnapshot() throws MonitoringException, IOException {
+        saveOneTopic();
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 0x01;
+        Files.write(file, bytes);
+
+        Map<Target, UsageStore> loaded = stores(FIRST);
+        assertTrue(snapshot.load(loaded).isEmpty());
+        assertEquals(0, loaded.get(FIRST).size());
+    }
+
+    @Test
+    public void ignoresTruncatedSnapshot() throws MonitoringException, IOException {
+        saveOneTopic();
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 4));
+        assertTrue(snapshot.load(stores(FIRST)).isEmpty());
+
+        Files.write(file, Arrays.copyOf(bytes, 8));
+        assertTrue(snapshot.load(stores(FIRST)).isEmpty());
+    }
+
+    @Test
+    public void ignoresStaleSnapshot() throws MonitoringException, IOException {
+        saveOneTopic();
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        bytes.putLong(WRITTEN_AT_OFFSET, System.currentTimeMillis() - (2 * 60 * 60 * 1000L));
+        Files.write(file, bytes.array());
+
+        assertTrue(new UsageSnapshot(config(60 * 60)).load(stores(FIRST)).isEmpty());
+        assertEquals(Set.of(FIRST), new UsageSnapshot(config(3 * 60 * 60)).load(stores(FIRST)));
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    private Config config(int maxAgeSeconds) throws MonitoringException {
+        Map<String, String> env = new HashMap<>();
+        env.put("NAMESPACE", FIRST.getNamespace());
+        env.put("CLUSTER", FIRST.getCluster());
+        env.put("SNAPSHOT_FILE", file.toString());
+        env.put("SNAPSHOT_MAX_AGE_SECONDS", Integer.toString(maxAgeSeconds));
+        return new Config(env);
+    }
+
+    private void saveOneTopic() throws MonitoringException {
+        UsageStore first = new UsageStore();
+        set(first, "orders", 100, 200, 300);
+        snapshot.save(Map.of(FIRST, first));
+    }
+
+    private static Map<Target, UsageStore> stores(Target... targets) {
+        Map<Target, UsageStore> stores = new HashMap<>();
+        for (Target target : targets) {
+            stores.put(target, new UsageStore());
+        }
+        return stores;
+    }
+
+    private static int set(UsageStore store, String topicName, long bytesIn, long bytesOut, long timestamp) {
+        int id = store.add(topicName);
+        store.set(id, bytesIn, bytesOut, timestamp);
+        return id;
+    }
+
+    private static void assertUsage(UsageStore store, String topicName, long bytesIn, long bytesOut, long timestamp) {
+        int id = store.indexOf(topicName);
+        assertTrue(id >= 0, topicName);
+        assertEquals(bytesIn, store.getBytesIn(id), topicName);
+        assertEquals(bytesOut, store.getBytesOut(id), topicName);
+        assertEquals(timestamp, store.getTimestamp(id), topicName);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.k8s;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.data.UsageStore;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+
+
+
+public class WritePolicyTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+
+    @Test
+    public void writesEverythingWithoutAFreshnessWindow() throws MonitoringException {
+        UsageStore store = new UsageStore();
+        int recent = changed(store, "recent", System.currentTimeMillis() - MINUTE);
+
+        assertEquals(0, new WritePolicy(config(0)).apply(store));
+        assertTrue(store.isChanged(recent));
+    }
+
+    @Test
+    public void defersChangesToFreshTopics() throws MonitoringException {
+        UsageStore store = new UsageStore();
+        long now = System.currentTimeMillis();
+        int recent = changed(store, "recent", now - MINUTE);
+        int idle = changed(store, "idle", now - 60 * MINUTE);
+        int unused = changed(store, "unused", 0);
+
+        assertEquals(1, new WritePolicy(config(10 * 60)).apply(store));
+        assertFalse(store.isChanged(recent));
+        assertTrue(store.isDeferred(recent));
+        assertTrue(store.isChanged(idle));
+        assertTrue(store.isChanged(unused));
+        assertEquals(2, store.getChangedCount());
+    }
+
+    @Test
+    public void writesDeferredChangesOnceDue() throws MonitoringException {
+        UsageStore store = new UsageStore();
+        long now = System.currentTimeMillis();
+        int recent = changed(store, "recent", now - MINUTE);
+        WritePolicy policy = new WritePolicy(config(10 * 60));
+
+        assertEquals(1, policy.apply(store));
+        assertEquals(1, policy.apply(store));
+        assertTrue(store.isDeferred(recent));
+
+        // the stored time has aged out of the window
+        store.set(recent, store.getBytesIn(recent), store.getBytesOut(recent), now - 11 * MINUTE);
+        assertEquals(0, policy.apply(store));
+        assertTrue(store.isChanged(recent));
+        assertFalse(store.isDeferred(recent));
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    private static Config config(int freshnessSeconds) throws MonitoringException {
+        Map<String, String> env = new HashMap<>();
+        env.put("NAMESPACE", "kafka");
+        env.put("CLUSTER", "my-cluster");
+        env.put("WRITE_FRESHNESS_SECONDS", Integer.toString(freshnessSeconds));
+        return new Config(env);
+    }
+
+    /** Adds a topic with the provided time stored in Kubernetes, and new usage that hasn't been */
+    private static int changed(UsageStore store, String topicName, long storedTimestamp) {
+        int id = store.add(topicName);
+        store.set(id, 100, 100, storedTimestamp);
+        store.setBytesIn(id, 200, System.currentTimeMillis());
+        store.markChanged(id);
+        return id;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.junit.jupiter.api.Test;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+import uk.co.dalelane.demos.kafka.monitoring.metrics.MonitorMetrics;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Config;
+import uk.co.dalelane.demos.kafka.monitoring.utils.Target;
+
+
+
+public class PrometheusQueryEngineTest {
+
+    private static final List<String> SHARDS = List.of("shard-0", "shard-1", "shard-2", "shard-3");
+
+
+    @Test
+    public void runsEveryQuery() throws MonitoringException {
+        Config config = config();
+        List<String> queried = new ArrayList<>();
+        AtomicInteger results = new AtomicInteger();
+
+        new PrometheusQueryEngine(config, null, new MonitorMetrics()).query(
+            config.getTargets(),
+            List.of("bytes_in", "bytes_out"),
+            SHARDS,
+            (targets, metric, shard, executor, handler) -> {
+                synchronized (queried) {
+                    queried.add(metric + " " + shard);
+                }
+                return CompletableFuture.runAsync(() -> handler.accept(targets.get(0), new PrometheusData(shard, 0, 1)), executor);
+            },
+            (target, metric, result) -> results.incrementAndGet());
+
+        assertEquals(8, queried.size());
+        assertEquals(8, results.get());
+    }
+
+    @Test
+    public void failedQueryCancelsTheOthers() throws MonitoringException {
+        Config config = config();
+        List<InFlightQuery> inFlight = new ArrayList<>();
+        AtomicBoolean returned = new AtomicBoolean();
+        AtomicInteger resultsAfterReturn = new AtomicInteger();
+
+        MonitoringException e = assertThrows(MonitoringException.class, () -> new PrometheusQueryEngine(config, null, new MonitorMetrics()).query(
+            config.getTargets(),
+            List.of("bytes_in"),
+            SHARDS,
+            (targets, metric, shard, executor, handler) -> {
+                if (shard.equals("shard-2")) {
+                    CompletableFuture<Void> failing = new CompletableFuture<>();
+                    CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS)
+                        .execute(() -> failing.completeExceptionally(new MonitoringException("Prometheus query failed")));
+                    return failing;
+                }
+                InFlightQuery query = new InFlightQuery(targets.get(0), shard, handler);
+                inFlight.add(query);
+                return query.future;
+            },
+            (target, metric, result) -> {
+                if (returned.get()) {
+                    resultsAfterReturn.incrementAndGet();
+                }
+            }));
+        returned.set(true);
+
+        assertEquals("Prometheus query failed", e.getMessage());
+        assertEquals(3, inFlight.size());
+        for (InFlightQuery query : inFlight) {
+            assertTrue(query.future.isCancelled(), query.shard + " not cancelled");
+        }
+
+        // the other queries stop passing on results
+        sleep(100);
+        assertEquals(0, resultsAfterReturn.get());
+        for (InFlightQuery query : inFlight) {
+            assertTrue(query.stopped.get(), query.shard + " still running");
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    /**
+     * A query that keeps returning results until it is cancelled, or until
+     *  the handler refuses them.
+     */
+    private static class InFlightQuery {
+        private final String shard;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final AtomicBoolean stopped = new AtomicBoolean();
+
+        private InFlightQuery(Target target, String shard, BiConsumer<Target, PrometheusData> handler) {
+            this.shard = shard;
+            Thread thread = new Thread(() -> {
+                try {
+                    while (!future.isDone()) {
+                        handler.accept(target, new PrometheusData(shard, 0, 1));
+                        sleep(5);
+                    }
+                }
+                catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+                stopped.set(true);
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static Config config() throws MonitoringException {
+        Map<String, String> env = new HashMap<>();
+        env.put("NAMESPACE", "kafka");
+        env.put("CLUSTER", "my-cluster");
+        env.put("PROMETHEUS_QUERY_CONCURRENCY", Integer.toString(SHARDS.size()));
+        return new Config(env);
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+
+
+
+public class RemoteWriteDecoderTest {
+
+    private static final byte[] NAME = "__name__".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TOPIC = "topic".getBytes(StandardCharsets.UTF_8);
+
+    private final RemoteWriteDecoder decoder = new RemoteWriteDecoder();
+
+
+    @Test
+    public void decodesSeriesAndSamples() throws MonitoringException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        writeField(request, 1, series(List.of("__name__", "bytes_in", "topic", "one"), 12.5, 1000L, 13.5, 2000L));
+        writeField(request, 1, series(List.of("__name__", "bytes_out", "topic", "two"), 7.0, 3000L));
+
+        Recorder recorder = new Recorder();
+        decode(literals(request.toByteArray()), recorder);
+
+        assertEquals(List.of("bytes_in/one", "bytes_out/two"), recorder.series);
+        assertEquals(List.of("0:12.5@1000", "0:13.5@2000", "1:7.0@3000"), recorder.samples);
+        assertNotEquals(recorder.hashes.get(0), recorder.hashes.get(1));
+    }
+
+    @Test
+    public void skipsUnknownFields() throws MonitoringException {
+        ByteArrayOutputStream series = new ByteArrayOutputStream();
+        series.write((3 << 3) | 0);
+        writeVarint(series, 300);
+        series.writeBytes(series(List.of("__name__", "bytes_in", "topic", "one"), 1.0, 1000L));
+        series.write((4 << 3) | 1);
+        series.writeBytes(new byte[8]);
+        series.write((5 << 3) | 5);
+        series.writeBytes(new byte[4]);
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        writeField(request, 1, series.toByteArray());
+        writeField(request, 2, "metadata".getBytes(StandardCharsets.UTF_8));
+
+        Recorder recorder = new Recorder();
+        decode(literals(request.toByteArray()), recorder);
+
+        assertEquals(List.of("bytes_in/one"), recorder.series);
+        assertEquals(List.of("0:1.0@1000"), recorder.samples);
+    }
+
+    @Test
+    public void skipsSamplesForIgnoredSeries() throws MonitoringException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        writeField(request, 1, series(List.of("__name__", "bytes_in", "topic", "ignored"), 1.0, 1000L));
+        writeField(request, 1, series(List.of("__name__", "bytes_in", "topic", "wanted"), 2.0, 1000L));
+
+        Recorder recorder = new Recorder();
+        recorder.ignored = "ignored";
+        decode(literals(request.toByteArray()), recorder);
+
+        assertEquals(List.of("bytes_in/ignored", "bytes_in/wanted"), recorder.series);
+        assertEquals(List.of("1:2.0@1000"), recorder.samples);
+    }
+
+    @Test
+    public void decompressesOverlappingCopies() throws MonitoringException {
+        String repeated = "a".repeat(20);
+        byte[] uncompressed = request(series(List.of("__name__", "bytes_in", "topic", repeated), 1.0, 1000L));
+        int start = indexOf(uncompressed, repeated.getBytes(StandardCharsets.UTF_8));
+
+        // the first 'a' as a literal, then the rest copied from the byte before
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        writeVarint(compressed, uncompressed.length);
+        writeLiteral(compressed, uncompressed, 0, start + 1);
+        writeCopy1(compressed, 1, 11);
+        writeCopy1(compressed, 1, 8);
+        writeLiteral(compressed, uncompressed, start + 20, uncompressed.length - start - 20);
+
+        Recorder recorder = new Recorder();
+        decoder.decode(compressed.toByteArray(), compressed.size(), recorder);
+
+        assertEquals(List.of("bytes_in/" + repeated), recorder.series);
+    }
+
+    @Test
+    public void decompressesCopiesWithLongerOffsets() throws MonitoringException {
+        byte[] series = series(List.of("__name__", "bytes_in", "topic", "t".repeat(300)), 5.0, 1000L);
+        byte[] uncompressed = request(series, series);
+        int half = uncompressed.length / 2;
+
+        // the second series as a copy of the first, 64 bytes at a time
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        writeVarint(compressed, uncompressed.length);
+        writeLiteral(compressed, uncompressed, 0, half);
+        for (int copied = 0; copied < half; copied += 64) {
+            writeCopy2(compressed, half, Math.min(64, half - copied));
+        }
+
+        Recorder recorder = new Recorder();
+        decoder.decode(compressed.toByteArray(), compressed.size(), recorder);
+
+        assertEquals(2, recorder.series.size());
+        assertEquals(recorder.series.get(0), recorder.series.get(1));
+        assertEquals(recorder.hashes.get(0), recorder.hashes.get(1));
+        assertEquals(List.of("0:5.0@1000", "1:5.0@1000"), recorder.samples);
+    }
+
+    @Test
+    public void reusesBufferForSmallerRequests() throws MonitoringException {
+        ByteArrayOutputStream large = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            writeField(large, 1, series(List.of("__name__", "bytes_in", "topic", "topic-" + i), i, 1000L));
+        }
+        Recorder recorder = new Recorder();
+        decode(literals(large.toByteArray()), recorder);
+        assertEquals(1000, recorder.series.size());
+
+        recorder = new Recorder();
+        decode(literals(request(series(List.of("__name__", "bytes_out", "topic", "small"), 3.0, 2000L))), recorder);
+        assertEquals(List.of("bytes_out/small"), recorder.series);
+        assertEquals(List.of("0:3.0@2000"), recorder.samples);
+    }
+
+    @Test
+    public void rejectsCopyBeforeStart() {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        writeVarint(compressed, 10);
+        writeCopy1(compressed, 5, 10);
+        assertThrows(MonitoringException.class,
+                     () -> decoder.decode(compressed.toByteArray(), compressed.size(), new Recorder()));
+    }
+
+    @Test
+    public void rejectsWrongDecompressedLength() {
+        byte[] uncompressed = request(series(List.of("topic", "one"), 1.0, 1000L));
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        writeVarint(compressed, uncompressed.length + 5);
+        writeLiteral(compressed, uncompressed, 0, uncompressed.length);
+        assertThrows(MonitoringException.class,
+                     () -> decoder.decode(compressed.toByteArray(), compressed.size(), new Recorder()));
+    }
+
+    @Test
+    public void rejectsTruncatedRequests() {
+        byte[] uncompressed = request(series(List.of("topic", "one"), 1.0, 1000L));
+        byte[] compressed = literals(Arrays.copyOf(uncompressed, uncompressed.length - 3));
+        assertThrows(MonitoringException.class,
+                     () -> decoder.decode(compressed, compressed.length, new Recorder()));
+
+        byte[] valid = literals(uncompressed);
+        assertThrows(MonitoringException.class,
+                     () -> decoder.decode(valid, valid.length - 3, new Recorder()));
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    private static class Recorder implements RemoteWriteDecoder.Handler {
+        private final List<String> series = new ArrayList<>();
+        private final List<Long> hashes = new ArrayList<>();
+        private final List<String> samples = new ArrayList<>();
+        private String ignored;
+
+        @Override
+        public int series(RemoteWriteDecoder.Labels labels) {
+            int name = labels.indexOf(NAME);
+            int topic = labels.indexOf(TOPIC);
+            series.add((name < 0 ? "" : labels.getValue(name)) + "/" + labels.getValue(topic));
+            hashes.add(labels.hash());
+            if (ignored != null && labels.valueEquals(topic, ignored.getBytes(StandardCharsets.UTF_8))) {
+                return -1;
+            }
+            return series.size() - 1;
+        }
+
+        @Override
+        public void sample(int series, double value, long timestampMs) {
+            samples.add(series + ":" + value + "@" + timestampMs);
+        }
+    }
+
+    private void decode(byte[] compressed, RemoteWriteDecoder.Handler handler) throws MonitoringException {
+        decoder.decode(compressed, compressed.length, handler);
+    }
+
+
+    /** Returns a TimeSeries message with the provided label names and values, and (value, timestamp) samples */
+    private static byte[] series(List<String> labels, Object... samples) {
+        ByteArrayOutputStream series = new ByteArrayOutputStream();
+        for (int i = 0; i < labels.size(); i += 2) {
+            ByteArrayOutputStream label = new ByteArrayOutputStream();
+            writeField(label, 1, labels.get(i).getBytes(StandardCharsets.UTF_8));
+            writeField(label, 2, labels.get(i + 1).getBytes(StandardCharsets.UTF_8));
+            writeField(series, 1, label.toByteArray());
+        }
+        for (int i = 0; i < samples.length; i += 2) {
+            ByteArrayOutputStream sample = new ByteArrayOutputStream();
+            sample.write((1 << 3) | 1);
+            long bits = Double.doubleToLongBits(((Number) samples[i]).doubleValue());
+            for (int b = 0; b < 8; b++) {
+                sample.write((int) (bits >>> (8 * b)));
+            }
+            sample.write(2 << 3);
+            writeVarint(sample, (Long) samples[i + 1]);
+            writeField(series, 2, sample.toByteArray());
+        }
+        return series.toByteArray();
+    }
+
+    private static byte[] request(byte[]... series) {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        for (byte[] s : series) {
+            writeField(request, 1, s);
+        }
+        return request.toByteArray();
+    }
+
+    private static void writeField(ByteArrayOutputStream out, int field, byte[] bytes) {
+        out.write((field << 3) | 2);
+        writeVarint(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Returns the provided bytes compressed with snappy literals only */
+    private static byte[] literals(byte[] uncompressed) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        writeVarint(compressed, uncompressed.length);
+        for (int pos = 0; pos < uncompressed.length; pos += 65536) {
+            writeLiteral(compressed, uncompressed, pos, Math.min(65536, uncompressed.length - pos));
+        }
+        return compressed.toByteArray();
+    }
+
+    private static void writeLiteral(ByteArrayOutputStream out, byte[] bytes, int offset, int length) {
+        if (length <= 60) {
+            out.write((length - 1) << 2);
+        }
+        else {
+            out.write(61 << 2);
+            out.write((length - 1) & 0xff);
+            out.write((length - 1) >>> 8);
+        }
+        out.write(bytes, offset, length);
+    }
+
+    /** Copy of 4 to 11 bytes, from up to 2047 bytes back */
+    private static void writeCopy1(ByteArrayOutputStream out, int offset, int length) {
+        out.write(((offset >>> 8) << 5) | ((length - 4) << 2) | 1);
+        out.write(offset & 0xff);
+    }
+
+    /** Copy of 1 to 64 bytes, from up to 65535 bytes back */
+    private static void writeCopy2(ByteArrayOutputStream out, int offset, int length) {
+        out.write(((length - 1) << 2) | 2);
+        out.write(offset & 0xff);
+        out.write(offset >>> 8);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] wanted) {
+        for (int i = 0; i + wanted.length <= bytes.length; i++) {
+            if (Arrays.equals(bytes, i, i + wanted.length, wanted, 0, wanted.length)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not found");
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.prometheus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import uk.co.dalelane.demos.kafka.monitoring.MonitoringException;
+
+
+
+public class TextFormatParserTest {
+
+    private static final String BYTES_IN = "kafka_server_brokertopicmetrics_bytesin_total";
+    private static final String BYTES_OUT = "kafka_server_brokertopicmetrics_bytesout_total";
+
+
+    @Test
+    public void parsesWantedSamples() throws IOException, MonitoringException {
+        String response =
+            "# HELP kafka_server_brokertopicmetrics_bytesin_total Incoming byte rate\n" +
+            "# TYPE kafka_server_brokertopicmetrics_bytesin_total counter\n" +
+            "kafka_server_brokertopicmetrics_bytesin_total{clientId=\"x\",topic=\"one\",} 1.2345E7 1700000000000\n" +
+            "kafka_server_brokertopicmetrics_bytesin_total{topic=\"two\"} 42\n" +
+            "kafka_server_brokertopicmetrics_bytesin_total 99.0\n" +
+            "kafka_server_brokertopicmetrics_bytesin_total_created{topic=\"one\",} 1.7E9\n" +
+            "kafka_server_brokertopicmetrics_messagesin_total{topic=\"one\",} 5.0\n" +
+            "\n" +
+            "kafka_server_brokertopicmetrics_bytesout_total{topic=\"one\",} 7.0\n";
+
+        assertEquals(List.of("0 one 1.2345E7", "0 two 42.0", "1 one 7.0"), parse(response));
+    }
+
+    @Test
+    public void handlesEscapesAndLineEndings() throws IOException, MonitoringException {
+        String response =
+            "kafka_server_brokertopicmetrics_bytesin_total{label=\"a \\\"quoted\\\" \\\\ value\",topic=\"one\",} 1.0\r\n" +
+            "kafka_server_brokertopicmetrics_bytesin_total{topic=\"line\\nbreak\",} 2.0\r\n" +
+            "kafka_server_brokertopicmetrics_bytesout_total{topic=\"last\",} 3.0";
+
+        assertEquals(List.of("0 one 1.0", "0 line\nbreak 2.0", "1 last 3.0"), parse(response));
+    }
+
+    @Test
+    public void skipsValuesThatAreNotFinite() throws IOException, MonitoringException {
+        String response =
+            "kafka_server_brokertopicmetrics_bytesin_total{topic=\"one\",} +Inf\n" +
+            "kafka_server_brokertopicmetrics_bytesin_total{topic=\"two\",} -Inf\n" +
+            "kafka_server_brokertopicmetrics_bytesin_total{topic=\"three\",} NaN\n" +
+            "kafka_server_brokertopicmetrics_bytesin_total{topic=\"four\",} 4.0\n";
+
+        assertEquals(List.of("0 four 4.0"), parse(response));
+    }
+
+    @Test
+    public void rejectsInvalidValues() {
+        String response = "kafka_server_brokertopicmetrics_bytesin_total{topic=\"one\",} lots\n";
+        assertThrows(MonitoringException.class, () -> parse(response));
+    }
+
+    @Test
+    public void rejectsInvalidLabels() {
+        String response = "kafka_server_brokertopicmetrics_bytesin_total{topic=one} 1.0\n";
+        assertThrows(MonitoringException.class, () -> parse(response));
+    }
+
+    @Test
+    public void handlesLinesSplitAcrossReads() throws IOException, MonitoringException {
+        StringBuilder response = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String topic = "topic-" + i + "-" + "x".repeat(i % 2000);
+            response.append(BYTES_IN).append("{topic=\"").append(topic).append("\",} ").append(i).append(".0\n");
+            expected.add("0 " + topic + " " + i + ".0");
+        }
+
+        // a stream that returns a few bytes at a time, so lines are split between reads
+        byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+        InputStream in = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1 + (pos % 7919)));
+            }
+        };
+
+        List<String> samples = new ArrayList<>();
+        new TextFormatParser(List.of(BYTES_IN, BYTES_OUT))
+            .parse(in, (metric, topic, value) -> samples.add(metric + " " + topic + " " + value));
+        assertEquals(expected, samples);
+    }
+
+
+    // ------------------------------------------------------------------------
+
+
+    private static List<String> parse(String response) throws IOException, MonitoringException {
+        List<String> samples = new ArrayList<>();
+        new TextFormatParser(List.of(BYTES_IN, BYTES_OUT))
+            .parse(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)),
+                   (metric, topic, value) -> samples.add(metric + " " + topic + " " + value));
+        return samples;
+    }
+}
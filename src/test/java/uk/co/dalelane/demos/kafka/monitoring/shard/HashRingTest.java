@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package uk.co.dalelane.demos.kafka.monitoring.shard;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+
+
+public class HashRingTest {
+
+    private static final int NUM_TOPICS = 10000;
+
+
+    @Test
+    public void emptyRingHasNoOwners() {
+        assertNull(new HashRing(List.of()).getOwner("topic"));
+    }
+
+    @Test
+    public void singleMemberOwnsEverything() {
+        HashRing ring = new HashRing(List.of("monitor-0"));
+        for (int i = 0; i < NUM_TOPICS; i++) {
+            assertEquals("monitor-0", ring.getOwner("topic-" + i));
+        }
+    }
+
+    @Test
+    public void ownersDoNotDependOnMemberOrder() {
+        HashRing ring = new HashRing(List.of("monitor-0", "monitor-1", "monitor-2"));
+        HashRing reordered = new HashRing(List.of("monitor-2", "monitor-0", "monitor-1", "monitor-0"));
+        assertEquals(ring.getMembers(), reordered.getMembers());
+        for (int i = 0; i < NUM_TOPICS; i++) {
+            assertEquals(ring.getOwner("topic-" + i), reordered.getOwner("topic-" + i));
+        }
+    }
+
+    @Test
+    public void topicsAreSpreadEvenly() {
+        HashRing ring = new HashRing(List.of("monitor-0", "monitor-1", "monitor-2", "monitor-3"));
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < NUM_TOPICS; i++) {
+            counts.merge(ring.getOwner("topic-" + i), 1, Integer::sum);
+        }
+        assertEquals(ring.getMembers(), counts.keySet());
+        for (int count : counts.values()) {
+            // within 25% of an even share
+            assertTrue(Math.abs(count - (NUM_TOPICS / 4)) < NUM_TOPICS / 16, "uneven share " + counts);
+        }
+    }
+
+    @Test
+    public void onlyTopicsForChangedMembersMove() {
+        List<String> members = new ArrayList<>(List.of("monitor-0", "monitor-1", "monitor-2"));
+        HashRing before = new HashRing(members);
+        members.add("monitor-3");
+        HashRing after = new HashRing(members);
+
+        int moved = 0;
+        for (int i = 0; i < NUM_TOPICS; i++) {
+            String owner = after.getOwner("topic-" + i);
+            if (!owner.equals(before.getOwner("topic-" + i))) {
+                // topics only move to the new member
+                assertEquals("monitor-3", owner);
+                moved++;
+            }
+        }
+        // roughly a quarter of the topics move
+        assertTrue(moved > NUM_TOPICS / 6 && moved < NUM_TOPICS / 3, "moved " + moved);
+    }
+
+    @Test
+    public void hashIsStable() {
+        // replicas running different versions of the Monitor need to agree on owners
+        assertEquals(0xf65c4c9af5854faeL, HashRing.hash("topic-1"));
+    }
+}